@@ -0,0 +1,68 @@
+package com.nwalsh.sinclude;
+
+import net.sf.saxon.Configuration;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The XML documents that XInclude processors are asking their resolvers for right now, by
+// configuration and URI. When an XIncludeFilterFactory is installed on the configuration, the
+// resolver's parse passes through it; the include that asked for the document expands it, so
+// the filter leaves the documents listed here alone. That works whatever the resolver is and
+// whatever thread it parses on. (A parse of the same URI that has nothing to do with the include,
+// on another thread at the same moment, is also left alone.)
+class ActiveLoads {
+    private static final ConcurrentHashMap<List<Object>, Integer> loads = new ConcurrentHashMap<>();
+
+    static void started(Configuration config, URI uri) {
+        if (uri != null) {
+            loads.merge(key(config, uri), 1, Integer::sum);
+        }
+    }
+
+    static void finished(Configuration config, URI uri) {
+        if (uri != null) {
+            loads.computeIfPresent(key(config, uri), (key, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    static boolean isLoading(Configuration config, URI uri) {
+        return uri != null && !loads.isEmpty() && loads.containsKey(key(config, uri));
+    }
+
+    // Configurations are compared by identity; file: URIs are compared as files, since
+    // resolvers spell them differently (file:/path and file:///path)
+    private static List<Object> key(Configuration config, URI uri) {
+        URI normalized = uri.normalize();
+        String name = normalized.toString();
+        if ("file".equals(normalized.getScheme())) {
+            try {
+                name = new File(normalized).toURI().toString();
+            } catch (IllegalArgumentException ex) {
+                // Not a plain file URI; compare it as it is
+            }
+        }
+        return Arrays.asList(new Identity(config), name);
+    }
+
+    private static class Identity {
+        private final Object object;
+
+        Identity(Object object) {
+            this.object = object;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Identity && ((Identity) obj).object == object;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(object);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.nwalsh.sinclude;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import java.util.concurrent.CompletableFuture;
+
+// A DocumentResolver that can also load documents in the background. The futures complete
+// exceptionally with the exceptions the blocking methods would have thrown.
+public interface AsyncDocumentResolver extends DocumentResolver {
+    CompletableFuture<XdmNode> resolveXmlAsync(XdmNode base, String uri, String accept, String acceptLanguage);
+    CompletableFuture<XdmNode> resolveTextAsync(XdmNode base, String uri, String encoding, String accept, String acceptLanguage);
+}
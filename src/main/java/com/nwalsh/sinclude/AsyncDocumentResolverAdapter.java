@@ -0,0 +1,57 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.utils.ExecutorUtils;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Makes any DocumentResolver asynchronous by running its blocking methods on an executor.
+// By default, that's the shared I/O executor, which uses virtual threads if they're available.
+public class AsyncDocumentResolverAdapter implements AsyncDocumentResolver {
+    private final DocumentResolver resolver;
+    private final Executor executor;
+
+    public AsyncDocumentResolverAdapter(DocumentResolver resolver) {
+        this(resolver, ExecutorUtils.ioExecutor());
+    }
+
+    public AsyncDocumentResolverAdapter(DocumentResolver resolver, Executor executor) {
+        if (resolver == null) {
+            throw new NullPointerException("AsyncDocumentResolverAdapter requires a resolver");
+        }
+        if (executor == null) {
+            throw new NullPointerException("AsyncDocumentResolverAdapter requires an executor");
+        }
+        this.resolver = resolver;
+        this.executor = executor;
+    }
+
+    public DocumentResolver getResolver() {
+        return resolver;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+        return resolver.resolveXml(base, uri, accept, acceptLanguage);
+    }
+
+    @Override
+    public XdmNode resolveText(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+        return resolver.resolveText(base, uri, encoding, accept, acceptLanguage);
+    }
+
+    @Override
+    public CompletableFuture<XdmNode> resolveXmlAsync(XdmNode base, String uri, String accept, String acceptLanguage) {
+        return CompletableFuture.supplyAsync(() -> resolver.resolveXml(base, uri, accept, acceptLanguage), executor);
+    }
+
+    @Override
+    public CompletableFuture<XdmNode> resolveTextAsync(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+        return CompletableFuture.supplyAsync(() -> resolver.resolveText(base, uri, encoding, accept, acceptLanguage), executor);
+    }
+}
@@ -0,0 +1,411 @@
+package com.nwalsh.sinclude;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.streams.Predicates;
+import net.sf.saxon.s9api.streams.Steps;
+import net.sf.saxon.tree.tiny.TinyTree;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A DocumentResolver that remembers the documents returned by another resolver.
+// Documents are cached by absolute URI (and the accept headers) and evicted,
+// least recently used first, when the estimated size of the cached trees
+// exceeds the configured budget. The parsed trees are immutable, so a single
+// instance can be shared by any number of XInclude processors and threads.
+// If checkFileSystem is true, a document loaded from a file: URI is reloaded
+// as soon as the file's modification time or length changes.
+//
+// Range reads, partial parses, and background loads are passed on to the other
+// resolver if it supports them, unless the whole document is already cached;
+// if it doesn't, they're answered from the whole (cached) document.
+
+public class CachingDocumentResolver implements AsyncDocumentResolver, TextRangeResolver, PartialXmlResolver {
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 64L * 1024 * 1024;
+
+    // Rough per-node and per-character costs for a TinyTree
+    private static final long NODE_WEIGHT = 32;
+    private static final long CHAR_WEIGHT = 2;
+
+    private static Method getCharacterBuffer = null;
+
+    private final DocumentResolver resolver;
+    private final AsyncDocumentResolver asyncResolver;
+    private final long maximumWeight;
+    private boolean checkFileSystem = false;
+    private final ConcurrentHashMap<CacheKey, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final AtomicLong weight = new AtomicLong(0);
+    private final AtomicLong clock = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    public CachingDocumentResolver(DocumentResolver resolver) {
+        this(resolver, DEFAULT_MAXIMUM_WEIGHT);
+    }
+
+    public CachingDocumentResolver(DocumentResolver resolver, long maximumWeight) {
+        if (resolver == null) {
+            throw new NullPointerException("CachingDocumentResolver requires a resolver");
+        }
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("The maximum weight must not be negative");
+        }
+        this.resolver = resolver;
+        this.maximumWeight = maximumWeight;
+        asyncResolver = resolver instanceof AsyncDocumentResolver
+                ? (AsyncDocumentResolver) resolver : new AsyncDocumentResolverAdapter(resolver);
+    }
+
+    public DocumentResolver getResolver() {
+        return resolver;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public boolean getCheckFileSystem() {
+        return checkFileSystem;
+    }
+
+    public void setCheckFileSystem(boolean check) {
+        checkFileSystem = check;
+    }
+
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public void clear() {
+        for (CacheKey key : new ArrayList<>(cache.keySet())) {
+            CacheEntry entry = cache.remove(key);
+            if (entry != null) {
+                weight.addAndGet(-entry.weight);
+            }
+        }
+    }
+
+    @Override
+    public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+        CacheKey key = cacheKey(base, uri, null, accept, acceptLanguage, false);
+        if (key == null) {
+            return resolver.resolveXml(base, uri, accept, acceptLanguage);
+        }
+
+        XdmNode doc = lookup(key);
+        if (doc == null) {
+            doc = resolver.resolveXml(base, uri, accept, acceptLanguage);
+            store(key, doc);
+        }
+        return doc;
+    }
+
+    @Override
+    public XdmNode resolveText(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+        CacheKey key = cacheKey(base, uri, encoding, accept, acceptLanguage, true);
+        if (key == null) {
+            return resolver.resolveText(base, uri, encoding, accept, acceptLanguage);
+        }
+
+        XdmNode doc = lookup(key);
+        if (doc == null) {
+            doc = resolver.resolveText(base, uri, encoding, accept, acceptLanguage);
+            store(key, doc);
+        }
+        return doc;
+    }
+
+    @Override
+    public CompletableFuture<XdmNode> resolveXmlAsync(XdmNode base, String uri, String accept, String acceptLanguage) {
+        CacheKey key = cacheKey(base, uri, null, accept, acceptLanguage, false);
+        if (key == null) {
+            return asyncResolver.resolveXmlAsync(base, uri, accept, acceptLanguage);
+        }
+
+        XdmNode doc = lookup(key);
+        if (doc != null) {
+            return CompletableFuture.completedFuture(doc);
+        }
+        return asyncResolver.resolveXmlAsync(base, uri, accept, acceptLanguage).thenApply(loaded -> {
+            store(key, loaded);
+            return loaded;
+        });
+    }
+
+    @Override
+    public CompletableFuture<XdmNode> resolveTextAsync(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+        CacheKey key = cacheKey(base, uri, encoding, accept, acceptLanguage, true);
+        if (key == null) {
+            return asyncResolver.resolveTextAsync(base, uri, encoding, accept, acceptLanguage);
+        }
+
+        XdmNode doc = lookup(key);
+        if (doc != null) {
+            return CompletableFuture.completedFuture(doc);
+        }
+        return asyncResolver.resolveTextAsync(base, uri, encoding, accept, acceptLanguage).thenApply(loaded -> {
+            store(key, loaded);
+            return loaded;
+        });
+    }
+
+    @Override
+    public XdmNode resolveTextRange(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextRange range) {
+        if (resolver instanceof TextRangeResolver && !cached(base, uri, encoding, accept, acceptLanguage, true)) {
+            return ((TextRangeResolver) resolver).resolveTextRange(base, uri, encoding, accept, acceptLanguage, range);
+        }
+        return TextRangeResolver.super.resolveTextSelection(base, uri, encoding, accept, acceptLanguage, range);
+    }
+
+    @Override
+    public XdmNode resolveTextSelection(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextSelector selector) {
+        if (resolver instanceof TextRangeResolver && !cached(base, uri, encoding, accept, acceptLanguage, true)) {
+            return ((TextRangeResolver) resolver).resolveTextSelection(base, uri, encoding, accept, acceptLanguage, selector);
+        }
+        return TextRangeResolver.super.resolveTextSelection(base, uri, encoding, accept, acceptLanguage, selector);
+    }
+
+    // Returns null, so the whole document is resolved (and cached), if the other resolver
+    // can't stop early or the whole document is already cached
+    @Override
+    public XdmNode resolveXmlId(XdmNode base, String uri, String accept, String acceptLanguage, String id) {
+        if (resolver instanceof PartialXmlResolver && !cached(base, uri, null, accept, acceptLanguage, false)) {
+            return ((PartialXmlResolver) resolver).resolveXmlId(base, uri, accept, acceptLanguage, id);
+        }
+        return null;
+    }
+
+    private boolean cached(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, boolean text) {
+        CacheKey key = cacheKey(base, uri, encoding, accept, acceptLanguage, text);
+        return key != null && cache.containsKey(key);
+    }
+
+    private CacheKey cacheKey(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, boolean text) {
+        // Same-document references aren't cached; the "resource" is the including document
+        if (uri == null || "".equals(uri) || base.getBaseURI() == null) {
+            return null;
+        }
+
+        URI absolute;
+        try {
+            absolute = base.getBaseURI().resolve(uri);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        if (!absolute.isAbsolute()) {
+            return null;
+        }
+
+        Configuration config = base.getUnderlyingNode().getConfiguration();
+        return new CacheKey(config, absolute.toString(), text, encoding, accept, acceptLanguage);
+    }
+
+    private XdmNode lookup(CacheKey key) {
+        CacheEntry entry = cache.get(key);
+        if (entry != null && entry.file != null
+                && (entry.file.lastModified() != entry.lastModified || entry.file.length() != entry.length)) {
+            if (cache.remove(key, entry)) {
+                weight.addAndGet(-entry.weight);
+            }
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.lastAccess = clock.incrementAndGet();
+        return entry.document;
+    }
+
+    private void store(CacheKey key, XdmNode document) {
+        if (document == null) {
+            return;
+        }
+
+        long docWeight = estimateWeight(document);
+        if (docWeight > maximumWeight) {
+            // It would just push everything else out and then be evicted itself
+            return;
+        }
+
+        File file = null;
+        if (checkFileSystem && key.uri.startsWith("file:")) {
+            try {
+                file = new File(URI.create(key.uri));
+            } catch (IllegalArgumentException ex) {
+                // Not a file we can watch
+            }
+        }
+
+        CacheEntry entry = new CacheEntry(document, docWeight, clock.incrementAndGet(), file);
+        CacheEntry previous = cache.put(key, entry);
+        if (previous != null) {
+            weight.addAndGet(-previous.weight);
+        }
+
+        if (weight.addAndGet(docWeight) > maximumWeight) {
+            evict();
+        }
+    }
+
+    private synchronized void evict() {
+        if (weight.get() <= maximumWeight) {
+            return;
+        }
+
+        // Snapshot the access times; they can change while we're sorting
+        List<Candidate> candidates = new ArrayList<>();
+        for (Map.Entry<CacheKey, CacheEntry> entry : cache.entrySet()) {
+            candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+        }
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+
+        for (Candidate candidate : candidates) {
+            if (weight.get() <= maximumWeight) {
+                break;
+            }
+            if (cache.remove(candidate.key, candidate.entry)) {
+                weight.addAndGet(-candidate.entry.weight);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    protected long estimateWeight(XdmNode document) {
+        TreeInfo tree = document.getUnderlyingNode().getTreeInfo();
+        if (tree instanceof TinyTree) {
+            TinyTree tiny = (TinyTree) tree;
+            long nodes = tiny.getNumberOfNodes() + tiny.getNumberOfAttributes();
+            long chars = characterBufferLength(tiny);
+            if (chars >= 0) {
+                return nodes * NODE_WEIGHT + chars * CHAR_WEIGHT;
+            }
+            return nodes * NODE_WEIGHT + textLength(document) * CHAR_WEIGHT;
+        }
+
+        // Some other tree model; all we can really measure is the content
+        return NODE_WEIGHT + textLength(document) * CHAR_WEIGHT;
+    }
+
+    // The text nodes' characters are kept together in one buffer. Its type differs between
+    // Saxon versions, but they all have a length(). Returns -1 if it can't be found.
+    private static long characterBufferLength(TinyTree tiny) {
+        try {
+            if (getCharacterBuffer == null) {
+                getCharacterBuffer = TinyTree.class.getMethod("getCharacterBuffer");
+            }
+            Object buffer = getCharacterBuffer.invoke(tiny);
+            if (buffer == null) {
+                return 0;
+            }
+            return ((Number) buffer.getClass().getMethod("length").invoke(buffer)).longValue();
+        } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException ex) {
+            return -1;
+        }
+    }
+
+    // The same count as the document's string value, without building it
+    private static long textLength(XdmNode document) {
+        return document.select(Steps.descendant(Predicates.isText())).mapToLong(text -> text.getStringValue().length()).sum();
+    }
+
+    private static class CacheKey {
+        private final Configuration config;
+        private final String uri;
+        private final boolean text;
+        private final String encoding;
+        private final String accept;
+        private final String acceptLanguage;
+        private final int hash;
+
+        CacheKey(Configuration config, String uri, boolean text, String encoding, String accept, String acceptLanguage) {
+            this.config = config;
+            this.uri = uri;
+            this.text = text;
+            this.encoding = encoding;
+            this.accept = accept;
+            this.acceptLanguage = acceptLanguage;
+            hash = Objects.hash(System.identityHashCode(config), uri, text, encoding, accept, acceptLanguage);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return config == other.config
+                    && text == other.text
+                    && uri.equals(other.uri)
+                    && Objects.equals(encoding, other.encoding)
+                    && Objects.equals(accept, other.accept)
+                    && Objects.equals(acceptLanguage, other.acceptLanguage);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class CacheEntry {
+        private final XdmNode document;
+        private final long weight;
+        private volatile long lastAccess;
+        private final File file;
+        private final long lastModified;
+        private final long length;
+
+        CacheEntry(XdmNode document, long weight, long lastAccess, File file) {
+            this.document = document;
+            this.weight = weight;
+            this.lastAccess = lastAccess;
+            this.file = file;
+            lastModified = file == null ? 0 : file.lastModified();
+            length = file == null ? 0 : file.length();
+        }
+    }
+
+    private static class Candidate {
+        private final CacheKey key;
+        private final CacheEntry entry;
+        private final long lastAccess;
+
+        Candidate(CacheKey key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+            lastAccess = entry.lastAccess;
+        }
+    }
+}
@@ -3,10 +3,18 @@ package com.nwalsh.sinclude;
 import com.nwalsh.sinclude.exceptions.TextContentException;
 import com.nwalsh.sinclude.exceptions.XIncludeException;
 import com.nwalsh.sinclude.exceptions.XIncludeIOException;
+import com.nwalsh.sinclude.utils.ExecutorUtils;
 import com.nwalsh.sinclude.utils.ReceiverUtils;
 import net.sf.saxon.Configuration;
+import net.sf.saxon.event.Builder;
+import net.sf.saxon.event.PipelineConfiguration;
 import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.Sender;
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.lib.StandardUnparsedTextResolver;
 import net.sf.saxon.lib.UnparsedTextURIResolver;
+import net.sf.saxon.lib.Validation;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.s9api.*;
 import net.sf.saxon.trans.XPathException;
 import org.xml.sax.InputSource;
@@ -14,17 +22,68 @@ import org.xml.sax.InputSource;
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.sax.SAXSource;
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+public class DefaultDocumentResolver implements AsyncDocumentResolver, TextRangeResolver, PartialXmlResolver {
+    // Files at least this big are memory mapped rather than read
+    private static final long MAPPING_THRESHOLD = 1024 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Executor executor;
+    private File indexDirectory = null;
+
+    public DefaultDocumentResolver() {
+        executor = null;
+    }
+
+    // Asynchronous requests run on the executor; by default, on the shared I/O executor
+    public DefaultDocumentResolver(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor == null ? ExecutorUtils.ioExecutor() : executor;
+    }
+
+    // Where the line checkpoints for large text files are saved; by default (null), they're
+    // only kept in memory
+    public File getIndexDirectory() {
+        return indexDirectory;
+    }
+
+    public void setIndexDirectory(File directory) {
+        indexDirectory = directory;
+    }
+
+    @Override
+    public CompletableFuture<XdmNode> resolveXmlAsync(XdmNode base, String uri, String accept, String acceptLanguage) {
+        return CompletableFuture.supplyAsync(() -> resolveXml(base, uri, accept, acceptLanguage), getExecutor());
+    }
+
+    @Override
+    public CompletableFuture<XdmNode> resolveTextAsync(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+        return CompletableFuture.supplyAsync(() -> resolveText(base, uri, encoding, accept, acceptLanguage), getExecutor());
+    }
 
-public class DefaultDocumentResolver implements DocumentResolver {
     @Override
     public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
         Processor processor = base.getProcessor();
@@ -34,26 +93,62 @@ public class DefaultDocumentResolver implements DocumentResolver {
         builder.setLineNumbering(true);
 
         try {
-            Configuration underlyingConfig = processor.getUnderlyingConfiguration();
-            Source source;
-            try {
-                Method getResourceResolver = Configuration.class.getMethod("getResourceResolver");
-                source = resolveSaxon11(base, uri, underlyingConfig, getResourceResolver);
-            } catch (NoSuchMethodException ex) {
-                source = resolveSaxon10(base, uri, underlyingConfig);
-            }
-
-            if (source == null) {
-                String systemId = base.getBaseURI().resolve(uri).toASCIIString();
-                return builder.build(new SAXSource(new InputSource(systemId)));
-            } else {
-                return builder.build(source);
-            }
+            return builder.build(xmlSource(base, uri));
         } catch (SaxonApiException e) {
             throw new XIncludeIOException(uri, e);
         }
     }
 
+    // The document is built exactly as resolveXml() would build it, except that only the events
+    // the IdSubtreeFilter passes on reach the tree, and the parse ends with the element
+    @Override
+    public XdmNode resolveXmlId(XdmNode base, String uri, String accept, String acceptLanguage, String id) {
+        Configuration config = base.getProcessor().getUnderlyingConfiguration();
+        ParseOptions options = config.getParseOptions();
+        int validation = options.getDTDValidationMode();
+        if (validation == Validation.STRICT || validation == Validation.LAX) {
+            // Validation needs the whole document
+            return null;
+        }
+
+        Source source = xmlSource(base, uri);
+        PipelineConfiguration pipe = config.makePipelineConfiguration();
+        Builder builder = TreeModel.TINY_TREE.makeBuilder(pipe);
+        builder.setLineNumbering(true);
+        builder.setPipelineConfiguration(pipe);
+        builder.setSystemId(source.getSystemId());
+
+        IdSubtreeFilter filter = new IdSubtreeFilter(builder, id);
+        try {
+            Sender.send(source, filter, options);
+        } catch (XPathException e) {
+            if (!filter.isFinished()) {
+                throw new XIncludeIOException(uri, e);
+            }
+        } finally {
+            ParseOptions.close(source);
+        }
+
+        return filter.isFinished() ? new XdmNode(builder.getCurrentRoot()) : null;
+    }
+
+    private Source xmlSource(XdmNode base, String uri) {
+        Configuration underlyingConfig = base.getProcessor().getUnderlyingConfiguration();
+        Source source;
+        try {
+            Method getResourceResolver = Configuration.class.getMethod("getResourceResolver");
+            source = resolveSaxon11(base, uri, underlyingConfig, getResourceResolver);
+        } catch (NoSuchMethodException ex) {
+            source = resolveSaxon10(base, uri, underlyingConfig);
+        }
+
+        if (source == null) {
+            String systemId = base.getBaseURI().resolve(uri).toASCIIString();
+            return new SAXSource(new InputSource(systemId));
+        }
+        return source;
+    }
+
     private Source resolveSaxon11(XdmNode base, String uri, Configuration underlyingConfig, Method getResourceResolver) {
         try {
             Object resolver = getResourceResolver.invoke(underlyingConfig);
@@ -101,42 +196,178 @@ public class DefaultDocumentResolver implements DocumentResolver {
         Processor processor = base.getProcessor();
         UnparsedTextURIResolver resolver = processor.getUnderlyingConfiguration().getUnparsedTextURIResolver();
         try {
-            Reader reader = resolver.resolve(base.getBaseURI().resolve(uri), encoding, processor.getUnderlyingConfiguration());
-            BufferedReader breader = new BufferedReader(reader);
+            URI absolute = base.getBaseURI().resolve(uri);
+            String text;
+            if ("file".equals(absolute.getScheme()) && resolver.getClass() == StandardUnparsedTextResolver.class) {
+                text = readFile(new File(absolute), encoding);
+            } else {
+                text = read(resolver.resolve(absolute, encoding, processor.getUnderlyingConfiguration()));
+            }
+            return textDocument(base, uri, text);
+        } catch (TransformerException | IOException | IllegalArgumentException e) {
+            throw new XIncludeIOException(uri, e);
+        }
+    }
+
+    @Override
+    public XdmNode resolveTextRange(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextRange range) {
+        return resolveTextSelection(base, uri, encoding, accept, acceptLanguage, range);
+    }
+
+    @Override
+    public XdmNode resolveTextSelection(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextSelector selector) {
+        try {
+            if (uri == null || "".equals(uri)) {
+                XdmNode document = resolveText(base, uri, encoding, accept, acceptLanguage);
+                String text = selector.select(new StringReader(document.getStringValue()));
+                return text == null ? null : ReceiverUtils.makeTextDocument(document, text);
+            }
+
+            Processor processor = base.getProcessor();
+            UnparsedTextURIResolver resolver = processor.getUnderlyingConfiguration().getUnparsedTextURIResolver();
+            URI absolute = base.getBaseURI().resolve(uri);
+            String text;
+            if ("file".equals(absolute.getScheme()) && resolver.getClass() == StandardUnparsedTextResolver.class) {
+                text = readFileSelection(new File(absolute), encoding, selector);
+            } else {
+                try (Reader reader = resolver.resolve(absolute, encoding, processor.getUnderlyingConfiguration())) {
+                    text = selector.select(reader);
+                }
+            }
+            return text == null ? null : textDocument(base, uri, text);
+        } catch (TransformerException | IOException | IllegalArgumentException e) {
+            throw new XIncludeIOException(uri, e);
+        }
+    }
+
+    private XdmNode textDocument(XdmNode base, String uri, String text) {
+        URI baseURI = ReceiverUtils.nodeBaseURI(base);
+        if (baseURI != null) {
+            baseURI = baseURI.resolve(uri);
+        } else {
+            try {
+                baseURI = new URI(uri);
+            } catch (URISyntaxException e) {
+                throw new XIncludeIOException(e.getMessage(), e);
+            }
+        }
+
+        XdmDestination destination = new XdmDestination();
+        try {
+            Receiver receiver = ReceiverUtils.makeReceiver(base, destination, baseURI);
+            receiver.startDocument(0);
+            ReceiverUtils.handleCharacters(receiver, text);
+            receiver.endDocument();
+            receiver.close();
+            return destination.getXdmNode();
+        } catch (XPathException e) {
+            throw new TextContentException(e);
+        }
+    }
+
+    // Reads the whole text, exactly as it is
+    private String read(Reader reader) throws IOException {
+        try {
             StringBuilder text = new StringBuilder();
-            String line = breader.readLine();
-            while (line != null) {
-                text.append(line).append("\n");
-                line = breader.readLine();
+            char[] buffer = new char[BUFFER_SIZE];
+            int count = reader.read(buffer);
+            while (count >= 0) {
+                text.append(buffer, 0, count);
+                count = reader.read(buffer);
             }
-            breader.close();
+            return text.toString();
+        } finally {
             reader.close();
+        }
+    }
+
+    // Local files are decoded in a single pass straight from the file system buffers (memory
+    // mapped, if the file is large). A byte order mark takes precedence over the encoding.
+    private String readFile(File file, String encoding) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Text file is too large to include: " + file);
+            }
 
-            URI baseURI = ReceiverUtils.nodeBaseURI(base);
-            if (baseURI != null) {
-                baseURI = baseURI.resolve(uri);
+            ByteBuffer bytes;
+            if (size >= MAPPING_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
             } else {
-                try {
-                    baseURI = new URI(uri);
-                } catch (URISyntaxException e) {
-                    throw new XIncludeIOException(e.getMessage(), e);
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                    // keep reading
                 }
+                bytes.flip();
             }
 
-            XdmDestination destination = new XdmDestination();
-            try {
-                Receiver receiver = ReceiverUtils.makeReceiver(base, destination, baseURI);
-                receiver.startDocument(0);
-                ReceiverUtils.handleCharacters(receiver, text.toString());
-                receiver.endDocument();
-                receiver.close();
-                return destination.getXdmNode();
-            } catch (XPathException e) {
-                throw new TextContentException(e);
+            Charset charset = byteOrderMark(bytes);
+            if (charset == null) {
+                charset = Charset.forName(encoding == null ? "UTF-8" : encoding);
             }
-        } catch (TransformerException | IOException e) {
-            throw new XIncludeIOException(uri, e);
+
+            CharsetDecoder decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            return decoder.decode(bytes).toString();
+        }
+    }
+
+    // Reads only as far as the selector requires. Ranges in large files in UTF-8 (or a single byte
+    // encoding) start at the last line checkpoint before them, and record the checkpoints they pass.
+    private String readFileSelection(File file, String encoding, TextSelector selector) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(3);
+            while (head.hasRemaining() && channel.read(head) >= 0) {
+                // keep reading
+            }
+            head.flip();
+
+            Charset charset = byteOrderMark(head);
+            if (charset == null) {
+                charset = Charset.forName(encoding == null ? "UTF-8" : encoding);
+            }
+            long start = head.position();
+
+            CharsetDecoder decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+            boolean utf8 = StandardCharsets.UTF_8.equals(charset);
+            if (!(selector instanceof TextRange) || channel.size() < LineCheckpoints.INTERVAL
+                    || !(utf8 || StandardCharsets.US_ASCII.equals(charset) || StandardCharsets.ISO_8859_1.equals(charset))) {
+                channel.position(start);
+                return selector.select(Channels.newReader(channel, decoder, -1));
+            }
+
+            TextRange range = (TextRange) selector;
+            LineCheckpoints checkpoints = LineCheckpoints.forFile(file, charset, start, indexDirectory);
+            LineCheckpoints.Checkpoint checkpoint = checkpoints.before(range.isLineRange(), Math.max(range.getStart(), 0));
+            channel.position(checkpoint.bytes);
+            TextRangeReader reader = new TextRangeReader(Channels.newReader(channel, decoder, -1), checkpoint, checkpoints, utf8);
+            String text = reader.select(range);
+            checkpoints.save();
+            return text;
+        }
+    }
+
+    // Skips the byte order mark, if there is one, and returns the encoding it identifies
+    private Charset byteOrderMark(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        int pos = bytes.position();
+        if (length >= 3 && (bytes.get(pos) & 0xFF) == 0xEF && (bytes.get(pos + 1) & 0xFF) == 0xBB && (bytes.get(pos + 2) & 0xFF) == 0xBF) {
+            bytes.position(pos + 3);
+            return StandardCharsets.UTF_8;
+        }
+        if (length >= 2 && (bytes.get(pos) & 0xFF) == 0xFE && (bytes.get(pos + 1) & 0xFF) == 0xFF) {
+            bytes.position(pos + 2);
+            return StandardCharsets.UTF_16BE;
+        }
+        if (length >= 2 && (bytes.get(pos) & 0xFF) == 0xFF && (bytes.get(pos + 1) & 0xFF) == 0xFE) {
+            bytes.position(pos + 2);
+            return StandardCharsets.UTF_16LE;
         }
+        return null;
     }
 
     private XdmNode resolveSameDocumentText(XdmNode base, String encoding, String accept, String acceptLanguage) {
@@ -0,0 +1,16 @@
+package com.nwalsh.sinclude;
+
+// What happened during a single expansion. Pass one to XInclude.expandXIncludes(); it's filled
+// in when the expansion finishes, so concurrent expansions by the same XInclude each get their own.
+public class ExpansionStatistics {
+    private int memoizedIncludes = 0;
+
+    // The number of includes that were satisfied from the memo table
+    public int getMemoizedIncludeCount() {
+        return memoizedIncludes;
+    }
+
+    void setMemoizedIncludeCount(int count) {
+        memoizedIncludes = count;
+    }
+}
@@ -0,0 +1,117 @@
+package com.nwalsh.sinclude;
+
+import net.sf.saxon.event.ProxyReceiver;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.Sink;
+import net.sf.saxon.om.AttributeInfo;
+import net.sf.saxon.om.AttributeMap;
+import net.sf.saxon.om.NamespaceMap;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.value.Whitespace;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Passes on only the first element with a given ID, its content, and its ancestors' start and
+// end tags. Until the element is found, the start tags of the open elements are held back; when
+// it's found, they're written, followed by the element. When the element ends, the ancestors
+// are closed, the document is ended, and the parse is abandoned by throwing an exception.
+// Outside the element, everything else goes to a sink.
+class IdSubtreeFilter extends ProxyReceiver {
+    private static final String NS_XML = "http://www.w3.org/XML/1998/namespace";
+    private final Receiver builder;
+    private final String id;
+    private final ArrayDeque<StartTag> ancestors = new ArrayDeque<>();
+    private int depth = 0;
+    private boolean finished = false;
+
+    IdSubtreeFilter(Receiver next, String id) {
+        super(next);
+        builder = next;
+        this.id = id;
+    }
+
+    // True if the element was found and the document ended after it
+    boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public void startDocument(int properties) throws XPathException {
+        super.startDocument(properties);
+        setUnderlyingReceiver(new Sink(getPipelineConfiguration()));
+    }
+
+    @Override
+    public void startElement(NodeName elemName, SchemaType type, AttributeMap attributes, NamespaceMap namespaces, Location location, int properties) throws XPathException {
+        if (depth == 0 && !identified(attributes)) {
+            ancestors.push(new StartTag(elemName, type, attributes, namespaces, location.saveLocation(), properties));
+            return;
+        }
+
+        if (depth == 0) {
+            setUnderlyingReceiver(builder);
+            Iterator<StartTag> iter = ancestors.descendingIterator();
+            while (iter.hasNext()) {
+                StartTag tag = iter.next();
+                nextReceiver.startElement(tag.name, tag.type, tag.attributes, tag.namespaces, tag.location, tag.properties);
+            }
+        }
+        depth++;
+        nextReceiver.startElement(elemName, type, attributes, namespaces, location, properties);
+    }
+
+    @Override
+    public void endElement() throws XPathException {
+        if (depth == 0) {
+            ancestors.pop();
+            return;
+        }
+
+        nextReceiver.endElement();
+        depth--;
+        if (depth == 0) {
+            for (int count = 0; count < ancestors.size(); count++) {
+                nextReceiver.endElement();
+            }
+            nextReceiver.endDocument();
+            nextReceiver.close();
+            finished = true;
+            throw new XPathException("Stopped parsing after the element with ID " + id);
+        }
+    }
+
+    // An xml:id attribute, or one the DTD declares as an ID, with the value we're looking for
+    private boolean identified(AttributeMap attributes) {
+        for (AttributeInfo attribute : attributes) {
+            NodeName name = attribute.getNodeName();
+            if (attribute.isId() || (NS_XML.equals(name.getURI()) && "id".equals(name.getLocalPart()))) {
+                if (id.equals(Whitespace.trim(attribute.getValue()))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class StartTag {
+        private final NodeName name;
+        private final SchemaType type;
+        private final AttributeMap attributes;
+        private final NamespaceMap namespaces;
+        private final Location location;
+        private final int properties;
+
+        private StartTag(NodeName name, SchemaType type, AttributeMap attributes, NamespaceMap namespaces, Location location, int properties) {
+            this.name = name;
+            this.type = type;
+            this.attributes = attributes;
+            this.namespaces = namespaces;
+            this.location = location;
+            this.properties = properties;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.xpointer.ParseType;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// Loads the documents an expansion is going to need before the walker gets to them. Each
+// document included whole is scanned for xi:include elements as soon as it's available, and the
+// resources they refer to are loaded in the background. (A document included with a pointer
+// isn't scanned; only the part that's selected is going to be walked.) At most limit documents
+// are loading or loaded and waiting for the walker at a time, and a document is forgotten as soon
+// as the walker takes it, so the prefetcher never holds more than limit documents. A load is
+// shared by every xi:include that asks for the same resource (absolute URI, parse type, and
+// headers) before the walker takes it. When the walker reaches an xi:include whose load is
+// still waiting, it's started at once. Cancelling the prefetcher abandons everything outstanding.
+class IncludePrefetcher {
+    private static final String NS_XINCLUDE = "http://www.w3.org/2001/XInclude";
+    private static final QName xi_include = new QName(NS_XINCLUDE, "include");
+    private static final QName _href = new QName("", "href");
+    private static final QName _parse = new QName("", "parse");
+    private static final QName _xpointer = new QName("", "xpointer");
+    private static final QName _fragid = new QName("", "fragid");
+    private static final QName _encoding = new QName("", "encoding");
+    private static final QName _accept = new QName("", "accept");
+    private static final QName _accept_language = new QName("", "accept-language");
+    // A shorthand pointer, or element(id) or element(id/n/...)
+    private static final Pattern idPointer = Pattern.compile("^\\s*(element\\([^\\s/()^]+(/[^)]*)?\\)|[^\\s/()^]+)\\s*$");
+
+    private final AsyncDocumentResolver resolver;
+    private final int limit;
+    private final NegativeResolutionCache negativeCache;
+    private final boolean textRanges;
+    private final boolean elementIds;
+    private final ConcurrentHashMap<List<Object>, Request> requests = new ConcurrentHashMap<>();
+    // The resources the walker has taken; each one is only prefetched once
+    private final Set<List<Object>> taken = ConcurrentHashMap.newKeySet();
+    private final Set<XdmNode> scanned = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+    private int running = 0;
+    private volatile boolean cancelled = false;
+
+    // If textRanges is true, text includes with a fragment identifier are left to the walker,
+    // which may only have to read part of the text. If elementIds is true, so are XML includes
+    // whose pointer might be an element() pointer that starts with an ID, which may only have
+    // to parse part of the document.
+    IncludePrefetcher(AsyncDocumentResolver resolver, int limit, NegativeResolutionCache negativeCache, boolean textRanges, boolean elementIds) {
+        this.resolver = resolver;
+        this.limit = limit;
+        this.negativeCache = negativeCache;
+        this.textRanges = textRanges;
+        this.elementIds = elementIds;
+    }
+
+    // Requests the resources for the xi:include elements in document (but not the ones in fallbacks)
+    void scan(XdmNode document) {
+        if (cancelled || !scanned.add(document)) {
+            return;
+        }
+
+        XdmSequenceIterator<XdmNode> iter = document.axisIterator(Axis.DESCENDANT_OR_SELF, xi_include);
+        while (iter.hasNext()) {
+            XdmNode xinclude = iter.next();
+            if (!xinclude.axisIterator(Axis.ANCESTOR, xi_include).hasNext()) {
+                request(xinclude);
+            }
+        }
+    }
+
+    // Takes the load for a resource, if it's been requested. The prefetcher forgets it, so the
+    // next xi:include that needs the resource loads it again.
+    CompletableFuture<XdmNode> lookup(ParseType parse, XdmNode xinclude, String href, String encoding, String accept, String accept_lang) {
+        List<Object> key = key(parse, xinclude, href, encoding, accept, accept_lang);
+        Request request = key == null ? null : requests.remove(key);
+        if (request == null) {
+            return null;
+        }
+        taken.add(key);
+        start(request, false);
+        boolean counted;
+        synchronized (this) {
+            counted = request.counted;
+            request.counted = false;
+        }
+        if (counted) {
+            // The walker holds the document now
+            finished();
+        }
+        return request.document;
+    }
+
+    // Abandons the loads that haven't been taken and doesn't start any more
+    void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            waiting.clear();
+            for (Request request : requests.values()) {
+                request.started = true;
+            }
+        }
+        for (Request request : requests.values()) {
+            CompletableFuture<XdmNode> load = request.load;
+            if (load != null) {
+                load.cancel(false);
+            }
+            request.document.cancel(false);
+        }
+        requests.clear();
+        scanned.clear();
+    }
+
+    // Has the resource been requested (whether or not its load has started)?
+    boolean isRequested(ParseType parse, XdmNode xinclude, String href, String encoding, String accept, String accept_lang) {
+        List<Object> key = key(parse, xinclude, href, encoding, accept, accept_lang);
+        return key != null && requests.containsKey(key);
+    }
+
+    private void request(XdmNode xinclude) {
+        String href = xinclude.getAttributeValue(_href);
+        String encoding = xinclude.getAttributeValue(_encoding);
+        String accept = xinclude.getAttributeValue(_accept);
+        String accept_lang = xinclude.getAttributeValue(_accept_language);
+        ParseType parse = XInclude.parseType(xinclude.getAttributeValue(_parse));
+
+        // Same-document references and anything the handler is going to reject are left alone
+        if (cancelled || href == null || href.trim().isEmpty() || parse == ParseType.NOPARSE
+                || (accept != null && accept.matches(".*[^\u0020-\u007e].*"))
+                || (accept_lang != null && accept_lang.matches(".*[^\u0020-\u007e].*"))) {
+            return;
+        }
+
+        if (parse == ParseType.TEXTPARSE && textRanges
+                && (xinclude.getAttributeValue(_xpointer) != null || xinclude.getAttributeValue(_fragid) != null)) {
+            return;
+        }
+
+        if (parse == ParseType.XMLPARSE && elementIds) {
+            String xptr = xinclude.getAttributeValue(_xpointer);
+            if (xptr == null) {
+                xptr = xinclude.getAttributeValue(_fragid);
+            }
+            if (xptr != null && idPointer.matcher(xptr).matches()) {
+                return;
+            }
+        }
+
+        href = href.trim();
+        if (parse == ParseType.XMLPARSE) {
+            encoding = null;
+        } else if (encoding == null) {
+            encoding = "UTF-8";
+        }
+
+        List<Object> key = key(parse, xinclude, href, encoding, accept, accept_lang);
+        if (key == null || taken.contains(key)
+                || (negativeCache != null && negativeCache.isKnownFailure((URI) key.get(1), parse, encoding, accept, accept_lang))) {
+            return;
+        }
+
+        boolean whole = xinclude.getAttributeValue(_xpointer) == null && xinclude.getAttributeValue(_fragid) == null;
+        Request request = new Request(parse, xinclude, href, encoding, accept, accept_lang, whole);
+        if (requests.putIfAbsent(key, request) == null) {
+            schedule(request);
+        }
+    }
+
+    private List<Object> key(ParseType parse, XdmNode xinclude, String href, String encoding, String accept, String accept_lang) {
+        if (href == null || href.isEmpty()) {
+            return null;
+        }
+
+        URI absolute = XInclude.absoluteURI(xinclude, href);
+        if (absolute == null) {
+            return null;
+        }
+
+        return Arrays.asList(parse, absolute, encoding, accept, accept_lang);
+    }
+
+    private void schedule(Request request) {
+        synchronized (this) {
+            if (running >= limit) {
+                waiting.add(request);
+                return;
+            }
+            running++;
+        }
+        if (!start(request, true)) {
+            finished();
+        }
+    }
+
+    // Frees a slot, giving it to the next request that hasn't already been started on demand or taken
+    private void finished() {
+        while (true) {
+            Request next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+            }
+            if (!cancelled && start(next, true)) {
+                return;
+            }
+        }
+    }
+
+    // A counted request holds its slot until the walker takes the document (or it's cancelled)
+    private boolean start(Request request, boolean counted) {
+        synchronized (this) {
+            if (request.started) {
+                return false;
+            }
+            request.started = true;
+            request.counted = counted;
+        }
+
+        // The include expands the document; an installed filter mustn't expand it as it's parsed
+        Configuration config = request.xinclude.getUnderlyingNode().getConfiguration();
+        URI loading = request.parse == ParseType.XMLPARSE ? XInclude.absoluteURI(request.xinclude, request.href) : null;
+        ActiveLoads.started(config, loading);
+
+        CompletableFuture<XdmNode> load;
+        try {
+            if (request.parse == ParseType.XMLPARSE) {
+                load = resolver.resolveXmlAsync(request.xinclude, request.href, request.accept, request.accept_lang);
+            } else {
+                load = resolver.resolveTextAsync(request.xinclude, request.href, request.encoding, request.accept, request.accept_lang);
+            }
+        } catch (RuntimeException ex) {
+            load = new CompletableFuture<>();
+            load.completeExceptionally(ex);
+        }
+
+        request.load = load;
+        load.whenComplete((document, ex) -> {
+            ActiveLoads.finished(config, loading);
+            if (ex != null) {
+                request.document.completeExceptionally(ex);
+            } else {
+                request.document.complete(document);
+                if (document != null && request.parse == ParseType.XMLPARSE && request.whole) {
+                    scan(document);
+                }
+            }
+        });
+        return true;
+    }
+
+    private static class Request {
+        private final ParseType parse;
+        private final XdmNode xinclude;
+        private final String href;
+        private final String encoding;
+        private final String accept;
+        private final String accept_lang;
+        private final boolean whole;
+        // Guarded by the prefetcher
+        private boolean started = false;
+        private boolean counted = false;
+        private final CompletableFuture<XdmNode> document = new CompletableFuture<>();
+        private volatile CompletableFuture<XdmNode> load = null;
+
+        Request(ParseType parse, XdmNode xinclude, String href, String encoding, String accept, String accept_lang, boolean whole) {
+            this.parse = parse;
+            this.xinclude = xinclude;
+            this.href = href;
+            this.encoding = encoding;
+            this.accept = accept;
+            this.accept_lang = accept_lang;
+            this.whole = whole;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.nwalsh.sinclude;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A sparse index of the line starts in a large text file: every INTERVAL bytes or so, the line
+// number, character offset, and byte offset of the next line start (and where the content seen
+// so far ends, see TextRangeReader). A read can seek to the last checkpoint before the range it
+// wants instead of decoding everything in front of it. Checkpoints are recorded as files are
+// read and, if there's an index directory, saved there so they outlive the process; they're
+// discarded when the file's length or modification time changes, and a saved index is only
+// used if every checkpoint in it still falls at the start of a line.
+class LineCheckpoints {
+    static final long INTERVAL = 1024 * 1024;
+    static final int MAXIMUM_INDEXES = 64;
+    private static final String MAGIC = "sinclude-line-checkpoints-1";
+    private static final Map<String, LineCheckpoints> indexes = new LinkedHashMap<String, LineCheckpoints>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LineCheckpoints> eldest) {
+            return size() > MAXIMUM_INDEXES;
+        }
+    };
+
+    private final File file;
+    private final String charset;
+    private final long length;
+    private final long lastModified;
+    private final File indexFile;
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+    private boolean changed = false;
+
+    private LineCheckpoints(File file, Charset charset, long start, File directory) {
+        this.file = file;
+        this.charset = charset.name();
+        length = file.length();
+        lastModified = file.lastModified();
+        indexFile = directory == null ? null : new File(directory, digest(file.getPath() + "\u0000" + this.charset) + ".idx");
+        checkpoints.add(new Checkpoint(0, 0, start, -1, -1));
+    }
+
+    // The checkpoints for file, read with charset; start is the byte offset of the first character
+    static LineCheckpoints forFile(File file, Charset charset, long start, File directory) {
+        String key = file.getAbsolutePath() + "\u0000" + charset.name() + "\u0000" + directory;
+        synchronized (indexes) {
+            LineCheckpoints index = indexes.get(key);
+            if (index == null || index.length != file.length() || index.lastModified != file.lastModified()) {
+                index = new LineCheckpoints(file.getAbsoluteFile(), charset, start, directory);
+                index.load();
+                indexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    // The last checkpoint at or before the line (or character) position
+    synchronized Checkpoint before(boolean lines, long position) {
+        Checkpoint found = checkpoints.get(0);
+        for (Checkpoint checkpoint : checkpoints) {
+            if ((lines ? checkpoint.line : checkpoint.chars) > position) {
+                break;
+            }
+            found = checkpoint;
+        }
+        return found;
+    }
+
+    // Reads always record the same checkpoints, so only the ones past the end are new
+    synchronized void add(Checkpoint checkpoint) {
+        if (checkpoint.bytes > checkpoints.get(checkpoints.size() - 1).bytes) {
+            checkpoints.add(checkpoint);
+            changed = true;
+        }
+    }
+
+    synchronized int size() {
+        return checkpoints.size();
+    }
+
+    synchronized void save() {
+        if (!changed || indexFile == null) {
+            return;
+        }
+        changed = false;
+
+        try {
+            Path dir = indexFile.getParentFile().toPath();
+            if (!Files.isDirectory(dir)) {
+                // The index reveals what was read, so only the owner may see it
+                if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                    Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                } else {
+                    File created = Files.createDirectories(dir).toFile();
+                    created.setReadable(false, false);
+                    created.setWritable(false, false);
+                    created.setExecutable(false, false);
+                    created.setReadable(true, true);
+                    created.setWritable(true, true);
+                    created.setExecutable(true, true);
+                }
+            }
+            File temp = Files.createTempFile(dir, "lines", ".tmp").toFile();
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+                out.writeUTF(MAGIC);
+                out.writeUTF(file.getPath());
+                out.writeUTF(charset);
+                out.writeLong(length);
+                out.writeLong(lastModified);
+                out.writeInt(checkpoints.size());
+                for (Checkpoint checkpoint : checkpoints) {
+                    out.writeLong(checkpoint.line);
+                    out.writeLong(checkpoint.chars);
+                    out.writeLong(checkpoint.bytes);
+                    out.writeLong(checkpoint.lastContentLine);
+                    out.writeLong(checkpoint.lastContentEnd);
+                }
+            }
+            Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            // The index is only an optimization; it'll be rebuilt the next time
+        }
+    }
+
+    private void load() {
+        if (indexFile == null || !indexFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+            if (!MAGIC.equals(in.readUTF()) || !file.getPath().equals(in.readUTF()) || !charset.equals(in.readUTF())
+                    || in.readLong() != length || in.readLong() != lastModified) {
+                return;
+            }
+            List<Checkpoint> saved = new ArrayList<>();
+            int count = in.readInt();
+            for (int pos = 0; pos < count; pos++) {
+                saved.add(new Checkpoint(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+            }
+            if (!saved.isEmpty() && saved.get(0).bytes == checkpoints.get(0).bytes && lineStarts(saved)) {
+                checkpoints.clear();
+                checkpoints.addAll(saved);
+            }
+        } catch (IOException ex) {
+            // Unreadable or stale; ignore it
+        }
+    }
+
+    // The length and modification time can be the same for different content, so check that
+    // each checkpoint still follows a newline. Checkpoints are only kept for encodings where
+    // a newline is the single byte 0x0A.
+    private boolean lineStarts(List<Checkpoint> saved) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long last = saved.get(0).bytes;
+            for (int pos = 1; pos < saved.size(); pos++) {
+                long bytes = saved.get(pos).bytes;
+                if (bytes <= last || bytes > length) {
+                    return false;
+                }
+                raf.seek(bytes - 1);
+                if (raf.read() != '\n') {
+                    return false;
+                }
+                last = bytes;
+            }
+        }
+        return true;
+    }
+
+    private static String digest(String name) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return new BigInteger(1, md.digest(name.getBytes(StandardCharsets.UTF_8))).toString(16);
+        } catch (NoSuchAlgorithmException ex) {
+            return Integer.toHexString(name.hashCode());
+        }
+    }
+
+    static class Checkpoint {
+        final long line;
+        final long chars;
+        final long bytes;
+        final long lastContentLine;
+        final long lastContentEnd;
+
+        Checkpoint(long line, long chars, long bytes, long lastContentLine, long lastContentEnd) {
+            this.line = line;
+            this.chars = chars;
+            this.bytes = bytes;
+            this.lastContentLine = lastContentLine;
+            this.lastContentEnd = lastContentEnd;
+        }
+    }
+}
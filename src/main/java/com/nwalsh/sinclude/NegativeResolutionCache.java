@@ -0,0 +1,200 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.exceptions.XIncludeIOException;
+import com.nwalsh.sinclude.xpointer.ParseType;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.CharacterCodingException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Remembers the resources (absolute URI, parse type, encoding, and accept headers) that the
+// resolver failed to load, so that an xi:include with a fallback can go straight to the fallback
+// the next time, without asking the resolver (and waiting for it to fail) again. Only failures
+// to get at the resource are remembered (see isResolutionFailure), not resources that were read
+// but couldn't be parsed or decoded. Failures are forgotten after the
+// time to live. If checkFileSystem is true, a failure to load a file: URI is also forgotten
+// as soon as the file's modification time changes (for example, because it's been created).
+// A single instance can be shared by any number of XInclude processors and threads.
+
+public class NegativeResolutionCache {
+    public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(1);
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private final long timeToLive;
+    private final int maximumSize;
+    private boolean checkFileSystem = false;
+    private final ConcurrentHashMap<FailureKey, Failure> failures = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong(0);
+
+    public NegativeResolutionCache() {
+        this(DEFAULT_TIME_TO_LIVE);
+    }
+
+    public NegativeResolutionCache(long timeToLive) {
+        this(timeToLive, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    // The time to live is in milliseconds
+    public NegativeResolutionCache(long timeToLive, int maximumSize) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("The time to live must not be negative");
+        }
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size must be at least 1");
+        }
+        this.timeToLive = timeToLive;
+        this.maximumSize = maximumSize;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public boolean getCheckFileSystem() {
+        return checkFileSystem;
+    }
+
+    public void setCheckFileSystem(boolean check) {
+        checkFileSystem = check;
+    }
+
+    public int size() {
+        return failures.size();
+    }
+
+    // The number of lookups that found a recent failure
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public void clear() {
+        failures.clear();
+    }
+
+    public void invalidate(URI uri) {
+        String key = uri.toString();
+        failures.keySet().removeIf(failure -> failure.uri.equals(key));
+    }
+
+    // True if the exception means the resource couldn't be read at all: an I/O error (such as
+    // a missing file or an unknown host) or a resolver's own report that it couldn't find it
+    public static boolean isResolutionFailure(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CharacterCodingException) {
+                return false;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return ex instanceof XIncludeIOException && ex.getCause() == null;
+    }
+
+    public boolean isKnownFailure(URI uri, ParseType parse, String encoding, String accept, String acceptLanguage) {
+        FailureKey key = new FailureKey(uri.toString(), parse, encoding, accept, acceptLanguage);
+        Failure failure = failures.get(key);
+        if (failure == null) {
+            return false;
+        }
+
+        if (System.nanoTime() - failure.time > TimeUnit.MILLISECONDS.toNanos(timeToLive)
+                || (failure.file != null && failure.file.lastModified() != failure.lastModified)) {
+            failures.remove(key, failure);
+            return false;
+        }
+
+        hits.incrementAndGet();
+        return true;
+    }
+
+    public void recordFailure(URI uri, ParseType parse, String encoding, String accept, String acceptLanguage) {
+        if (failures.size() >= maximumSize) {
+            purge();
+        }
+
+        File file = null;
+        if (checkFileSystem && "file".equals(uri.getScheme())) {
+            try {
+                file = new File(uri);
+            } catch (IllegalArgumentException ex) {
+                // Not a file we can watch; it'll just have to expire
+            }
+        }
+        failures.put(new FailureKey(uri.toString(), parse, encoding, accept, acceptLanguage), new Failure(System.nanoTime(), file));
+    }
+
+    private void purge() {
+        long now = System.nanoTime();
+        for (Map.Entry<FailureKey, Failure> entry : failures.entrySet()) {
+            if (now - entry.getValue().time > TimeUnit.MILLISECONDS.toNanos(timeToLive)) {
+                failures.remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // If they're all recent, there's no way to tell which ones are worth keeping
+        if (failures.size() >= maximumSize) {
+            failures.clear();
+        }
+    }
+
+    private static class FailureKey {
+        private final String uri;
+        private final ParseType parse;
+        private final String encoding;
+        private final String accept;
+        private final String acceptLanguage;
+
+        FailureKey(String uri, ParseType parse, String encoding, String accept, String acceptLanguage) {
+            this.uri = uri;
+            this.parse = parse;
+            // The encoding only matters for text, and text is read as UTF-8 if there isn't one
+            if (parse == ParseType.TEXTPARSE) {
+                this.encoding = encoding == null ? "UTF-8" : encoding;
+            } else {
+                this.encoding = null;
+            }
+            this.accept = accept;
+            this.acceptLanguage = acceptLanguage;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FailureKey)) {
+                return false;
+            }
+            FailureKey other = (FailureKey) obj;
+            return parse == other.parse
+                    && uri.equals(other.uri)
+                    && Objects.equals(encoding, other.encoding)
+                    && Objects.equals(accept, other.accept)
+                    && Objects.equals(acceptLanguage, other.acceptLanguage);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uri, parse, encoding, accept, acceptLanguage);
+        }
+    }
+
+    private static class Failure {
+        private final long time;
+        private final File file;
+        private final long lastModified;
+
+        Failure(long time, File file) {
+            this.time = time;
+            this.file = file;
+            lastModified = file == null ? 0 : file.lastModified();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.nwalsh.sinclude;
+
+import net.sf.saxon.s9api.XdmNode;
+
+// A DocumentResolver that can stop parsing an XML resource as soon as it has read the element
+// with a given ID. The result is a document containing that element and all of its content,
+// inside its ancestors (with their attributes and namespaces, but none of their other content),
+// so the element has the same base URI, language, and ID that it has in the whole document. The
+// element is the first one with the ID, the one id() would find. The result is null if there's no
+// such element, or if the resource can't be parsed that way. Nothing after the element is read,
+// so errors there aren't reported.
+public interface PartialXmlResolver extends DocumentResolver {
+    XdmNode resolveXmlId(XdmNode base, String uri, String accept, String acceptLanguage, String id);
+}
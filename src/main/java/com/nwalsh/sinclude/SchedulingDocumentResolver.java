@@ -0,0 +1,394 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.exceptions.XIncludeIOException;
+import com.nwalsh.sinclude.utils.ExecutorUtils;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// A DocumentResolver that schedules the requests made of another resolver. Concurrent requests
+// for the same resource (absolute URI and headers) share a single load, and the number of loads
+// in progress can be limited for each URI scheme and for each host. Requests wait until both
+// their scheme and their host have a free slot; the number of requests waiting and the time
+// they spend waiting are recorded. Nothing is kept once a load finishes; put a
+// CachingDocumentResolver in front of this one to reuse the results.
+//
+// Range reads and partial parses are passed on to the other resolver if it supports them,
+// scheduled like any other load (requests share one only if they select the same range or ID);
+// if it doesn't, ranges are selected from the whole text and partial parses return null.
+
+public class SchedulingDocumentResolver implements AsyncDocumentResolver, TextRangeResolver, PartialXmlResolver {
+    private final DocumentResolver resolver;
+    private final Executor executor;
+    private final ConcurrentHashMap<RequestKey, CompletableFuture<XdmNode>> inflight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Semaphore> schemeLimits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Semaphore> hostLimits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Semaphore> defaultHostLimits = new ConcurrentHashMap<>();
+    private volatile int defaultHostLimit = 0;
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+    private final AtomicInteger maximumQueueDepth = new AtomicInteger(0);
+    private final AtomicLong loads = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong waits = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+    private final AtomicLong maximumWaitNanos = new AtomicLong(0);
+
+    public SchedulingDocumentResolver() {
+        this(new DefaultDocumentResolver());
+    }
+
+    public SchedulingDocumentResolver(DocumentResolver resolver) {
+        this(resolver, ExecutorUtils.ioExecutor());
+    }
+
+    public SchedulingDocumentResolver(DocumentResolver resolver, Executor executor) {
+        if (resolver == null) {
+            throw new NullPointerException("SchedulingDocumentResolver requires a resolver");
+        }
+        if (executor == null) {
+            throw new NullPointerException("SchedulingDocumentResolver requires an executor");
+        }
+        this.resolver = resolver;
+        this.executor = executor;
+    }
+
+    public DocumentResolver getResolver() {
+        return resolver;
+    }
+
+    // Limits the number of concurrent loads of URIs with the scheme (for example, "file" or "http");
+    // a limit of zero removes it.
+    public void setSchemeLimit(String scheme, int limit) {
+        setLimit(schemeLimits, scheme, limit);
+    }
+
+    public int getSchemeLimit(String scheme) {
+        return getLimit(schemeLimits, scheme);
+    }
+
+    // Limits the number of concurrent loads from the host; a limit of zero removes it.
+    public void setHostLimit(String host, int limit) {
+        setLimit(hostLimits, host, limit);
+    }
+
+    public int getHostLimit(String host) {
+        int limit = getLimit(hostLimits, host);
+        return limit == 0 ? defaultHostLimit : limit;
+    }
+
+    // The limit for hosts that don't have one of their own; zero (the default) means no limit.
+    public void setDefaultHostLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit must not be negative");
+        }
+        defaultHostLimit = limit;
+        defaultHostLimits.clear();
+    }
+
+    public int getDefaultHostLimit() {
+        return defaultHostLimit;
+    }
+
+    // The number of requests currently waiting for a slot
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaximumQueueDepth() {
+        return maximumQueueDepth.get();
+    }
+
+    // The number of loads passed on to the underlying resolver
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    // The number of requests that shared a load already in progress
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    // The number of requests that had to wait for a slot, and for how long
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    public long getTotalWaitNanos() {
+        return waitNanos.get();
+    }
+
+    public long getMaximumWaitNanos() {
+        return maximumWaitNanos.get();
+    }
+
+    @Override
+    public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+        RequestKey key = requestKey(base, uri, null, accept, acceptLanguage, false, null);
+        return join(uri, schedule(key, () -> resolver.resolveXml(base, uri, accept, acceptLanguage), false));
+    }
+
+    @Override
+    public XdmNode resolveText(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+        RequestKey key = requestKey(base, uri, encoding, accept, acceptLanguage, true, null);
+        return join(uri, schedule(key, () -> resolver.resolveText(base, uri, encoding, accept, acceptLanguage), false));
+    }
+
+    @Override
+    public CompletableFuture<XdmNode> resolveXmlAsync(XdmNode base, String uri, String accept, String acceptLanguage) {
+        RequestKey key = requestKey(base, uri, null, accept, acceptLanguage, false, null);
+        return schedule(key, () -> resolver.resolveXml(base, uri, accept, acceptLanguage), true);
+    }
+
+    @Override
+    public CompletableFuture<XdmNode> resolveTextAsync(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+        RequestKey key = requestKey(base, uri, encoding, accept, acceptLanguage, true, null);
+        return schedule(key, () -> resolver.resolveText(base, uri, encoding, accept, acceptLanguage), true);
+    }
+
+    @Override
+    public XdmNode resolveTextRange(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextRange range) {
+        if (!(resolver instanceof TextRangeResolver)) {
+            return TextRangeResolver.super.resolveTextSelection(base, uri, encoding, accept, acceptLanguage, range);
+        }
+        TextRangeResolver textResolver = (TextRangeResolver) resolver;
+        RequestKey key = requestKey(base, uri, encoding, accept, acceptLanguage, true, range.toString());
+        return join(uri, schedule(key, () -> textResolver.resolveTextRange(base, uri, encoding, accept, acceptLanguage, range), false));
+    }
+
+    // Selectors don't have value equality, so only requests with the same selector share a load
+    @Override
+    public XdmNode resolveTextSelection(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextSelector selector) {
+        if (!(resolver instanceof TextRangeResolver)) {
+            return TextRangeResolver.super.resolveTextSelection(base, uri, encoding, accept, acceptLanguage, selector);
+        }
+        TextRangeResolver textResolver = (TextRangeResolver) resolver;
+        RequestKey key = requestKey(base, uri, encoding, accept, acceptLanguage, true, selector);
+        return join(uri, schedule(key, () -> textResolver.resolveTextSelection(base, uri, encoding, accept, acceptLanguage, selector), false));
+    }
+
+    @Override
+    public XdmNode resolveXmlId(XdmNode base, String uri, String accept, String acceptLanguage, String id) {
+        if (!(resolver instanceof PartialXmlResolver)) {
+            return null;
+        }
+        PartialXmlResolver xmlResolver = (PartialXmlResolver) resolver;
+        RequestKey key = requestKey(base, uri, null, accept, acceptLanguage, false, "id=" + id);
+        return join(uri, schedule(key, () -> xmlResolver.resolveXmlId(base, uri, accept, acceptLanguage, id), false));
+    }
+
+    // Joins the load in progress for key, if there is one; otherwise, starts a new one. Blocking
+    // requests do the load on the calling thread, asynchronous ones on the executor.
+    private CompletableFuture<XdmNode> schedule(RequestKey key, Supplier<XdmNode> loader, boolean async) {
+        CompletableFuture<XdmNode> flight = new CompletableFuture<>();
+        if (key != null) {
+            CompletableFuture<XdmNode> current = inflight.putIfAbsent(key, flight);
+            if (current != null) {
+                coalesced.incrementAndGet();
+                return current;
+            }
+        }
+
+        Runnable load = () -> {
+            XdmNode document = null;
+            Throwable failure = null;
+            try {
+                document = limited(key, loader);
+            } catch (RuntimeException | Error ex) {
+                failure = ex;
+            }
+
+            // Stop sharing the load before the result is visible, so later requests start a new one
+            if (key != null) {
+                inflight.remove(key, flight);
+            }
+            if (failure == null) {
+                flight.complete(document);
+            } else {
+                flight.completeExceptionally(failure);
+            }
+        };
+
+        if (async) {
+            executor.execute(load);
+        } else {
+            load.run();
+        }
+        return flight;
+    }
+
+    private XdmNode limited(RequestKey key, Supplier<XdmNode> loader) {
+        Semaphore scheme = key == null ? null : schemeLimits.get(key.scheme);
+        Semaphore host = null;
+        if (key != null && key.host != null) {
+            host = hostLimits.get(key.host);
+            if (host == null && defaultHostLimit > 0) {
+                host = defaultHostLimits.computeIfAbsent(key.host, name -> new LimitedSemaphore(defaultHostLimit));
+            }
+        }
+
+        acquire(scheme, host);
+        try {
+            loads.incrementAndGet();
+            return loader.get();
+        } finally {
+            if (host != null) {
+                host.release();
+            }
+            if (scheme != null) {
+                scheme.release();
+            }
+        }
+    }
+
+    private void acquire(Semaphore scheme, Semaphore host) {
+        if (scheme == null || scheme.tryAcquire()) {
+            if (host == null || host.tryAcquire()) {
+                return;
+            }
+            if (scheme != null) {
+                scheme.release();
+            }
+        }
+
+        // Always scheme, then host, so that requests can't hold one slot each while waiting for the other
+        int depth = queueDepth.incrementAndGet();
+        maximumQueueDepth.accumulateAndGet(depth, Math::max);
+        long start = System.nanoTime();
+        try {
+            if (scheme != null) {
+                scheme.acquireUninterruptibly();
+            }
+            if (host != null) {
+                host.acquireUninterruptibly();
+            }
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+
+        long waited = System.nanoTime() - start;
+        waits.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        maximumWaitNanos.accumulateAndGet(waited, Math::max);
+    }
+
+    private XdmNode join(String uri, CompletableFuture<XdmNode> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new XIncludeIOException(uri, ex.getCause());
+        }
+    }
+
+    private void setLimit(ConcurrentHashMap<String, Semaphore> limits, String name, int limit) {
+        if (name == null) {
+            throw new NullPointerException("A limit requires a name");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit must not be negative");
+        }
+        // Loads already holding a slot release it to the semaphore they got it from
+        if (limit == 0) {
+            limits.remove(name.toLowerCase(Locale.ROOT));
+        } else {
+            limits.put(name.toLowerCase(Locale.ROOT), new LimitedSemaphore(limit));
+        }
+    }
+
+    private int getLimit(ConcurrentHashMap<String, Semaphore> limits, String name) {
+        Semaphore semaphore = limits.get(name.toLowerCase(Locale.ROOT));
+        return semaphore instanceof LimitedSemaphore ? ((LimitedSemaphore) semaphore).limit : 0;
+    }
+
+    private RequestKey requestKey(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, boolean text, Object selection) {
+        // Same-document references aren't scheduled; the "resource" is the including document
+        if (uri == null || "".equals(uri) || base.getBaseURI() == null) {
+            return null;
+        }
+
+        URI absolute;
+        try {
+            absolute = base.getBaseURI().resolve(uri);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        if (!absolute.isAbsolute()) {
+            return null;
+        }
+
+        Configuration config = base.getUnderlyingNode().getConfiguration();
+        return new RequestKey(config, absolute, text, encoding, accept, acceptLanguage, selection);
+    }
+
+    private static class LimitedSemaphore extends Semaphore {
+        private final int limit;
+
+        LimitedSemaphore(int limit) {
+            super(limit, true);
+            this.limit = limit;
+        }
+    }
+
+    private static class RequestKey {
+        private final Configuration config;
+        private final String uri;
+        private final String scheme;
+        private final String host;
+        private final boolean text;
+        private final String encoding;
+        private final String accept;
+        private final String acceptLanguage;
+        private final Object selection;
+        private final int hash;
+
+        RequestKey(Configuration config, URI uri, boolean text, String encoding, String accept, String acceptLanguage, Object selection) {
+            this.config = config;
+            this.uri = uri.toString();
+            scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            host = uri.getHost() == null ? null : uri.getHost().toLowerCase(Locale.ROOT);
+            this.text = text;
+            this.encoding = encoding;
+            this.accept = accept;
+            this.acceptLanguage = acceptLanguage;
+            this.selection = selection;
+            hash = Objects.hash(System.identityHashCode(config), this.uri, text, encoding, accept, acceptLanguage, selection);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RequestKey)) {
+                return false;
+            }
+            RequestKey other = (RequestKey) obj;
+            return config == other.config
+                    && text == other.text
+                    && uri.equals(other.uri)
+                    && Objects.equals(encoding, other.encoding)
+                    && Objects.equals(accept, other.accept)
+                    && Objects.equals(acceptLanguage, other.acceptLanguage)
+                    && Objects.equals(selection, other.selection);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
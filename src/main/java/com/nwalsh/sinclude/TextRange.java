@@ -0,0 +1,41 @@
+package com.nwalsh.sinclude;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// A line= or char= range (RFC 5147) in a text resource. Positions count from zero and the end
+// is exclusive. A range with no start position (",n") has a start of -1; a range with no end
+// position ("n,") has an end of Integer.MAX_VALUE.
+public class TextRange implements TextSelector {
+    private final boolean lines;
+    private final int start;
+    private final int end;
+
+    public TextRange(boolean lines, int start, int end) {
+        this.lines = lines;
+        this.start = start;
+        this.end = end;
+    }
+
+    public boolean isLineRange() {
+        return lines;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public String select(Reader reader) throws IOException {
+        return new TextRangeReader(reader).select(this);
+    }
+
+    @Override
+    public String toString() {
+        return (lines ? "line=" : "char=") + start + "," + end;
+    }
+}
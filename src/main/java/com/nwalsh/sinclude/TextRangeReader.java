@@ -0,0 +1,223 @@
+package com.nwalsh.sinclude;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Selects a line= or char= range from a text as it's read, keeping only the selected characters.
+// The selection is the same as RFC5147Scheme makes from the whole text: lines are separated by
+// "\n", trailing empty lines don't count, and every line is terminated by "\n", even the last.
+// Because of the trailing lines, whether the text continues past a selection matters; the reader
+// looks ahead (without keeping anything) until it finds more content or reaches the end.
+//
+// If checkpoints are supplied, reading starts at one and the reader records the ones it passes.
+class TextRangeReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufpos = 0;
+    private int buflen = 0;
+    private boolean eof = false;
+
+    private final LineCheckpoints checkpoints;
+    private final boolean utf8;
+    private long nextCheckpoint = Long.MAX_VALUE;
+    private long bytes = 0;
+
+    private long line = 0;
+    private long chars = 0;
+    private long lineStart = 0;
+    private boolean lineHasContent = false;
+    private long lastContentLine = -1;
+    private long lastContentEnd = -1;
+    private boolean empty = true;
+
+    TextRangeReader(Reader reader) {
+        this.reader = reader;
+        checkpoints = null;
+        utf8 = false;
+    }
+
+    // The reader must be positioned at the checkpoint's byte offset. Byte offsets are counted
+    // for UTF-8 if utf8 is true, otherwise for a single byte encoding.
+    TextRangeReader(Reader reader, LineCheckpoints.Checkpoint start, LineCheckpoints checkpoints, boolean utf8) {
+        this.reader = reader;
+        this.checkpoints = checkpoints;
+        this.utf8 = utf8;
+        line = start.line;
+        chars = start.chars;
+        lineStart = start.chars;
+        bytes = start.bytes;
+        lastContentLine = start.lastContentLine;
+        lastContentEnd = start.lastContentEnd;
+        empty = start.chars == 0;
+        nextCheckpoint = start.bytes + LineCheckpoints.INTERVAL;
+    }
+
+    // Returns null if the range doesn't select anything
+    String select(TextRange range) throws IOException {
+        return range.isLineRange()
+                ? selectLines(range.getStart(), range.getEnd())
+                : selectChars(range.getStart(), range.getEnd());
+    }
+
+    private String selectLines(int rangeStart, int rangeEnd) throws IOException {
+        long first = Math.max(rangeStart, 0);
+        while (line < first && next() >= 0) {
+            // skip
+        }
+
+        StringBuilder data = new StringBuilder();
+        int keep = 0;
+        while (line < rangeEnd) {
+            int ch = next();
+            if (ch < 0) {
+                if (lineHasContent && line >= first) {
+                    data.append('\n');
+                    keep = data.length();
+                }
+                break;
+            }
+            data.append((char) ch);
+            if (ch == '\n' && lastContentLine == line - 1) {
+                keep = data.length();
+            }
+        }
+
+        boolean found = (rangeStart == rangeEnd && moreLinesThan(rangeStart))
+                || (first < rangeEnd && moreLinesThan(first));
+
+        if (eof && empty) {
+            // The empty text has one (empty) line
+            return found ? (first == 0 && rangeEnd > 0 ? "\n" : "") : null;
+        }
+
+        // The empty lines at the end of the selection only count if there's more to come
+        if (first < rangeEnd && !moreLinesThan(rangeEnd - 1L)) {
+            data.setLength(keep);
+        }
+
+        return found ? data.toString() : null;
+    }
+
+    private String selectChars(int rangeStart, int rangeEnd) throws IOException {
+        long first = Math.max(rangeStart, 0);
+        while (chars < first && next() >= 0) {
+            // skip
+        }
+        long firstLine = line;
+        long firstLineStart = lineStart;
+
+        StringBuilder data = new StringBuilder();
+        int last = -1;
+        while (chars < rangeEnd) {
+            int ch = next();
+            if (ch < 0) {
+                break;
+            }
+            data.append((char) ch);
+            last = ch;
+        }
+
+        // Is the end of the selection inside the text with every line terminated?
+        if (data.length() > 0 && !eof) {
+            moreLinesThan(last == '\n' ? line - 1 : line);
+        }
+
+        boolean found = rangeStart == rangeEnd && moreLinesThan(rangeStart);
+        if (!eof) {
+            found = found || (moreLinesThan(firstLine) && firstLineStart < rangeEnd);
+            return found ? data.toString() : null;
+        }
+
+        long length = terminatedLength();
+        found = found || (first < length && firstLineStart < rangeEnd);
+
+        // The text ends at chars; the terminated text may be shorter, or one "\n" longer
+        long end = Math.min(rangeEnd, length);
+        data.setLength((int) Math.max(0, Math.min(end, chars) - first));
+        if (first <= chars && end > chars) {
+            data.append('\n');
+        }
+
+        return found ? data.toString() : null;
+    }
+
+    // Are there more than count lines? (This only reads as far as it must to find out.)
+    private boolean moreLinesThan(long count) throws IOException {
+        while (true) {
+            if (lastContentLine >= count || (lineHasContent && line >= count)) {
+                return true;
+            }
+            if (eof) {
+                return empty && count < 1;
+            }
+            next();
+        }
+    }
+
+    // The length of the whole text with every line terminated by "\n"; only known at the end
+    private long terminatedLength() {
+        if (empty) {
+            return 1;
+        }
+        return lastContentLine < 0 ? 0 : lastContentEnd + 1;
+    }
+
+    private int next() throws IOException {
+        if (bufpos == buflen) {
+            if (eof) {
+                return -1;
+            }
+            buflen = reader.read(buffer);
+            bufpos = 0;
+            if (buflen <= 0) {
+                buflen = 0;
+                eof = true;
+                if (lineHasContent) {
+                    lastContentLine = line;
+                    lastContentEnd = chars;
+                }
+                return -1;
+            }
+        }
+
+        char ch = buffer[bufpos++];
+        chars++;
+        empty = false;
+        if (checkpoints != null) {
+            bytes += width(ch);
+        }
+
+        if (ch == '\n') {
+            if (lineHasContent) {
+                lastContentLine = line;
+                lastContentEnd = chars - 1;
+            }
+            line++;
+            lineStart = chars;
+            lineHasContent = false;
+            if (bytes >= nextCheckpoint) {
+                checkpoints.add(new LineCheckpoints.Checkpoint(line, chars, bytes, lastContentLine, lastContentEnd));
+                nextCheckpoint = bytes + LineCheckpoints.INTERVAL;
+            }
+        } else {
+            lineHasContent = true;
+        }
+
+        return ch;
+    }
+
+    private int width(char ch) {
+        if (!utf8 || ch < 0x80) {
+            return 1;
+        }
+        if (ch < 0x800) {
+            return 2;
+        }
+        if (Character.isHighSurrogate(ch)) {
+            return 4;
+        }
+        return Character.isLowSurrogate(ch) ? 0 : 3;
+    }
+}
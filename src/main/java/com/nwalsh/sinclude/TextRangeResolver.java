@@ -0,0 +1,27 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.exceptions.XIncludeIOException;
+import com.nwalsh.sinclude.utils.ReceiverUtils;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+// A DocumentResolver that can select part of a text resource as it reads it, so that only the
+// selected text has to be kept in memory. The result is a text document containing exactly what
+// the scheme (the RFC 5147 text scheme for a range) would have selected from the whole resource,
+// or null if the scheme wouldn't have found anything. Exceptions thrown by the selector are
+// passed on unchanged.
+public interface TextRangeResolver extends DocumentResolver {
+    XdmNode resolveTextRange(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextRange range);
+
+    default XdmNode resolveTextSelection(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextSelector selector) {
+        XdmNode document = resolveText(base, uri, encoding, accept, acceptLanguage);
+        try {
+            String text = selector.select(new StringReader(document.getStringValue()));
+            return text == null ? null : ReceiverUtils.makeTextDocument(document, text);
+        } catch (IOException ex) {
+            throw new XIncludeIOException(uri, ex);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.nwalsh.sinclude;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Selects part of a text as it's read, reading no further than it must. Returns null if
+// nothing is selected.
+public interface TextSelector {
+    String select(Reader reader) throws IOException;
+}
@@ -3,6 +3,7 @@ package com.nwalsh.sinclude;
 import com.nwalsh.DebuggingLogger;
 import com.nwalsh.sinclude.exceptions.XIncludeException;
 import com.nwalsh.sinclude.exceptions.XIncludeFallbackException;
+import com.nwalsh.sinclude.exceptions.XIncludeIOException;
 import com.nwalsh.sinclude.exceptions.XIncludeLoopException;
 import com.nwalsh.sinclude.exceptions.XIncludeNoFragmentException;
 import com.nwalsh.sinclude.exceptions.XIncludeSyntaxException;
@@ -14,23 +15,42 @@ import com.nwalsh.sinclude.schemes.XmlnsScheme;
 import com.nwalsh.sinclude.utils.NamespaceUtils;
 import com.nwalsh.sinclude.utils.NodeUtils;
 import com.nwalsh.sinclude.utils.ReceiverUtils;
+import com.nwalsh.sinclude.utils.TextUtils;
 import com.nwalsh.sinclude.xpointer.DefaultFragmentIdParser;
 import com.nwalsh.sinclude.xpointer.FragmentIdParser;
 import com.nwalsh.sinclude.xpointer.ParseType;
 import com.nwalsh.sinclude.xpointer.Scheme;
 import com.nwalsh.sinclude.xpointer.SchemeData;
 import com.nwalsh.sinclude.xpointer.SelectionResult;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.ProxyReceiver;
 import net.sf.saxon.event.Receiver;
 import net.sf.saxon.event.ReceiverOption;
+import net.sf.saxon.event.TeeOutputter;
+import net.sf.saxon.event.TreeReceiver;
 import net.sf.saxon.expr.parser.Loc;
 import net.sf.saxon.om.*;
 import net.sf.saxon.s9api.*;
+import net.sf.saxon.serialize.SerializationProperties;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.SchemaType;
 
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
 import java.io.File;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,12 +60,10 @@ import static com.nwalsh.sinclude.utils.NodeUtils.xml_lang;
 
 public class XInclude {
     private static final URI MAGIC_IMPOSSIBLE_URI = URI.create("https://nwalsh.com/fake/uri/for/text/include.txt");
-    private static final String MAGIC_ID_URI = "https://nwalsh.com/ns/xinclude/id";
     private static final String NS_XML = "http://www.w3.org/XML/1998/namespace";
     private static final String NS_XINCLUDE = "http://www.w3.org/2001/XInclude";
     private static final QName xi_include = new QName(NS_XINCLUDE, "include");
     private static final QName xi_fallback = new QName(NS_XINCLUDE, "fallback");
-    private static final QName magic_id = new QName(MAGIC_ID_URI, "magic:id");
 
     private static final String localAttrNS = "http://www.w3.org/2001/XInclude/local-attributes";
 
@@ -58,6 +76,8 @@ public class XInclude {
     private static final QName _fragid = new QName("", "fragid");
     private static final QName _xpointer = new QName("", "xpointer");
 
+    public static final int DEFAULT_PREFETCH_LIMIT = 8;
+
     private static final Pattern lineEqual = Pattern.compile("line\\s*=\\s*\\(.*\\)\\s*");
     private static final Pattern charEqual = Pattern.compile("char\\s*=\\s*\\(.*\\)\\s*");
     private static final Pattern searchEqual = Pattern.compile("search\\s*=\\s*\\(.*\\)\\s*");
@@ -65,20 +85,29 @@ public class XInclude {
     private static final FingerprintedQName fq_xml_id = NamespaceUtils.fqName(xml_id);
     private static final FingerprintedQName fq_xml_lang = NamespaceUtils.fqName(xml_lang);
     private static final FingerprintedQName fq_xml_base = NamespaceUtils.fqName(xml_base);
-    private static final FingerprintedQName fq_magic_id = NamespaceUtils.fqName(magic_id);
 
     private DebuggingLogger logger = null;
     private boolean trimText = false;
     private boolean fixupXmlBase = true;
     private boolean fixupXmlLang = true;
     private boolean copyAttributes = true; // XInclude 1.1
+    private boolean lazyFragments = false;
+    private boolean memoizeIncludes = true;
+    private boolean parallelIncludes = false;
+    private Executor executor = null;
+    private boolean asyncResolution = false;
+    private int prefetchLimit = DEFAULT_PREFETCH_LIMIT;
+    private IncludePrefetcher prefetcher = null;
+    private NegativeResolutionCache negativeCache = null;
+    private XPathCache xpathCache = new XPathCache();
     private final Vector<SchemeData> data = new Vector<>();
     private final Vector<Scheme> schemes = new Vector<>();
     private DocumentResolver resolver = null;
     private FragmentIdParser fragmentIdParser = null;
     private final Stack<URI> uriStack = new Stack<>();
-    private MagicId magicId = new MagicId();
-    private Map<String, Location> magicBaseUriMap = new HashMap<>();
+    private IncludeMemo memo = new IncludeMemo();
+    private Map<TreeInfo, Map<List<Object>, SearchGroup>> searchGroups = new WeakHashMap<>();
+    private String inheritedLanguage = null;
 
     public XInclude() {
         resolver = new DefaultDocumentResolver();
@@ -117,9 +146,18 @@ public class XInclude {
         include.fixupXmlLang = fixupXmlLang;
         include.copyAttributes = copyAttributes;
         include.trimText = trimText;
+        include.lazyFragments = lazyFragments;
+        include.memoizeIncludes = memoizeIncludes;
+        include.parallelIncludes = parallelIncludes;
+        include.executor = executor;
+        include.asyncResolution = asyncResolution;
+        include.prefetchLimit = prefetchLimit;
+        include.prefetcher = prefetcher;
+        include.negativeCache = negativeCache;
+        include.xpathCache = xpathCache;
         include.uriStack.addAll(uriStack);
-        include.magicId = magicId;
-        include.magicBaseUriMap = magicBaseUriMap;
+        include.memo = memo;
+        include.searchGroups = searchGroups;
         return include;
     }
 
@@ -176,102 +214,392 @@ public class XInclude {
         copyAttributes = copy;
     }
 
+    public boolean getLazyFragments() {
+        return lazyFragments;
+    }
+
+    // If true, XPointers are evaluated against the included document before it is expanded,
+    // so only the selected fragment has its XIncludes processed. Selections that might be
+    // changed by expansion fall back to expanding the whole document first. If the resolver
+    // is a PartialXmlResolver, element() pointers that start with an ID only parse the
+    // document as far as the end of the identified element.
+    public void setLazyFragments(boolean lazy) {
+        lazyFragments = lazy;
+    }
+
+    public boolean getMemoizeIncludes() {
+        return memoizeIncludes;
+    }
+
+    // If true, an xi:include that has exactly the same inputs as one already processed
+    // in the same expansion reuses its result instead of being processed again. Results
+    // are saved the second time an include is seen, so only repeated includes pay for a copy.
+    public void setMemoizeIncludes(boolean memoize) {
+        memoizeIncludes = memoize;
+    }
+
+    public boolean getParallelIncludes() {
+        return parallelIncludes;
+    }
+
+    // If true, the xi:include elements in a document (the ones that aren't inside another
+    // xi:include) are expanded concurrently and the results are spliced back in document order.
+    // The output is the same as a sequential expansion: an include that fails, or that might see
+    // scheme data left behind by the includes before it, is simply processed again in order.
+    public void setParallelIncludes(boolean parallel) {
+        parallelIncludes = parallel;
+    }
+
+    public Executor getExecutor() {
+        return executor == null ? ForkJoinPool.commonPool() : executor;
+    }
+
+    // The executor used for parallel includes; the common fork/join pool by default
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public boolean getAsyncResolution() {
+        return asyncResolution;
+    }
+
+    // If true, each document is scanned for xi:include elements as soon as it's available and
+    // the documents they refer to are loaded in the background (asynchronously, if the resolver is
+    // an AsyncDocumentResolver), so that loading them overlaps with expanding the ones before.
+    public void setAsyncResolution(boolean async) {
+        asyncResolution = async;
+    }
+
+    public int getPrefetchLimit() {
+        return prefetchLimit;
+    }
+
+    // The maximum number of documents loaded in the background at the same time
+    public void setPrefetchLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("The prefetch limit must be at least 1");
+        }
+        prefetchLimit = limit;
+    }
+
+    public NegativeResolutionCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    // If a cache is provided, resources the resolver failed to load are remembered, and an
+    // xi:include of one of them goes straight to its fallback instead of trying again.
+    public void setNegativeCache(NegativeResolutionCache cache) {
+        negativeCache = cache;
+    }
+
+    public XPathCache getXPathCache() {
+        return xpathCache;
+    }
+
+    // The compiled xpath() and element() expressions are kept in the cache; if it's null, every
+    // pointer is compiled again
+    public void setXPathCache(XPathCache cache) {
+        xpathCache = cache;
+    }
+
     public XdmNode expandXIncludes(XdmNode node) throws XPathException {
-        logger = new DebuggingLogger(node.getUnderlyingNode().getConfiguration().getLogger());
-        XdmNode result = internalExpandXIncludes(node);
-        result = remapBaseUris(result);
-        return result;
+        return expandXIncludes(node, (ExpansionStatistics) null);
+    }
+
+    // If statistics are provided, they're filled in with what happened during this expansion
+    public XdmNode expandXIncludes(XdmNode node, ExpansionStatistics statistics) throws XPathException {
+        XInclude expansion = newExpansion(node.getUnderlyingNode().getConfiguration());
+        try {
+            return expansion.walk(node);
+        } finally {
+            if (statistics != null) {
+                statistics.setMemoizedIncludeCount(expansion.memo.hits);
+            }
+        }
+    }
+
+    // Writes the expanded document to the destination (a Serializer, an XsltTransformer, etc.)
+    // as it's produced, without building the result tree first
+    public void expandXIncludes(XdmNode node, Destination destination) throws SaxonApiException, XPathException {
+        PipelineConfiguration pipe = node.getUnderlyingNode().getConfiguration().makePipelineConfiguration();
+        expandXIncludes(node, destination.getReceiver(pipe, new SerializationProperties()));
+        destination.closeAndNotify();
+    }
+
+    public void expandXIncludes(XdmNode node, Receiver receiver) throws XPathException {
+        XInclude expansion = newExpansion(node.getUnderlyingNode().getConfiguration());
+
+        // The results of an xi:include are appended as nodes, which not every receiver supports
+        Receiver events = new TreeReceiver(receiver);
+        URI baseURI = ReceiverUtils.nodeBaseURI(node);
+        if (baseURI != null) {
+            events.setSystemId(baseURI.toString());
+        }
+        events.open();
+        events.startDocument(0);
+        TreeWalker walker = expansion.newWalker(node);
+        try {
+            walker.traverse(events, node);
+        } finally {
+            walker.cancelSpeculations();
+            expansion.cancelPrefetching();
+        }
+        events.endDocument();
+        events.close();
     }
 
     public void expandXIncludes(File input, File output) throws SaxonApiException, XPathException {
-        Processor processor = new Processor(false);
+        expandXIncludes(new Processor(false), input, output);
+    }
+
+    // The file and stream entry points build the input document, but the result is
+    // serialized as it's produced, so the expanded document is never built
+    public void expandXIncludes(Processor processor, File input, File output) throws SaxonApiException, XPathException {
+        expandXIncludes(processor, new StreamSource(input), processor.newSerializer(output));
+    }
+
+    public void expandXIncludes(Processor processor, Source input, OutputStream output) throws SaxonApiException, XPathException {
+        expandXIncludes(processor, input, processor.newSerializer(output));
+    }
+
+    public void expandXIncludes(Processor processor, Source input, Writer output) throws SaxonApiException, XPathException {
+        expandXIncludes(processor, input, processor.newSerializer(output));
+    }
+
+    private void expandXIncludes(Processor processor, Source input, Serializer serializer) throws SaxonApiException, XPathException {
         DocumentBuilder builder = processor.newDocumentBuilder();
         XdmNode node = builder.build(input);
 
-        XdmNode result = internalExpandXIncludes(node);
-        result = remapBaseUris(result);
-
-        Serializer serializer = processor.newSerializer(output);
         serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
         serializer.setOutputProperty(Serializer.Property.INDENT, "no");
-        serializer.serializeNode(result);
+        expandXIncludes(node, serializer);
         serializer.close();
     }
 
+    // The same as expandXIncludes(); it runs in its own expansion too
     public XdmNode internalExpandXIncludes(XdmNode node) throws XPathException {
-        logger = new DebuggingLogger(node.getUnderlyingNode().getConfiguration().getLogger());
+        return expandXIncludes(node);
+    }
+
+    private XdmNode walk(XdmNode node) throws XPathException {
+        TreeWalker walker = newWalker(node);
+        try {
+            return walker.walk(node);
+        } finally {
+            walker.cancelSpeculations();
+            cancelPrefetching();
+        }
+    }
+
+    // Abandons the documents the prefetcher is loading (or has loaded) that the expansion didn't use
+    void cancelPrefetching() {
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
+    }
+
+    // The state of an expansion (scheme data, the documents being included, the memo table) lives
+    // in a fresh instance, so a configured XInclude can be shared by concurrent expansions
+    XInclude newExpansion(Configuration config) {
+        XInclude expansion = newInstance();
+        expansion.logger = new DebuggingLogger(config.getLogger());
+        expansion.memo = new IncludeMemo();
+        expansion.searchGroups = new WeakHashMap<>();
+        expansion.prefetcher = null;
+        if (asyncResolution) {
+            AsyncDocumentResolver async = resolver instanceof AsyncDocumentResolver
+                    ? (AsyncDocumentResolver) resolver : new AsyncDocumentResolverAdapter(resolver);
+            expansion.prefetcher = new IncludePrefetcher(async, prefetchLimit, negativeCache, resolver instanceof TextRangeResolver,
+                    lazyFragments && resolver instanceof PartialXmlResolver);
+        }
+        return expansion;
+    }
+
+    // Expands a single xi:include from a streamed document. The element arrives as a small tree
+    // of its own, so if it (or its fallback) makes a same-document reference, the document is
+    // loaded again and the xi:include at the same position, identified by path, is used instead.
+    void expandStreamedXInclude(Receiver receiver, XdmNode xinclude, URI documentURI, List<Integer> path) throws XPathException {
+        XdmNode node = xinclude;
+        if (hasSameDocumentReference(xinclude)) {
+            if (documentURI == null) {
+                throw new XIncludeException("Same document reference in a document with no URI");
+            }
+            node = resolver.resolveXml(xinclude, documentURI.toString(), null, null);
+            for (int position : path) {
+                int count = 0;
+                XdmNode child = null;
+                XdmSequenceIterator<XdmNode> iter = node.axisIterator(Axis.CHILD);
+                while (count < position && iter.hasNext()) {
+                    child = iter.next();
+                    if (child.getNodeKind() == XdmNodeKind.ELEMENT) {
+                        count++;
+                    }
+                }
+                if (count < position) {
+                    throw new XIncludeException("Document changed while it was being included: " + documentURI);
+                }
+                node = child;
+            }
+        }
+        newWalker().traverse(receiver, node);
+    }
+
+    // Text inclusions of the same document only need the base URI, not the document
+    private boolean hasSameDocumentReference(XdmNode xinclude) {
+        XdmSequenceIterator<XdmNode> iter = xinclude.axisIterator(Axis.DESCENDANT_OR_SELF, xi_include);
+        while (iter.hasNext()) {
+            XdmNode node = iter.next();
+            String href = node.getAttributeValue(_href);
+            String parse = node.getAttributeValue(_parse);
+            if ((href == null || href.trim().isEmpty()) && (parse == null || !parse.trim().startsWith("text"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TreeWalker newWalker() {
         TreeWalker walker = new TreeWalker();
         walker.register(xi_include, new XiIncludeHandler(this));
         walker.register(xi_fallback, new XiFallbackHandler());
-        XdmNode result = walker.walk(node);
-        return result;
+        return walker;
     }
 
-    private XdmNode remapBaseUris(XdmNode node) throws XPathException {
-        if (fixupXmlBase) {
-            return node;
+    // A walker for the top of an expansion; in parallel mode, it starts expanding the includes
+    private TreeWalker newWalker(XdmNode node) {
+        TreeWalker walker = newWalker();
+        if (parallelIncludes) {
+            walker.speculate(node);
         }
+        return walker;
+    }
+
+    // Expands a single xi:include in an instance of its own, starting from the state this
+    // instance had before any includes were processed (no scheme data, an empty memo table).
+    private Speculation speculate(XdmNode xinclude) throws XPathException {
+        XInclude expansion = newInstance();
+        expansion.memo = new IncludeMemo();
+        expansion.inheritedLanguage = inheritedLanguage;
 
         XdmDestination destination = new XdmDestination();
-        Receiver receiver = ReceiverUtils.makeReceiver(node, destination);
+        Receiver receiver = ReceiverUtils.makeReceiver(xinclude, destination);
         receiver.startDocument(0);
-        remapTraversal(receiver, node, new XInclude.IncludeLocation(node));
+        expansion.newWalker().traverse(receiver, xinclude);
         receiver.endDocument();
         receiver.close();
-        return destination.getXdmNode();
+        return new Speculation(destination.getXdmNode(), new ArrayList<>(expansion.data));
     }
 
-    private void remapTraversal(Receiver receiver, XdmNode node, Location location) throws XPathException {
-        XdmSequenceIterator<XdmNode> iter = null;
-
-        if (node.getNodeKind() == XdmNodeKind.DOCUMENT) {
-            iter = node.axisIterator(Axis.CHILD);
-            while (iter.hasNext()) {
-                XdmNode item = iter.next();
-                if (item.getNodeKind() == XdmNodeKind.ELEMENT) {
-                    remapTraversal(receiver, item, location);
-                } else {
-                    receiver.append(item.getUnderlyingNode());
-                }
-            }
-        } else if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
-            String id = node.getAttributeValue(magic_id);
-            Location loc;
-
-            if (node.getAttributeValue(xml_base) != null) {
-                loc = new XInclude.IncludeLocation(node, node.getBaseURI().toString());
-            } else if (magicBaseUriMap.containsKey(id)) {
-                loc = magicBaseUriMap.get(id);
+    static String textPointer(String xptr) {
+        /* HACK */
+        String xtrim = xptr.trim();
+        Matcher lmatcher = lineEqual.matcher(xtrim);
+        Matcher cmatcher = charEqual.matcher(xtrim);
+        Matcher smatcher = searchEqual.matcher(xtrim);
+        if (lmatcher.find() || cmatcher.find()) {
+            if (lmatcher.find()) {
+                xptr = "text(" + lmatcher.group(1) + ")";
             } else {
-                loc = new XInclude.IncludeLocation(node, location.getSystemId());
+                xptr = "text(" + cmatcher.group(1) + ")";
             }
+        } else if (smatcher.find()) {
+            xptr = "search(" + smatcher.group(1) + ")";
+        }
+        return xptr;
+    }
 
-            NodeInfo inode = node.getUnderlyingNode();
-            FingerprintedQName name = NamespaceUtils.fqName(inode.getPrefix(), inode.getURI(), inode.getLocalPart());
+    static ParseType parseType(String parseAttr) {
+        if (parseAttr == null) {
+            parseAttr = "xml";
+        }
 
-            AttributeMap amap = inode.attributes();
-            amap = amap.remove(fq_magic_id);
+        if (parseAttr.contains(";")) {
+            parseAttr = parseAttr.substring(0, parseAttr.indexOf(";")).trim();
+        }
 
-            NamespaceMap nmap =  NamespaceUtils.removeNamespace(inode.getAllNamespaces(), MAGIC_ID_URI);
+        if ("xml".equals(parseAttr) || "application/xml".equals(parseAttr) || ("text/xml".equals(parseAttr) || parseAttr.endsWith("+xml"))) {
+            return ParseType.XMLPARSE;
+        } else if ("text".equals(parseAttr) || parseAttr.startsWith("text/")) {
+            return ParseType.TEXTPARSE;
+        }
+        return ParseType.NOPARSE;
+    }
 
-            receiver.startElement(name, inode.getSchemaType(), amap, nmap, loc, 0);
-            iter = node.axisIterator(Axis.CHILD);
-            while (iter.hasNext()) {
-                XdmNode item = iter.next();
-                if (item.getNodeKind() == XdmNodeKind.ELEMENT) {
-                    remapTraversal(receiver, item, loc);
-                } else {
-                    receiver.append(item.getUnderlyingNode());
+    // Resolves the document for an xi:include, using the one that's already been requested, if there is one
+    private XdmNode resolve(ParseType parse, XdmNode xinclude, String href, String encoding, String accept, String accept_lang) {
+        CompletableFuture<XdmNode> document = null;
+        if (prefetcher != null) {
+            document = prefetcher.lookup(parse, xinclude, href, encoding, accept, accept_lang);
+        }
+
+        if (document != null) {
+            try {
+                return document.join();
+            } catch (CompletionException ex) {
+                // Throw what the resolver threw
+                if (ex.getCause() instanceof RuntimeException) {
+                    recordFailure(parse, xinclude, href, encoding, accept, accept_lang, ex.getCause());
+                    throw (RuntimeException) ex.getCause();
                 }
+                if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                throw new XIncludeIOException(href, ex.getCause());
             }
-            receiver.endElement();
-        } else {
-            receiver.append(node.getUnderlyingNode());
+        }
+
+        URI loading = parse == ParseType.XMLPARSE ? absoluteURI(xinclude, href) : null;
+        Configuration config = xinclude.getUnderlyingNode().getConfiguration();
+        ActiveLoads.started(config, loading);
+        try {
+            if (parse == ParseType.XMLPARSE) {
+                return resolver.resolveXml(xinclude, href, accept, accept_lang);
+            }
+            return resolver.resolveText(xinclude, href, encoding, accept, accept_lang);
+        } catch (RuntimeException ex) {
+            recordFailure(parse, xinclude, href, encoding, accept, accept_lang, ex);
+            throw ex;
+        } finally {
+            ActiveLoads.finished(config, loading);
         }
     }
 
+    private void recordFailure(ParseType parse, XdmNode xinclude, String href, String encoding, String accept,
+                               String accept_lang, Throwable ex) {
+        if (negativeCache == null || href.isEmpty() || !NegativeResolutionCache.isResolutionFailure(ex)) {
+            return;
+        }
+        URI absolute = absoluteURI(xinclude, href);
+        if (absolute != null) {
+            negativeCache.recordFailure(absolute, parse, encoding, accept, accept_lang);
+        }
+    }
+
+    static URI absoluteURI(XdmNode xinclude, String href) {
+        if (xinclude.getBaseURI() == null) {
+            return null;
+        }
+        try {
+            return xinclude.getBaseURI().resolve(href);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    // The language in scope for an xi:include. The top-level elements of an included document
+    // are streamed before their xml:lang fixup is visible in the tree, so if the language isn't
+    // specified anywhere in the included document, use the one the fixup would have provided.
+    private String contextLanguage(XdmNode xinclude) {
+        XdmNode parent = xinclude.getParent();
+        String lang = NodeUtils.getLang(parent);
+        if (lang == null && parent.getNodeKind() == XdmNodeKind.ELEMENT) {
+            return inheritedLanguage;
+        }
+        return lang;
+    }
+
     private interface ElementHandler {
-        XdmNode process(XdmNode node) throws XPathException;
+        void process(Receiver receiver, XdmNode node) throws XPathException;
     }
 
     private class XiIncludeHandler implements ElementHandler {
@@ -285,7 +613,7 @@ public class XInclude {
             xinclude = include;
         }
 
-        public XdmNode process(XdmNode node) throws XPathException {
+        public void process(Receiver receiver, XdmNode node) throws XPathException {
             String href = node.getAttributeValue(_href);
             String xptr = node.getAttributeValue(_xpointer);
             String fragid = node.getAttributeValue(_fragid);
@@ -329,22 +657,23 @@ public class XInclude {
                 }
             }
 
-            if (parseAttr == null) {
-                parseAttr = "xml";
-            }
-
-            if (parseAttr.contains(";")) {
-                parseAttr = parseAttr.substring(0, parseAttr.indexOf(";")).trim();
+            List<Object> memoKey = memoKey(node, href);
+            MemoEntry entry = memoKey == null ? null : memo.results.get(memoKey);
+            if (entry != null && (entry.result != null || entry.existing != null)) {
+                memo.hits++;
+                data.addAll(entry.data);
+                if (entry.result != null) {
+                    copy(receiver, entry.result);
+                } else {
+                    writeExisting(receiver, node, entry.existing, setId);
+                }
+                return;
             }
+            int dataMark = data.size();
 
-            final ParseType parse;
-            if ("xml".equals(parseAttr) || "application/xml".equals(parseAttr) || ("text/xml".equals(parseAttr) || parseAttr.endsWith("+xml"))) {
-                parse = ParseType.XMLPARSE;
-            } else if ("text".equals(parseAttr) || parseAttr.startsWith("text/")) {
-                parse = ParseType.TEXTPARSE;
-            } else {
+            final ParseType parse = parseType(parseAttr);
+            if (parse == ParseType.NOPARSE) {
                 // Unrecognized parse type; fallback will be forced
-                parse = ParseType.NOPARSE;
                 xptr = null;
                 fragid = null;
             }
@@ -367,192 +696,629 @@ public class XInclude {
             }
 
             if (xptr != null && parse == ParseType.TEXTPARSE) {
-                /* HACK */
-                String xtrim = xptr.trim();
-                Matcher lmatcher = lineEqual.matcher(xtrim);
-                Matcher cmatcher = charEqual.matcher(xtrim);
-                Matcher smatcher = searchEqual.matcher(xtrim);
-                if (lmatcher.find() || cmatcher.find()) {
-                    if (lmatcher.find()) {
-                        xptr = "text(" + lmatcher.group(1) + ")";
-                    } else {
-                        xptr = "text(" + cmatcher.group(1) + ")";
-                    }
-                } else if (smatcher.find()) {
-                    xptr = "search(" + smatcher.group(1) + ")";
-                }
+                xptr = textPointer(xptr);
             }
 
             if (parse == ParseType.NOPARSE) {
                 if (fallback != null) {
-                    return processFallback(fallback);
+                    copy(receiver, processFallback(fallback));
+                    return;
                 } else {
                     throw new XIncludeFallbackException("Fallback forced (invalid parse attribute) but no xi:fallback provided");
                 }
             }
 
+            if (fallback != null && negativeCache != null && !href.isEmpty()) {
+                URI absolute = absoluteURI(node, href);
+                if (absolute != null && negativeCache.isKnownFailure(absolute, parse, encoding, accept, accept_lang)) {
+                    // It failed recently; don't bother trying again
+                    includeFallback(receiver, node, fallback, parse, setId);
+                    return;
+                }
+            }
+
+            // The result is written straight to the receiver unless there's a fallback (in which
+            // case we may have to discard it) or we've seen this include before (in which case we
+            // keep a copy for the next time). If it's written from a tree that already exists, the
+            // memo keeps that instead, the first time, since it costs nothing.
+            XdmDestination destination = null;
+            Receiver buffer = null;
+            Receiver target = receiver;
+            if (fallback != null || entry != null) {
+                destination = new XdmDestination();
+                buffer = ReceiverUtils.makeReceiver(node, destination);
+                buffer.startDocument(0);
+                target = fallback == null ? new TeeOutputter(receiver, buffer) : buffer;
+            }
+
+            ExistingTree existing;
+            try {
+                existing = include(target, node, href, parse, xptr, setId, encoding, accept, accept_lang);
+            } catch (Exception e) {
+                if (fallback != null) {
+                    includeFallback(receiver, node, fallback, parse, setId);
+                    return;
+                } else {
+                    throw e;
+                }
+            }
+
+            XdmNode result = null;
+            if (buffer != null) {
+                buffer.endDocument();
+                buffer.close();
+                result = destination.getXdmNode();
+                if (fallback != null) {
+                    copy(receiver, result);
+                }
+            }
+
+            if (memoKey != null) {
+                memo.results.put(memoKey, new MemoEntry(result, existing, new ArrayList<>(data.subList(dataMark, data.size()))));
+            }
+        }
+
+        // Returns the tree the result was written from, if it already existed and nothing in it
+        // was expanded, so that it can be written again; otherwise null
+        private ExistingTree include(Receiver receiver, XdmNode node, String href, ParseType parse, String xptr, String setId,
+                                     String encoding, String accept, String accept_lang) throws XPathException {
             HashSet<XdmNode> ancestors = null;
             XdmNode doc = null;
-            try {
-                if (href.isEmpty()) {
-                    if (logger != null) {
-                        logger.debug(DebuggingLogger.XINCLUDE, "XInclude same document");
-                    }
+            if (href.isEmpty()) {
+                if (logger != null) {
+                    logger.debug(DebuggingLogger.XINCLUDE, "XInclude same document");
+                }
 
-                    ancestors = new HashSet<>();
-                    XdmNode parent = node;
-                    while (parent.getParent() != null) {
-                        ancestors.add(parent);
-                        parent = parent.getParent();
-                    }
+                ancestors = new HashSet<>();
+                XdmNode parent = node;
+                while (parent.getParent() != null) {
                     ancestors.add(parent);
-                    doc = parent;
-                    if (parse == ParseType.TEXTPARSE) {
-                        doc = resolver.resolveText(doc, "", encoding, accept, accept_lang);
+                    parent = parent.getParent();
+                }
+                ancestors.add(parent);
+                doc = parent;
+                if (parse == ParseType.TEXTPARSE) {
+                    doc = resolve(parse, doc, "", encoding, accept, accept_lang);
+                }
+            } else {
+                if (logger != null) {
+                    logger.debug(DebuggingLogger.XINCLUDE, "XInclude parse: " + href);
+                }
+                URI next = node.getBaseURI().resolve(href);
+                if (parse == ParseType.TEXTPARSE) {
+                    SearchGroup group = xptr == null ? null : searchGroup(node, href, xptr, encoding, accept, accept_lang);
+                    if (group != null) {
+                        doc = group.text(() -> resolve(parse, node, href, encoding, accept, accept_lang));
+                    } else {
+                        TextSelector selector = xptr == null ? null : textSelector(node, xptr);
+                        if (selector != null) {
+                            doc = resolveSelection(node, href, xptr, encoding, accept, accept_lang, selector);
+                            writeText(receiver, doc);
+                            return new ExistingTree(doc, null, true);
+                        }
+                        doc = resolve(parse, node, href, encoding, accept, accept_lang);
                     }
+                    uriStack.push(MAGIC_IMPOSSIBLE_URI);
                 } else {
-                    if (logger != null) {
-                        logger.debug(DebuggingLogger.XINCLUDE, "XInclude parse: " + href);
+                    if (uriStack.contains(next)) {
+                        throw new XIncludeLoopException("XInclude loops: " + next.toASCIIString());
                     }
-                    URI next = node.getBaseURI().resolve(href);
-                    if (parse == ParseType.TEXTPARSE) {
-                        uriStack.push(MAGIC_IMPOSSIBLE_URI);
-                        doc = resolver.resolveText(node, href, encoding, accept, accept_lang);
-                    } else {
-                        if (uriStack.contains(next)) {
-                            throw new XIncludeLoopException("XInclude loops: " + next.toASCIIString());
-                        }
+                    SelectionResult fragment = xptr == null || !lazyFragments ? null : selectPartial(node, href, xptr, setId, accept, accept_lang);
+                    if (fragment != null) {
                         uriStack.push(next);
-                        doc = resolver.resolveXml(node, href, accept, accept_lang);
+                        ExistingTree existing = includeSelection(nestedInstance(node), receiver, node, fragment, setId);
+                        uriStack.pop();
+                        return existing;
                     }
+                    doc = resolve(parse, node, href, null, accept, accept_lang);
+                    uriStack.push(next);
                 }
+            }
 
-                XInclude nested = xinclude.newInstance();
-                if (href.isEmpty()) {
-                    if (xptr == null && parse == ParseType.XMLPARSE) {
-                        throw new XIncludeLoopException("Recursive same document reference");
+            XInclude nested = nestedInstance(node);
+            if (href.isEmpty()) {
+                if (xptr == null && parse == ParseType.XMLPARSE) {
+                    throw new XIncludeLoopException("Recursive same document reference");
+                }
+            } else {
+                if (parse == ParseType.XMLPARSE) {
+                    if (xptr == null) {
+                        stream(nested, receiver, node, doc, setId);
+                        uriStack.pop();
+                        if (memoizeIncludes && !containsXInclude(new XdmNode[] {doc})) {
+                            return new ExistingTree(doc, null, false);
+                        }
+                        return null;
                     }
-                } else {
-                    doc = fixup(node, doc, setId);
-                    doc = nested.internalExpandXIncludes(doc);
-                    uriStack.pop();
-                }
-
-                if (xptr != null) {
-                    Exception lastException = null;
-                    boolean success = false;
-
-                    fragmentIdParser.setProperty(xml_base, node.getParent().getBaseURI().toString());
-                    fragmentIdParser.setProperty(xml_lang, NodeUtils.getLang(node.getParent()));
-
-                    Scheme[] pointers = fragmentIdParser.parseFragmentIdentifier(parse, xptr);
-                    for (Scheme pointer : pointers) {
-                        if (!success) {
-                            try {
-                                SchemeData[] array = new SchemeData[data.size()];
-                                data.toArray(array);
-                                SelectionResult result = pointer.select(array, doc);
-
-                                if (href.isEmpty()) {
-                                    for (XdmNode selected : result.getSelectedNodes()) {
-                                        if (ancestors.contains(selected)) {
-                                            throw new XIncludeLoopException("XInclude same-document reference to ancestor forms a loop");
-                                        }
-                                    }
-                                }
 
-                                Collections.addAll(data, result.getSchemeData());
-                                if (result.finished()) {
-                                    XdmNode xidoc = result.getResult();
-                                    if (xidoc != null) {
-                                        doc = xidoc;
-                                        success = true;
-                                    }
-                                }
-                            } catch (Exception e) {
-                                lastException = e;
-                            }
+                    if (lazyFragments) {
+                        // Try to select from the unexpanded document; only the selection gets expanded
+                        SelectionResult fragment = selectFragment(node, xptr, parse, fixup(node, doc, setId), null, true);
+                        if (fragment != null) {
+                            ExistingTree existing = includeSelection(nested, receiver, node, fragment, setId);
+                            uriStack.pop();
+                            return existing;
                         }
                     }
 
-                    fragmentIdParser.setProperty(xml_base, null);
-                    fragmentIdParser.setProperty(xml_lang, null);
+                    // The pointer has to be evaluated against the expanded document
+                    doc = expand(nested, node, doc, setId);
+                }
+                uriStack.pop();
+            }
 
-                    if (!success) {
-                        if (lastException != null) {
-                            throw new XIncludeNoFragmentException("Failed to locate fragment: " + xptr + " (" + lastException.getMessage() + ")", lastException);
-                        }
-                        throw new XIncludeNoFragmentException("Failed to locate fragment: " + xptr);
+            if (xptr != null) {
+                SelectionResult selection = selectFragment(node, xptr, parse, doc, ancestors, false);
+                if (parse == ParseType.XMLPARSE && !href.isEmpty()) {
+                    // The document has already been expanded, so there's nothing left to do to
+                    // the selection but write it
+                    sendSelection(receiver, node, selection, setId);
+                    return new ExistingTree(null, selection, false);
+                }
+                doc = selection.getResult();
+            }
+
+            if (parse == ParseType.XMLPARSE) {
+                stream(nested, receiver, node, doc, setId);
+                return null;
+            }
+            writeText(receiver, doc);
+            return new ExistingTree(doc, null, true);
+        }
+
+        private void includeFallback(Receiver receiver, XdmNode node, XdmNode fallback, ParseType parse, String setId) throws XPathException {
+            XdmNode doc = processFallback(fallback);
+            XInclude nested = nestedInstance(node);
+            if (getTrimText() && parse == ParseType.TEXTPARSE) {
+                writeText(receiver, expand(nested, node, doc, setId));
+            } else {
+                stream(nested, receiver, node, doc, setId);
+            }
+        }
+
+        private XInclude nestedInstance(XdmNode node) {
+            XInclude nested = xinclude.newInstance();
+            if (getFixupXmlLang() && contextLanguage(node) != null) {
+                nested.inheritedLanguage = "";
+            }
+            return nested;
+        }
+
+        // Expand the XIncludes in document, the result of an xi:include, applying the xml:base,
+        // xml:lang, and attribute fixups to its top-level elements as they're written to the receiver.
+        private void stream(XInclude nested, Receiver receiver, XdmNode xinclude, XdmNode document, String setId) throws XPathException {
+            TreeWalker walker = nested.newWalker();
+            if (needsFixupTree(document)) {
+                walker.traverse(receiver, fixup(xinclude, document, setId));
+            } else {
+                ArrayList<XdmNode> elements = new ArrayList<>();
+                for (XdmNode child : document.children()) {
+                    if (child.getNodeKind() == XdmNodeKind.ELEMENT) {
+                        elements.add(child);
                     }
-                    doc = fixup(node, doc, setId);
-                    doc = nested.internalExpandXIncludes(doc);
                 }
-            } catch (Exception e) {
-                if (fallback != null) {
-                    doc = processFallback(fallback);
+                walker.traverse(new FixupFilter(receiver, xinclude, elements, setId), document);
+            }
+        }
 
-                    XInclude nested = xinclude.newInstance();
-                    doc = fixup(node, doc, setId);
-                    doc = nested.internalExpandXIncludes(doc);
+        // Writes a selection from an unexpanded document. Only a selection that contains XInclude
+        // elements has to be built and expanded; anything else goes straight to the receiver.
+        private ExistingTree includeSelection(XInclude nested, Receiver receiver, XdmNode xinclude, SelectionResult selection, String setId) throws XPathException {
+            if (containsXInclude(selection.getSelectedNodes())) {
+                copy(receiver, pruneNamespaces(expand(nested, xinclude, selection.getResult(), setId)));
+                return null;
+            }
+            sendSelection(receiver, xinclude, selection, setId);
+            return new ExistingTree(null, selection, false);
+        }
 
-                } else {
-                    throw e;
+        // Writes a memoized result again, with the fixups for this xi:include (which, having
+        // the same memo key, are the same as the fixups it was first written with)
+        private void writeExisting(Receiver receiver, XdmNode xinclude, ExistingTree existing, String setId) throws XPathException {
+            if (existing.text) {
+                writeText(receiver, existing.document);
+            } else if (existing.selection != null) {
+                sendSelection(receiver, xinclude, existing.selection, setId);
+            } else {
+                stream(nestedInstance(xinclude), receiver, xinclude, existing.document, setId);
+            }
+        }
+
+        // Sends the selected nodes to the receiver, applying the fixups to the top-level elements
+        // as they go by, without building a document for them
+        private void sendSelection(Receiver receiver, XdmNode xinclude, SelectionResult selection, String setId) throws XPathException {
+            ArrayList<XdmNode> elements = new ArrayList<>();
+            for (XdmNode node : selection.getSelectedNodes()) {
+                if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
+                    elements.add(node);
                 }
             }
+            selection.send(new FixupFilter(receiver, xinclude, elements, setId));
+        }
 
-            // If we did a text parse and trim text is true, strip leading and trailing
-            // spaces off each line. All trailing spaces are stripped, the number of leading
-            // spaces is determined by the number of spaces on the first line.
-            if (getTrimText() && parse == ParseType.TEXTPARSE) {
-                String[] lines = doc.getStringValue().split("\n", -1); // -1 == include empty trailing strings
-
-                if (lines.length > 0) {
-                    int trimleading = -1;
-                    for (String line : lines) {
-                        // (Effectively) blank lines don't count
-                        if (!line.trim().isEmpty()) {
-                            int leading = 0;
-                            while (leading < line.length() && line.charAt(leading) == ' ') {
-                                leading++;
-                            }
-                            if (trimleading < 0 || leading < trimleading) {
-                                trimleading = leading;
-                            }
-                            if (trimleading == 0) {
-                                break;
-                            }
+        // True unless the nodes are known not to contain any XInclude elements
+        private boolean containsXInclude(XdmNode[] nodes) {
+            if (nodes == null) {
+                return true;
+            }
+            for (XdmNode node : nodes) {
+                if (node.getNodeKind() == XdmNodeKind.ELEMENT || node.getNodeKind() == XdmNodeKind.DOCUMENT) {
+                    XdmSequenceIterator<XdmNode> iter = node.axisIterator(Axis.DESCENDANT_OR_SELF);
+                    while (iter.hasNext()) {
+                        XdmNode descendant = iter.next();
+                        if (descendant.getNodeKind() == XdmNodeKind.ELEMENT
+                                && NS_XINCLUDE.equals(descendant.getNodeName().getNamespaceURI())) {
+                            return true;
                         }
                     }
+                }
+            }
+            return false;
+        }
 
-                    XdmDestination destination = new XdmDestination();
-                    Receiver receiver = ReceiverUtils.makeReceiver(doc, destination);
-                    for (int pos = 0; pos < lines.length; pos++) {
-                        if (!lines[pos].isEmpty()) {
-                            int first = 0;
-                            while (first < trimleading && first < lines[pos].length() && lines[pos].charAt(first) == ' ') {
-                                first++;
-                            }
-                            if (first < lines[pos].length()) {
-                                int last = lines[pos].length()-1;
-                                while (last > first && lines[pos].charAt(last) == ' ') {
-                                    last--;
+        private XdmNode expand(XInclude nested, XdmNode xinclude, XdmNode document, String setId) throws XPathException {
+            XdmDestination destination = new XdmDestination();
+            Receiver receiver = ReceiverUtils.makeReceiver(document, destination);
+            receiver.startDocument(0);
+            stream(nested, receiver, xinclude, document, setId);
+            receiver.endDocument();
+            receiver.close();
+            return destination.getXdmNode();
+        }
+
+        // XInclude elements can see the fixups on the top-level elements: an xi:include at the
+        // top-level has them itself, and a same-document reference may select them. In those
+        // cases, the fixups have to be applied before the document is expanded.
+        private boolean needsFixupTree(XdmNode document) {
+            for (XdmNode child : document.children()) {
+                if (child.getNodeKind() == XdmNodeKind.ELEMENT && NS_XINCLUDE.equals(child.getNodeName().getNamespaceURI())) {
+                    return true;
+                }
+            }
+
+            XdmSequenceIterator<XdmNode> iter = document.axisIterator(Axis.DESCENDANT, xi_include);
+            while (iter.hasNext()) {
+                String href = iter.next().getAttributeValue(_href);
+                if (href == null || href.trim().isEmpty()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // If we did a text parse and trim text is true, strip leading and trailing
+        // spaces off each line. All trailing spaces are stripped, the number of leading
+        // spaces is determined by the number of spaces on the first line.
+        private void writeText(Receiver receiver, XdmNode doc) throws XPathException {
+            if (!getTrimText()) {
+                copy(receiver, doc);
+                return;
+            }
+
+            String text = TextUtils.trimLines(doc.getStringValue());
+            if (!text.isEmpty()) {
+                ReceiverUtils.handleCharacters(receiver, text);
+            }
+        }
+
+        // The result of an include depends on the attributes of the xi:include, the base URI
+        // and language it inherits, the documents currently being included (for loop detection),
+        // and any scheme data accumulated by earlier pointers. Same-document references also
+        // depend on the including document, so they aren't memoized.
+        private List<Object> memoKey(XdmNode node, String href) {
+            if (!memoizeIncludes || href == null || href.trim().isEmpty()) {
+                return null;
+            }
+
+            URI absolute;
+            try {
+                absolute = node.getBaseURI().resolve(href.trim());
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+
+            List<Object> key = new ArrayList<>();
+            key.add(absolute);
+            for (AttributeInfo ainfo : node.getUnderlyingNode().attributes()) {
+                NodeName aname = ainfo.getNodeName();
+                if (!_href.getLocalName().equals(aname.getLocalPart()) || !aname.getURI().isEmpty()) {
+                    key.add(aname.getStructuredQName());
+                    key.add(ainfo.getValue());
+                }
+            }
+
+            XdmNode parent = node.getParent();
+            key.add(parent.getBaseURI());
+            key.add(contextLanguage(node));
+            key.add(new ArrayList<>(uriStack));
+            key.add(new ArrayList<>(data));
+            return key;
+        }
+
+        // Returns null if lazy is true and the selection might have been different had the
+        // document been expanded first; in that case, the caller must expand and select again.
+        private SelectionResult selectFragment(XdmNode node, String xptr, ParseType parse, XdmNode doc, HashSet<XdmNode> ancestors, boolean lazy) {
+            Exception lastException = null;
+            SelectionResult selection = null;
+            int dataMark = data.size();
+            boolean unexpanded = lazy && doc.axisIterator(Axis.DESCENDANT, xi_include).hasNext();
+            boolean stable = true;
+
+            Scheme[] pointers = parsePointers(node, xptr, parse);
+            for (Scheme pointer : pointers) {
+                if (selection == null && stable) {
+                    if (unexpanded && !(pointer instanceof ElementScheme || pointer instanceof XmlnsScheme)) {
+                        // Arbitrary XPath expressions can see anything the includes produce
+                        stable = false;
+                    }
+
+                    try {
+                        SchemeData[] array = new SchemeData[data.size()];
+                        data.toArray(array);
+                        SelectionResult result = pointer.select(array, doc);
+
+                        if (ancestors != null) {
+                            for (XdmNode selected : result.getSelectedNodes()) {
+                                if (ancestors.contains(selected)) {
+                                    throw new XIncludeLoopException("XInclude same-document reference to ancestor forms a loop");
                                 }
-                                // There must be at least one non-space character on the line, so
-                                // this is always going to be a legal substring
-                                ReceiverUtils.handleCharacters(receiver, lines[pos].substring(first, last+1));
                             }
                         }
-                        // Only output newlines between lines, not after the last line
-                        if (pos+1 < lines.length) {
-                            ReceiverUtils.handleCharacters(receiver, "\n");
+
+                        Collections.addAll(data, result.getSchemeData());
+                        if (result.finished() && selected(result)) {
+                            if (unexpanded && pointer instanceof ElementScheme) {
+                                stable = stableSelection((ElementScheme) pointer, result.getSelectedNodes());
+                            }
+                            if (stable) {
+                                selection = result;
+                            }
                         }
+                    } catch (Exception e) {
+                        lastException = e;
+                    }
+
+                    if (unexpanded && selection == null && !(pointer instanceof XmlnsScheme)) {
+                        // The target may be in one of the included documents
+                        stable = false;
                     }
-                    receiver.close();
-                    doc = destination.getXdmNode();
                 }
             }
 
-            return doc;
+            if (!stable || (unexpanded && selection == null)) {
+                data.setSize(dataMark);
+                return null;
+            }
+
+            if (selection == null) {
+                if (lastException != null) {
+                    throw new XIncludeNoFragmentException("Failed to locate fragment: " + xptr + " (" + lastException.getMessage() + ")", lastException);
+                }
+                throw new XIncludeNoFragmentException("Failed to locate fragment: " + xptr);
+            }
+
+            return selection;
+        }
+
+        // True if the pointer selected something. The result document is only built to find out
+        // if the scheme doesn't say which nodes it selected.
+        private boolean selected(SelectionResult result) {
+            XdmNode[] nodes = result.getSelectedNodes();
+            if (nodes != null && nodes.length > 0) {
+                return true;
+            }
+            return result.getResult() != null;
+        }
+
+        // An element() pointer that starts with an ID only needs the identified element, so a
+        // PartialXmlResolver can stop parsing as soon as it's been read. Returns null if the
+        // pointer has to be evaluated against the whole document (or the document has already
+        // been requested in full).
+        private SelectionResult selectPartial(XdmNode node, String href, String xptr, String setId, String accept, String accept_lang) {
+            if (!(resolver instanceof PartialXmlResolver)
+                    || (prefetcher != null && prefetcher.isRequested(ParseType.XMLPARSE, node, href, null, accept, accept_lang))) {
+                return null;
+            }
+
+            Scheme[] pointers = parsePointers(node, xptr, ParseType.XMLPARSE);
+            if (pointers.length != 1 || !(pointers[0] instanceof ElementScheme)) {
+                return null;
+            }
+            String id = ((ElementScheme) pointers[0]).getIdentifier();
+            if (id == null || !NameChecker.isValidNCName(id)) {
+                return null;
+            }
+
+            URI loading = absoluteURI(node, href);
+            Configuration config = node.getUnderlyingNode().getConfiguration();
+            ActiveLoads.started(config, loading);
+            try {
+                XdmNode partial = ((PartialXmlResolver) resolver).resolveXmlId(node, href, accept, accept_lang, id);
+                if (partial == null) {
+                    return null;
+                }
+                return selectFragment(node, xptr, ParseType.XMLPARSE, fixup(node, partial, setId), null, true);
+            } catch (RuntimeException ex) {
+                // Whatever went wrong, resolving the whole document will report it properly
+                return null;
+            } finally {
+                ActiveLoads.finished(config, loading);
+            }
+        }
+
+        private Scheme[] parsePointers(XdmNode node, String xptr, ParseType parse) {
+            // The parser is shared by all the expansions, and the properties only matter while parsing
+            synchronized (fragmentIdParser) {
+                fragmentIdParser.setProperty(xml_base, node.getParent().getBaseURI().toString());
+                fragmentIdParser.setProperty(xml_lang, contextLanguage(node));
+                try {
+                    return fragmentIdParser.parseFragmentIdentifier(parse, xptr);
+                } finally {
+                    fragmentIdParser.setProperty(xml_base, null);
+                    fragmentIdParser.setProperty(xml_lang, null);
+                }
+            }
+        }
+
+        // The group of search includes this one belongs to, or null if no other include in the
+        // document searches the same text
+        private SearchGroup searchGroup(XdmNode node, String href, String xptr, String encoding, String accept, String accept_lang) {
+            if (!(searchPointer(node, xptr) instanceof SearchScheme)) {
+                return null;
+            }
+
+            XdmNode root = node;
+            while (root.getParent() != null) {
+                root = root.getParent();
+            }
+
+            Map<List<Object>, SearchGroup> groups;
+            synchronized (searchGroups) {
+                TreeInfo tree = root.getUnderlyingNode().getTreeInfo();
+                groups = searchGroups.get(tree);
+                if (groups == null) {
+                    groups = findSearchGroups(root);
+                    searchGroups.put(tree, groups);
+                }
+            }
+            return groups.get(searchKey(node, href, encoding, accept, accept_lang));
+        }
+
+        // Groups the search includes in a document by the text they search; only groups with
+        // more than one include are kept
+        private Map<List<Object>, SearchGroup> findSearchGroups(XdmNode root) {
+            Map<List<Object>, SearchGroup> groups = new HashMap<>();
+            XdmSequenceIterator<XdmNode> iter = root.axisIterator(Axis.DESCENDANT_OR_SELF, xi_include);
+            while (iter.hasNext()) {
+                XdmNode xinclude = iter.next();
+                String href = xinclude.getAttributeValue(_href);
+                String xptr = xinclude.getAttributeValue(_fragid);
+                if (xptr == null) {
+                    xptr = xinclude.getAttributeValue(_xpointer);
+                }
+                String encoding = xinclude.getAttributeValue(_encoding);
+                if (href == null || href.trim().isEmpty() || xptr == null
+                        || parseType(xinclude.getAttributeValue(_parse)) != ParseType.TEXTPARSE) {
+                    continue;
+                }
+
+                Scheme pointer = searchPointer(xinclude, textPointer(xptr));
+                List<Object> key = searchKey(xinclude, href.trim(), encoding == null ? "UTF-8" : encoding,
+                        xinclude.getAttributeValue(_accept), xinclude.getAttributeValue(_accept_language));
+                if (pointer instanceof SearchScheme && key != null) {
+                    groups.computeIfAbsent(key, k -> new SearchGroup()).schemes.add((SearchScheme) pointer);
+                }
+            }
+            groups.values().removeIf(group -> group.schemes.size() < 2);
+            return groups;
+        }
+
+        private Scheme searchPointer(XdmNode node, String xptr) {
+            try {
+                Scheme[] pointers = parsePointers(node, xptr, ParseType.TEXTPARSE);
+                return pointers.length == 1 ? pointers[0] : null;
+            } catch (RuntimeException ex) {
+                // Leave it to selectFragment to report
+                return null;
+            }
+        }
+
+        private List<Object> searchKey(XdmNode node, String href, String encoding, String accept, String accept_lang) {
+            URI absolute = absoluteURI(node, href);
+            return absolute == null ? null : Arrays.asList(absolute, encoding, accept, accept_lang);
+        }
+
+        // If the pointer is a plain line= or char= range, or a search, and the resolver can select
+        // as it reads, there's no need to load the whole text and select from it.
+        private TextSelector textSelector(XdmNode node, String xptr) {
+            if (!(resolver instanceof TextRangeResolver)) {
+                return null;
+            }
+            try {
+                Scheme[] pointers = parsePointers(node, xptr, ParseType.TEXTPARSE);
+                if (pointers.length == 1 && pointers[0] instanceof RFC5147Scheme) {
+                    return ((RFC5147Scheme) pointers[0]).getTextRange();
+                }
+                if (pointers.length == 1 && pointers[0] instanceof SearchScheme) {
+                    return (SearchScheme) pointers[0];
+                }
+            } catch (RuntimeException ex) {
+                // Leave it to selectFragment to report
+            }
+            return null;
+        }
+
+        private XdmNode resolveSelection(XdmNode xinclude, String href, String xptr, String encoding, String accept,
+                                         String accept_lang, TextSelector selector) {
+            TextRangeResolver textResolver = (TextRangeResolver) resolver;
+            XdmNode selection;
+            try {
+                if (selector instanceof TextRange) {
+                    selection = textResolver.resolveTextRange(xinclude, href, encoding, accept, accept_lang, (TextRange) selector);
+                } else {
+                    // Report selection errors as selectFragment would, not as failures to load the resource
+                    selection = textResolver.resolveTextSelection(xinclude, href, encoding, accept, accept_lang, reader -> {
+                        try {
+                            return selector.select(reader);
+                        } catch (XIncludeNoFragmentException ex) {
+                            throw ex;
+                        } catch (RuntimeException ex) {
+                            throw new XIncludeNoFragmentException("Failed to locate fragment: " + xptr + " (" + ex.getMessage() + ")", ex);
+                        }
+                    });
+                }
+            } catch (XIncludeNoFragmentException ex) {
+                throw ex;
+            } catch (RuntimeException ex) {
+                recordFailure(ParseType.TEXTPARSE, xinclude, href, encoding, accept, accept_lang, ex);
+                throw ex;
+            }
+            if (selection == null) {
+                throw new XIncludeNoFragmentException("Failed to locate fragment: " + xptr);
+            }
+            return selection;
+        }
+
+        // Selecting a fragment copies it without the namespace bindings it doesn't use. When the
+        // fragment is expanded after selection, the included documents bring their bindings
+        // along, so drop the unused ones again to get the same result as expanding first.
+        private XdmNode pruneNamespaces(XdmNode document) throws XPathException {
+            XdmDestination destination = new XdmDestination();
+            Receiver receiver = ReceiverUtils.makeReceiver(document, destination, ReceiverUtils.nodeBaseURI(document));
+            receiver.startDocument(0);
+            for (XdmNode child : document.children()) {
+                if (child.getNodeKind() == XdmNodeKind.ELEMENT) {
+                    Location loc = new Loc(child.getBaseURI().toASCIIString(), -1, -1);
+                    receiver.append(child.getUnderlyingNode(), loc, 0);
+                } else {
+                    receiver.append(child.getUnderlyingNode());
+                }
+            }
+            receiver.endDocument();
+            receiver.close();
+            return destination.getXdmNode();
+        }
+
+        // An element() pointer selects the same element before and after expansion if the
+        // element isn't inside an XInclude element and no XInclude element precedes any of
+        // the elements counted by the child sequence. (This assumes IDs are unique.)
+        private boolean stableSelection(ElementScheme pointer, XdmNode[] selectedNodes) {
+            for (XdmNode selected : selectedNodes) {
+                int steps = pointer.getChildSequence().length;
+                XdmNode step = selected;
+                while (step != null && step.getNodeKind() == XdmNodeKind.ELEMENT) {
+                    if (NS_XINCLUDE.equals(step.getNodeName().getNamespaceURI())) {
+                        return false;
+                    }
+                    if (steps > 0 && step.axisIterator(Axis.PRECEDING_SIBLING, xi_include).hasNext()) {
+                        return false;
+                    }
+                    steps--;
+                    step = step.getParent();
+                }
+            }
+            return true;
         }
 
         private XdmNode fixup(XdmNode xinclude, XdmNode document, String setId) {
@@ -564,9 +1330,6 @@ public class XInclude {
                 throw new IllegalArgumentException("XInclude fixup can only be called on a document");
             }
 
-            String contextLanguage = NodeUtils.getLang(xinclude.getParent());
-            String contextBaseURI = NodeUtils.getLang(xinclude.getParent());
-
             try {
                 XdmDestination destination = new XdmDestination();
                 Receiver receiver = ReceiverUtils.makeReceiver(document, destination);
@@ -578,72 +1341,7 @@ public class XInclude {
                     XdmNode node = iter.next();
 
                     if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
-                        HashSet<NodeName> copied = new HashSet<>();
-                        AttributeMap amap = EmptyAttributeMap.getInstance();
-                        AttributeMap attributes = node.getUnderlyingNode().attributes();
-
-                        if (copyAttributes) {
-                            // Handle set-xml-id; it suppresses copying the xml:id attribute and optionally
-                            // provides a value for it. (The value "" removes the xml:id.)
-                            if (setId != null) {
-                                copied.add(fq_xml_id);
-                                if (!setId.isEmpty()) {
-                                    // If we have an EE processor, this should probably be of type ID.
-                                    amap = amap.put(new AttributeInfo(fq_xml_id, BuiltInAtomicType.UNTYPED_ATOMIC, setId, null, ReceiverOption.NONE));
-                                }
-                            }
-
-                            for (AttributeInfo ainfo : xinclude.getUnderlyingNode().attributes()) {
-                                // Attribute must be in a namespace
-                                String nsuri = ainfo.getNodeName().getURI();
-                                boolean copy = (nsuri != null && !nsuri.isEmpty());
-
-                                // But not in the XML namespace
-                                copy = copy && !NS_XML.equals(nsuri);
-
-                                if (copy) {
-                                    NodeName aname = ainfo.getNodeName();
-                                    if (localAttrNS.equals(aname.getURI())) {
-                                        aname = NamespaceUtils.fqName("", "", aname.getLocalPart());
-                                    }
-
-                                    copied.add(aname);
-                                    amap = amap.put(new AttributeInfo(aname, ainfo.getType(), ainfo.getValue(), ainfo.getLocation(), ReceiverOption.NONE));
-                                }
-                            }
-                        }
-
-                        if (getFixupXmlBase() && node.getBaseURI() != null) {
-                            if (contextBaseURI == null || !contextBaseURI.equals(node.getBaseURI().toString())) {
-                                AttributeInfo base = new AttributeInfo(fq_xml_base,
-                                        BuiltInAtomicType.UNTYPED_ATOMIC,
-                                        node.getBaseURI().toString(),
-                                        Loc.NONE, ReceiverOption.NONE);
-                                amap = amap.put(base);
-                            }
-                        }
-
-                        if (getFixupXmlLang()) {
-                            String lang = NodeUtils.getLang(node);
-                            if (lang == null && contextLanguage != null) {
-                                lang = "";
-                            }
-                            if (lang != null) {
-                                AttributeInfo xml_lang = new AttributeInfo(fq_xml_lang,
-                                        BuiltInAtomicType.UNTYPED_ATOMIC,
-                                        lang,
-                                        Loc.NONE, ReceiverOption.NONE);
-                                amap = amap.put(xml_lang);
-                            }
-                        }
-
-                        for (AttributeInfo ainfo : attributes) {
-                            if (!copied.contains(ainfo.getNodeName())) {
-                                copied.add(ainfo.getNodeName());
-                                amap = amap.put(ainfo);
-                            }
-                        }
-
+                        AttributeMap amap = fixupAttributes(xinclude, node.getBaseURI(), node.getUnderlyingNode().attributes(), setId);
                         NodeInfo ni = node.getUnderlyingNode();
                         FingerprintedQName name = NamespaceUtils.fqName(ni.getPrefix(), ni.getURI(), ni.getLocalPart());
                         receiver.startElement(name, ni.getSchemaType(), amap, ni.getAllNamespaces(), ni.saveLocation(), 0);
@@ -666,6 +1364,121 @@ public class XInclude {
             }
         }
 
+        // The attributes of a top-level element in the result of xinclude, after fixup. The
+        // element has no ancestors, so its own xml:lang, if any, is its language.
+        private AttributeMap fixupAttributes(XdmNode xinclude, URI baseURI, AttributeMap attributes, String setId) {
+            String contextLanguage = contextLanguage(xinclude);
+            String contextBaseURI = NodeUtils.getLang(xinclude.getParent());
+
+            HashSet<NodeName> copied = new HashSet<>();
+            AttributeMap amap = EmptyAttributeMap.getInstance();
+
+            if (copyAttributes) {
+                // Handle set-xml-id; it suppresses copying the xml:id attribute and optionally
+                // provides a value for it. (The value "" removes the xml:id.)
+                if (setId != null) {
+                    copied.add(fq_xml_id);
+                    if (!setId.isEmpty()) {
+                        // If we have an EE processor, this should probably be of type ID.
+                        amap = amap.put(new AttributeInfo(fq_xml_id, BuiltInAtomicType.UNTYPED_ATOMIC, setId, Loc.NONE, ReceiverOption.NONE));
+                    }
+                }
+
+                for (AttributeInfo ainfo : xinclude.getUnderlyingNode().attributes()) {
+                    // Attribute must be in a namespace
+                    String nsuri = ainfo.getNodeName().getURI();
+                    boolean copy = (nsuri != null && !nsuri.isEmpty());
+
+                    // But not in the XML namespace
+                    copy = copy && !NS_XML.equals(nsuri);
+
+                    if (copy) {
+                        NodeName aname = ainfo.getNodeName();
+                        if (localAttrNS.equals(aname.getURI())) {
+                            aname = NamespaceUtils.fqName("", "", aname.getLocalPart());
+                        }
+
+                        copied.add(aname);
+                        amap = amap.put(new AttributeInfo(aname, ainfo.getType(), ainfo.getValue(), ainfo.getLocation(), ReceiverOption.NONE));
+                    }
+                }
+            }
+
+            if (getFixupXmlBase() && baseURI != null) {
+                if (contextBaseURI == null || !contextBaseURI.equals(baseURI.toString())) {
+                    AttributeInfo base = new AttributeInfo(fq_xml_base,
+                            BuiltInAtomicType.UNTYPED_ATOMIC,
+                            baseURI.toString(),
+                            Loc.NONE, ReceiverOption.NONE);
+                    amap = amap.put(base);
+                }
+            }
+
+            if (getFixupXmlLang()) {
+                String lang = null;
+                for (AttributeInfo ainfo : attributes) {
+                    if ("lang".equals(ainfo.getNodeName().getLocalPart()) && NS_XML.equals(ainfo.getNodeName().getURI())) {
+                        lang = ainfo.getValue();
+                    }
+                }
+                if (lang == null && contextLanguage != null) {
+                    lang = "";
+                }
+                if (lang != null) {
+                    AttributeInfo xml_lang = new AttributeInfo(fq_xml_lang,
+                            BuiltInAtomicType.UNTYPED_ATOMIC,
+                            lang,
+                            Loc.NONE, ReceiverOption.NONE);
+                    amap = amap.put(xml_lang);
+                }
+            }
+
+            for (AttributeInfo ainfo : attributes) {
+                if (!copied.contains(ainfo.getNodeName())) {
+                    copied.add(ainfo.getNodeName());
+                    amap = amap.put(ainfo);
+                }
+            }
+
+            return amap;
+        }
+
+        // Copies a (fully expanded) document to the receiver
+        private void copy(Receiver receiver, XdmNode document) throws XPathException {
+            new TreeWalker().traverse(receiver, document);
+        }
+
+        // Applies the fixups to the top-level elements of an included document (or selection) as
+        // they go by. The elements are only used to find the base URI for each event.
+        private class FixupFilter extends ProxyReceiver {
+            private final XdmNode xinclude;
+            private final String setId;
+            private final Iterator<XdmNode> elements;
+            private int depth = 0;
+
+            FixupFilter(Receiver next, XdmNode xinclude, List<XdmNode> elements, String setId) {
+                super(next);
+                this.xinclude = xinclude;
+                this.setId = setId;
+                this.elements = elements.iterator();
+            }
+
+            @Override
+            public void startElement(NodeName elemName, SchemaType type, AttributeMap attributes, NamespaceMap namespaces, Location location, int properties) throws XPathException {
+                if (depth == 0) {
+                    attributes = fixupAttributes(xinclude, elements.next().getBaseURI(), attributes, setId);
+                }
+                depth++;
+                super.startElement(elemName, type, attributes, namespaces, location, properties);
+            }
+
+            @Override
+            public void endElement() throws XPathException {
+                depth--;
+                super.endElement();
+            }
+        }
+
         private XdmNode processFallback(XdmNode fallback) {
             XdmSequenceIterator<XdmNode> iter = fallback.axisIterator(Axis.CHILD);
 
@@ -678,7 +1491,7 @@ public class XInclude {
                     if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
                         data.clear();
                         TreeWalker walker = new TreeWalker();
-                        walker.traverse(receiver, node, true);
+                        walker.traverse(receiver, node);
                     } else {
                         receiver.append(node.getUnderlyingNode());
                     }
@@ -694,7 +1507,7 @@ public class XInclude {
     }
 
     private static class XiFallbackHandler implements ElementHandler {
-        public XdmNode process(XdmNode node) {
+        public void process(Receiver receiver, XdmNode node) {
             throw new XIncludeSyntaxException("An xi:fallback element isn't allowed here");
         }
     }
@@ -703,6 +1516,7 @@ public class XInclude {
         private HashMap<QName,ElementHandler> handlers = new HashMap<>();
         private URI overrideBaseURI = null;
         private boolean root = true;
+        private HashMap<XdmNode, FutureTask<Speculation>> speculations = null;
 
         public void register(QName name, ElementHandler handler) {
             if (handlers.containsKey(name)) {
@@ -719,39 +1533,95 @@ public class XInclude {
             XdmDestination destination = new XdmDestination();
             Receiver receiver = ReceiverUtils.makeReceiver(node, destination);
             receiver.startDocument(0);
-            traverse(receiver, node, true);
+            traverse(receiver, node);
             receiver.endDocument();
             receiver.close();
             XdmNode result = destination.getXdmNode();
             return result;
         }
 
-        private void traverse(Receiver receiver, XdmNode node, boolean addMagicId) throws XPathException {
+        // Starts expanding the outermost xi:include elements in node on the executor
+        public void speculate(XdmNode node) {
+            ArrayList<XdmNode> includes = new ArrayList<>();
+            XdmSequenceIterator<XdmNode> iter = node.axisIterator(Axis.DESCENDANT_OR_SELF, xi_include);
+            while (iter.hasNext()) {
+                XdmNode xinclude = iter.next();
+                if (!xinclude.axisIterator(Axis.ANCESTOR, xi_include).hasNext()) {
+                    includes.add(xinclude);
+                }
+            }
+
+            if (includes.size() < 2) {
+                return;
+            }
+
+            speculations = new HashMap<>();
+            for (XdmNode xinclude : includes) {
+                FutureTask<Speculation> task = new FutureTask<>(() -> XInclude.this.speculate(xinclude));
+                speculations.put(xinclude, task);
+                getExecutor().execute(task);
+            }
+        }
+
+        // Writes the speculative result for xinclude, if it's the one a sequential expansion
+        // would have produced; returns false if the include has to be processed in order.
+        private boolean splice(Receiver receiver, XdmNode xinclude) throws XPathException {
+            FutureTask<Speculation> task = speculations.remove(xinclude);
+            if (task == null || !data.isEmpty()) {
+                return false;
+            }
+
+            // If no thread has picked it up yet, do it here rather than wait
+            task.run();
+
+            Speculation speculation;
+            try {
+                speculation = task.get();
+            } catch (ExecutionException ex) {
+                // Process it again in order, so that it fails (or falls back) the same way
+                return false;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            data.addAll(speculation.data);
+            new TreeWalker().traverse(receiver, speculation.result);
+            return true;
+        }
+
+        private void cancelSpeculations() {
+            if (speculations != null) {
+                for (FutureTask<Speculation> task : speculations.values()) {
+                    task.cancel(false);
+                }
+                speculations.clear();
+            }
+        }
+
+        // Each element is written with its own location, so base URIs survive without xml:base fixup
+        private void traverse(Receiver receiver, XdmNode node) throws XPathException {
             XdmSequenceIterator<XdmNode> iter = null;
 
+            if (prefetcher != null && node.getParent() == null && handlers.containsKey(xi_include)) {
+                prefetcher.scan(node);
+            }
+
             if (node.getNodeKind() == XdmNodeKind.DOCUMENT) {
                 iter = node.axisIterator(Axis.CHILD);
                 while (iter.hasNext()) {
                     XdmNode item = iter.next();
                     if (item.getNodeKind() == XdmNodeKind.ELEMENT) {
-                        traverse(receiver, item, addMagicId);
+                        traverse(receiver, item);
                     } else {
                         receiver.append(item.getUnderlyingNode());
                     }
                 }
             } else if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
                 if (handlers.containsKey(node.getNodeName())) {
-                    XdmNode handled = handlers.get(node.getNodeName()).process(node);
-                    Location loc = new IncludeLocation(handled.getBaseURI().toString(), handled.getLineNumber(), handled.getColumnNumber());
-                    if (!fixupXmlBase) {
-                        for (XdmNode child : handled.children()) {
-                            if (child.getNodeKind() == XdmNodeKind.ELEMENT) {
-                                String id = child.getAttributeValue(magic_id);
-                                magicBaseUriMap.put(id, loc);
-                            }
-                        }
+                    if (speculations == null || !splice(receiver, node)) {
+                        handlers.get(node.getNodeName()).process(receiver, node);
                     }
-                    receiver.append(handled.getUnderlyingNode(), loc, ReceiverOption.ALL_NAMESPACES);
                 } else {
                     root = false;
                     NodeInfo inode = node.getUnderlyingNode();
@@ -766,39 +1636,12 @@ public class XInclude {
                         amap = inode.attributes();
                     }
 
-                    NamespaceMap nmap = inode.getAllNamespaces();
-
-                    if (!fixupXmlBase) {
-                        String mprefix = "xi_magic";
-                        int mcount = 1;
-                        boolean found = true;
-                        while (found) {
-                            found = false;
-                            for (String prefix : nmap.getPrefixArray()) {
-                                if (mprefix.equals(prefix)) {
-                                    found = true;
-                                    break;
-                                }
-                            }
-                            if (found) {
-                                mprefix = "xi_magic_" + mcount++;
-                            }
-                        }
-
-                        if (addMagicId) {
-                            String nextId = String.valueOf(magicId.nextId());
-                            FingerprintedQName element_id = NamespaceUtils.fqName(mprefix, MAGIC_ID_URI, "id");
-                            amap = amap.put(new AttributeInfo(element_id, BuiltInAtomicType.UNTYPED_ATOMIC, nextId, inode.saveLocation(), 0));
-                            nmap = NamespaceUtils.addNamespace(nmap, element_id.getPrefix(), MAGIC_ID_URI);
-                        }
-                    }
-
-                    receiver.startElement(name, inode.getSchemaType(), amap, nmap, inode.saveLocation(), 0);
+                    receiver.startElement(name, inode.getSchemaType(), amap, inode.getAllNamespaces(), inode.saveLocation(), 0);
                     iter = node.axisIterator(Axis.CHILD);
                     while (iter.hasNext()) {
                         XdmNode item = iter.next();
                         if (item.getNodeKind() == XdmNodeKind.ELEMENT) {
-                            traverse(receiver, item, false);
+                            traverse(receiver, item);
                         } else {
                             receiver.append(item.getUnderlyingNode());
                         }
@@ -811,65 +1654,64 @@ public class XInclude {
         }
     }
 
-    private static class IncludeLocation implements Location {
-        private final String systemId;
-        private final int lineNumber;
-        private final int columnNumber;
-
-        IncludeLocation(String systemId, int lineNumber, int columnNumber) {
-            this.systemId = systemId;
-            this.lineNumber = lineNumber;
-            this.columnNumber = columnNumber;
-        }
-
-        IncludeLocation(XdmNode node) {
-            systemId = node.getUnderlyingNode().getSystemId();
-            lineNumber = node.getUnderlyingNode().getLineNumber();
-            columnNumber = node.getUnderlyingNode().getColumnNumber();
-        }
-
-        IncludeLocation(XdmNode node, String overrideSystemId) {
-            systemId = overrideSystemId;
-            lineNumber = node.getUnderlyingNode().getLineNumber();
-            columnNumber = node.getUnderlyingNode().getColumnNumber();
-        }
+    private static class IncludeMemo {
+        private final HashMap<List<Object>, MemoEntry> results = new HashMap<>();
+        private int hits = 0;
+    }
 
-        IncludeLocation(Location location) {
-            systemId = location.getSystemId();
-            lineNumber = location.getLineNumber();
-            columnNumber = location.getColumnNumber();
-        }
+    private static class Speculation {
+        private final XdmNode result;
+        private final List<SchemeData> data;
 
-        @Override
-        public String getSystemId() {
-            return systemId;
-        }
-
-        @Override
-        public String getPublicId() {
-            return "";
+        Speculation(XdmNode result, List<SchemeData> data) {
+            this.result = result;
+            this.data = data;
         }
+    }
 
-        @Override
-        public int getLineNumber() {
-            return lineNumber;
+    // Search includes that select from the same text. The text is loaded once, when the first of
+    // them needs it, and the search strings of all of them are found in a single pass over it.
+    private static class SearchGroup {
+        private final List<SearchScheme> schemes = new ArrayList<>();
+        private XdmNode text = null;
+
+        synchronized XdmNode text(Supplier<XdmNode> loader) {
+            if (text == null) {
+                XdmNode document = loader.get();
+                try {
+                    SearchScheme.prepare(document, schemes);
+                } catch (RuntimeException ex) {
+                    // It isn't a text document; leave it to selectFragment to report
+                }
+                text = document;
+            }
+            return text;
         }
+    }
 
-        @Override
-        public int getColumnNumber() {
-            return columnNumber;
-        }
+    private static class MemoEntry {
+        private final XdmNode result;
+        private final ExistingTree existing;
+        private final List<SchemeData> data;
 
-        @Override
-        public Location saveLocation() {
-            return new IncludeLocation(systemId, lineNumber, columnNumber);
+        MemoEntry(XdmNode result, ExistingTree existing, List<SchemeData> data) {
+            this.result = result;
+            this.existing = existing;
+            this.data = data;
         }
     }
 
-    private static class MagicId {
-        private int id = 0;
-        public int nextId() {
-            return id++;
+    // A document (XML with no XIncludes in it, or text) or selection that an include was
+    // written from without changing it
+    private static class ExistingTree {
+        private final XdmNode document;
+        private final SelectionResult selection;
+        private final boolean text;
+
+        ExistingTree(XdmNode document, SelectionResult selection, boolean text) {
+            this.document = document;
+            this.selection = selection;
+            this.text = text;
         }
     }
 }
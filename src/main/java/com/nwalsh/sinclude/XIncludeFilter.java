@@ -0,0 +1,109 @@
+package com.nwalsh.sinclude;
+
+import net.sf.saxon.event.ContentHandlerProxy;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.ReceivingContentHandler;
+import net.sf.saxon.s9api.Processor;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import java.io.IOException;
+
+// A SAX filter that performs XInclude processing while the document is parsed. The events from
+// the parent reader go through an XIncludeReceiver, so only the xi:include elements (and the
+// documents they include) are ever built as trees.
+public class XIncludeFilter extends XMLFilterImpl {
+    private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+    private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+    private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+    private final Processor processor;
+    private final XInclude xinclude;
+    private LexicalHandler lexicalHandler = null;
+
+    public XIncludeFilter(Processor processor, XInclude xinclude) {
+        super();
+        this.processor = processor;
+        this.xinclude = xinclude;
+    }
+
+    public XIncludeFilter(XMLReader parent, Processor processor, XInclude xinclude) {
+        super(parent);
+        this.processor = processor;
+        this.xinclude = xinclude;
+    }
+
+    public XInclude getXInclude() {
+        return xinclude;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (LEXICAL_HANDLER.equals(name)) {
+            lexicalHandler = (LexicalHandler) value;
+        } else {
+            super.setProperty(name, value);
+        }
+    }
+
+    @Override
+    public Object getProperty(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (LEXICAL_HANDLER.equals(name)) {
+            return lexicalHandler;
+        }
+        return super.getProperty(name);
+    }
+
+    @Override
+    public void parse(InputSource input) throws SAXException, IOException {
+        XMLReader parent = getParent();
+        if (parent == null) {
+            throw new NullPointerException("No parent for filter");
+        }
+
+        ContentHandler handler = getContentHandler();
+        if (handler == null) {
+            handler = new DefaultHandler();
+        }
+
+        PipelineConfiguration pipe = processor.getUnderlyingConfiguration().makePipelineConfiguration();
+        ContentHandlerProxy proxy = new ContentHandlerProxy(handler);
+        proxy.setPipelineConfiguration(pipe);
+        if (lexicalHandler != null) {
+            proxy.setLexicalHandler(lexicalHandler);
+        } else if (handler instanceof LexicalHandler) {
+            proxy.setLexicalHandler((LexicalHandler) handler);
+        }
+
+        XIncludeReceiver receiver = new XIncludeReceiver(proxy, xinclude);
+        receiver.setPipelineConfiguration(pipe);
+        if (input.getSystemId() != null) {
+            receiver.setSystemId(input.getSystemId());
+        }
+
+        ReceivingContentHandler events = new ReceivingContentHandler();
+        events.setPipelineConfiguration(pipe);
+        events.setReceiver(receiver);
+
+        parent.setFeature(NAMESPACES, true);
+        parent.setFeature(NAMESPACE_PREFIXES, false);
+        parent.setContentHandler(events);
+        parent.setDTDHandler(events);
+        parent.setEntityResolver(this);
+        parent.setErrorHandler(this);
+        try {
+            parent.setProperty(LEXICAL_HANDLER, events);
+        } catch (SAXNotRecognizedException | SAXNotSupportedException ex) {
+            // Comments will be lost, but that's all
+        }
+
+        parent.parse(input);
+    }
+}
@@ -0,0 +1,100 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.exceptions.XIncludeException;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.FilterFactory;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.lib.AugmentedSource;
+import net.sf.saxon.lib.ParseOptions;
+
+import javax.xml.transform.Source;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+// Performs XInclude processing as documents are parsed, so the tree is built once with the
+// XIncludes already expanded. Install it on a Configuration to process every document that
+// configuration parses (including the ones loaded by doc() in a stylesheet), or augment a
+// single Source before passing it to a DocumentBuilder.
+public class XIncludeFilterFactory implements FilterFactory {
+    private static Boolean saxon12 = null;
+    private static Method addFilter;
+
+    private final DocumentResolver resolver;
+    private boolean trimText = false;
+    private boolean fixupXmlBase = true;
+    private boolean fixupXmlLang = true;
+
+    public XIncludeFilterFactory() {
+        resolver = new DefaultDocumentResolver();
+    }
+
+    public XIncludeFilterFactory(DocumentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public boolean getTrimText() {
+        return trimText;
+    }
+
+    public void setTrimText(boolean trim) {
+        trimText = trim;
+    }
+
+    public boolean getFixupXmlBase() {
+        return fixupXmlBase;
+    }
+
+    public void setFixupXmlBase(boolean fixup) {
+        fixupXmlBase = fixup;
+    }
+
+    public boolean getFixupXmlLang() {
+        return fixupXmlLang;
+    }
+
+    public void setFixupXmlLang(boolean fixup) {
+        fixupXmlLang = fixup;
+    }
+
+    public void install(Configuration config) {
+        if (saxon12 == null) {
+            try {
+                // Saxon 10 and 11 options are mutable; Saxon 12 options are replaced
+                addFilter = ParseOptions.class.getMethod("addFilter", FilterFactory.class);
+                saxon12 = false;
+            } catch (NoSuchMethodException ex) {
+                try {
+                    addFilter = ParseOptions.class.getMethod("withFilter", FilterFactory.class);
+                    saxon12 = true;
+                } catch (NoSuchMethodException ex12) {
+                    throw new XIncludeException("Failed to resolve Saxon filter methods with reflection");
+                }
+            }
+        }
+
+        try {
+            if (saxon12) {
+                config.setParseOptions((ParseOptions) addFilter.invoke(config.getParseOptions(), this));
+            } else {
+                addFilter.invoke(config.getParseOptions(), this);
+            }
+        } catch (InvocationTargetException | IllegalAccessException ex) {
+            throw new XIncludeException("Failed to install the filter with reflection");
+        }
+    }
+
+    public Source augment(Source source) {
+        AugmentedSource augmented = AugmentedSource.makeAugmentedSource(source);
+        augmented.addFilter(this);
+        return augmented;
+    }
+
+    @Override
+    public Receiver makeFilter(Receiver next) {
+        XInclude xinclude = new XInclude(resolver);
+        xinclude.setTrimText(trimText);
+        xinclude.setFixupXmlBase(fixupXmlBase);
+        xinclude.setFixupXmlLang(fixupXmlLang);
+        return new XIncludeReceiver(next, xinclude);
+    }
+}
@@ -0,0 +1,223 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.exceptions.XIncludeSyntaxException;
+import com.nwalsh.sinclude.utils.NamespaceUtils;
+import com.nwalsh.sinclude.utils.ReceiverUtils;
+import net.sf.saxon.event.ProxyReceiver;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.ReceiverOption;
+import net.sf.saxon.event.TreeReceiver;
+import net.sf.saxon.expr.parser.Loc;
+import net.sf.saxon.om.AttributeInfo;
+import net.sf.saxon.om.AttributeMap;
+import net.sf.saxon.om.EmptyAttributeMap;
+import net.sf.saxon.om.FingerprintedQName;
+import net.sf.saxon.om.NamespaceMap;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.Untyped;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+import static com.nwalsh.sinclude.utils.NodeUtils.xml_lang;
+
+// Performs XInclude processing on a stream of events. Everything except the xi:include elements
+// is passed straight through; each xi:include is collected into a small tree of its own (with a
+// parent that carries the base URI and language in scope) and replaced by the result of expanding
+// it. The including document is never built, so memory use is bounded by the largest inclusion.
+public class XIncludeReceiver extends ProxyReceiver {
+    private static final String NS_XML = "http://www.w3.org/XML/1998/namespace";
+    private static final String NS_XINCLUDE = "http://www.w3.org/2001/XInclude";
+    private static final FingerprintedQName fq_xml_lang = NamespaceUtils.fqName(xml_lang);
+    private static final FingerprintedQName context = NamespaceUtils.fqName("", "", "context");
+
+    private final XInclude xinclude;
+    private XInclude expansion = null;
+    private final Receiver output;
+    private URI documentURI = null;
+    private final Stack<URI> baseURIs = new Stack<>();
+    private final Stack<String> systemIds = new Stack<>();
+    private final Stack<String> languages = new Stack<>();
+    private final Stack<Integer> positions = new Stack<>();
+    private final List<Integer> path = new ArrayList<>();
+
+    private XdmDestination destination = null;
+    private Receiver capture = null;
+    private boolean wrapped = false;
+    private int depth = 0;
+    private boolean passThrough = false;
+
+    public XIncludeReceiver(Receiver next, XInclude xinclude) {
+        // The results of an xi:include are appended as nodes, which not every receiver supports
+        super(new TreeReceiver(next));
+        this.xinclude = xinclude;
+        output = getNextReceiver();
+    }
+
+    @Override
+    public void open() throws XPathException {
+        expansion = xinclude.newExpansion(getPipelineConfiguration().getConfiguration());
+        positions.push(0);
+        super.open();
+    }
+
+    @Override
+    public void startElement(NodeName elemName, SchemaType type, AttributeMap attributes, NamespaceMap namespaces, Location location, int properties) throws XPathException {
+        if (capture != null || passThrough) {
+            depth++;
+            super.startElement(elemName, type, attributes, namespaces, location, properties);
+            return;
+        }
+
+        String systemId = location == null ? null : location.getSystemId();
+        if (documentURI == null && path.isEmpty()) {
+            documentURI = toURI(systemId == null ? getSystemId() : systemId);
+            if (ActiveLoads.isLoading(getPipelineConfiguration().getConfiguration(), documentURI)) {
+                // An xi:include is loading this document; it expands it, with its own loop checks
+                passThrough = true;
+                depth = 1;
+                super.startElement(elemName, type, attributes, namespaces, location, properties);
+                return;
+            }
+        }
+
+        URI parentBase = baseURIs.isEmpty() ? documentURI : baseURIs.peek();
+        URI baseURI = parentBase;
+        if (systemId != null && (systemIds.isEmpty() || !systemId.equals(systemIds.peek()))) {
+            baseURI = toURI(systemId);
+        }
+        String xmlBase = xmlAttribute(attributes, "base");
+        if (xmlBase != null) {
+            baseURI = baseURI == null ? URI.create(xmlBase) : baseURI.resolve(xmlBase);
+        }
+
+        String parentLang = languages.isEmpty() ? null : languages.peek();
+        String lang = xmlAttribute(attributes, "lang");
+
+        int position = positions.pop() + 1;
+        positions.push(position);
+        positions.push(0);
+        path.add(position);
+        baseURIs.push(baseURI);
+        systemIds.push(systemId);
+        languages.push(lang == null ? parentLang : lang);
+
+        if (NS_XINCLUDE.equals(elemName.getURI())) {
+            if ("include".equals(elemName.getLocalPart())) {
+                Location loc = parentBase == null ? Loc.NONE : new Loc(parentBase.toString(), -1, -1);
+                destination = new XdmDestination();
+                capture = ReceiverUtils.makeReceiver(getPipelineConfiguration(), destination, documentURI);
+                capture.startDocument(0);
+                wrapped = path.size() > 1;
+                if (wrapped) {
+                    AttributeMap amap = EmptyAttributeMap.getInstance();
+                    if (parentLang != null) {
+                        amap = amap.put(new AttributeInfo(fq_xml_lang, BuiltInAtomicType.UNTYPED_ATOMIC, parentLang, Loc.NONE, ReceiverOption.NONE));
+                    }
+                    capture.startElement(context, Untyped.getInstance(), amap, namespaces, loc, 0);
+                }
+                depth = 1;
+                setUnderlyingReceiver(capture);
+                super.startElement(elemName, type, attributes, namespaces, loc, properties);
+                return;
+            }
+            if ("fallback".equals(elemName.getLocalPart())) {
+                throw new XIncludeSyntaxException("An xi:fallback element isn't allowed here");
+            }
+        }
+
+        super.startElement(elemName, type, attributes, namespaces, location, properties);
+    }
+
+    @Override
+    public void endElement() throws XPathException {
+        if (passThrough) {
+            depth--;
+            super.endElement();
+            return;
+        }
+
+        if (capture != null) {
+            depth--;
+            super.endElement();
+            if (depth > 0) {
+                return;
+            }
+
+            if (wrapped) {
+                capture.endElement();
+            }
+            capture.endDocument();
+            capture.close();
+            setUnderlyingReceiver(output);
+            capture = null;
+
+            XdmNode node = destination.getXdmNode();
+            destination = null;
+            node = firstElement(node);
+            if (wrapped) {
+                node = firstElement(node);
+            }
+            try {
+                expansion.expandStreamedXInclude(output, node, documentURI, path);
+            } catch (XPathException | RuntimeException e) {
+                expansion.cancelPrefetching();
+                throw e;
+            }
+        } else {
+            super.endElement();
+        }
+
+        positions.pop();
+        path.remove(path.size() - 1);
+        baseURIs.pop();
+        systemIds.pop();
+        languages.pop();
+    }
+
+    @Override
+    public void close() throws XPathException {
+        try {
+            super.close();
+        } finally {
+            if (expansion != null) {
+                expansion.cancelPrefetching();
+            }
+        }
+    }
+
+    private String xmlAttribute(AttributeMap attributes, String localName) {
+        for (AttributeInfo ainfo : attributes) {
+            NodeName aname = ainfo.getNodeName();
+            if (NS_XML.equals(aname.getURI()) && localName.equals(aname.getLocalPart())) {
+                return ainfo.getValue();
+            }
+        }
+        return null;
+    }
+
+    private XdmNode firstElement(XdmNode node) {
+        for (XdmNode child : node.children()) {
+            if (child.getNodeKind() == XdmNodeKind.ELEMENT) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private URI toURI(String systemId) {
+        if (systemId == null || systemId.isEmpty()) {
+            return null;
+        }
+        return URI.create(systemId);
+    }
+}
@@ -0,0 +1,97 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.data.XmlnsData;
+import com.nwalsh.sinclude.xpointer.SchemeData;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compiled expressions for the xpath() and element() schemes. An executable depends only on the
+// expression, the namespace bindings the xmlns() pointers before it declared, and the Saxon
+// configuration it was compiled for, not on the document it's evaluated against, so each
+// distinct combination is compiled once and every later pointer only has to load() it. The
+// cache is bounded; the least recently used expressions are dropped first. A single instance
+// can be shared by any number of XInclude processors and threads.
+
+public class XPathCache {
+    public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+
+    private final int maximumSize;
+    private final LinkedHashMap<List<Object>, XPathExecutable> executables;
+    private final AtomicLong hits = new AtomicLong(0);
+
+    public XPathCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public XPathCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size must be at least 1");
+        }
+        this.maximumSize = maximumSize;
+        executables = new LinkedHashMap<List<Object>, XPathExecutable>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, XPathExecutable> eldest) {
+                return size() > XPathCache.this.maximumSize;
+            }
+        };
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public synchronized int size() {
+        return executables.size();
+    }
+
+    // The number of lookups that found a compiled expression
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public synchronized void clear() {
+        executables.clear();
+    }
+
+    // Compiles the expression with the namespace bindings from the xmlns() scheme data, or
+    // returns the executable from the last time it was compiled that way
+    public XPathExecutable compile(Processor processor, String xpath, SchemeData[] schemeData) throws SaxonApiException {
+        // Later bindings for a prefix replace earlier ones, so only the final ones matter
+        TreeMap<String, String> bindings = new TreeMap<>();
+        for (SchemeData data : schemeData) {
+            if (data instanceof XmlnsData) {
+                XmlnsData xdata = (XmlnsData) data;
+                bindings.put(xdata.getPrefix(), xdata.getUri());
+            }
+        }
+
+        List<Object> key = Arrays.asList(processor.getUnderlyingConfiguration(), xpath, bindings);
+        synchronized (this) {
+            XPathExecutable executable = executables.get(key);
+            if (executable != null) {
+                hits.incrementAndGet();
+                return executable;
+            }
+        }
+
+        XPathCompiler xcomp = processor.newXPathCompiler();
+        for (Map.Entry<String, String> binding : bindings.entrySet()) {
+            xcomp.declareNamespace(binding.getKey(), binding.getValue());
+        }
+        XPathExecutable executable = xcomp.compile(xpath);
+
+        synchronized (this) {
+            executables.put(key, executable);
+        }
+        return executable;
+    }
+}
@@ -2,6 +2,8 @@ package com.nwalsh.sinclude.data;
 
 import com.nwalsh.sinclude.xpointer.SchemeData;
 
+import java.util.Objects;
+
 public class XmlnsData implements SchemeData {
     private String prefix = null;
     private String uri = null;
@@ -18,4 +20,19 @@ public class XmlnsData implements SchemeData {
     public String getUri() {
         return uri;
     }
+
+    // Scheme data is part of the include memo key, so equal bindings must be equal
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof XmlnsData)) {
+            return false;
+        }
+        XmlnsData other = (XmlnsData) obj;
+        return Objects.equals(prefix, other.prefix) && Objects.equals(uri, other.uri);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(prefix, uri);
+    }
 }
@@ -4,6 +4,7 @@ import com.nwalsh.sinclude.exceptions.TextContentException;
 import com.nwalsh.sinclude.utils.ReceiverUtils;
 import com.nwalsh.sinclude.xpointer.DefaultSelectionResult;
 import com.nwalsh.sinclude.xpointer.SelectionResult;
+import net.sf.saxon.om.TreeInfo;
 import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
@@ -29,6 +30,16 @@ public abstract class AbstractTextScheme {
         return text;
     }
 
+    // The text and its line offsets, computed once for each document
+    protected LineIndex getLineIndex(XdmNode document) {
+        TreeInfo tree = document.getUnderlyingNode().getTreeInfo();
+        LineIndex index = LineIndex.getIndex(tree);
+        if (index == null) {
+            index = LineIndex.getIndex(tree, getText(document));
+        }
+        return index;
+    }
+
     protected SelectionResult textResults(XdmNode document, String text) {
         return new DefaultSelectionResult(true, ReceiverUtils.makeTextDocument(document, text), null);
     }
@@ -5,20 +5,25 @@ import com.nwalsh.sinclude.exceptions.FixupException;
 import com.nwalsh.sinclude.utils.NamespaceUtils;
 import com.nwalsh.sinclude.utils.NodeUtils;
 import com.nwalsh.sinclude.utils.ReceiverUtils;
+import net.sf.saxon.event.ProxyReceiver;
 import net.sf.saxon.event.Receiver;
 import net.sf.saxon.event.ReceiverOption;
 import net.sf.saxon.expr.parser.Loc;
 import net.sf.saxon.om.AttributeInfo;
 import net.sf.saxon.om.AttributeMap;
+import net.sf.saxon.om.CopyOptions;
 import net.sf.saxon.om.FingerprintedQName;
-import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.NamespaceMap;
+import net.sf.saxon.om.NodeName;
 import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Location;
 import net.sf.saxon.s9api.XdmDestination;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
 import net.sf.saxon.s9api.XdmSequenceIterator;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.SchemaType;
 
 import static com.nwalsh.sinclude.utils.NodeUtils.xml_base;
 import static com.nwalsh.sinclude.utils.NodeUtils.xml_lang;
@@ -38,61 +43,90 @@ public abstract class AbstractXmlScheme {
             return node;
         }
 
-        String lang = null;
-        if (xinclude.getFixupXmlLang() && node.getAttributeValue(xml_lang) == null) {
-            lang = NodeUtils.getLang(node);
-            if (lang == null && contextLanguage != null) {
-                lang = ""; // Issue #8
-            }
+        try {
+            XdmDestination destination = new XdmDestination();
+            Receiver receiver = ReceiverUtils.makeReceiver(node, destination);
+            receiver.startDocument(0);
+            writeFixup(receiver, node, node.getUnderlyingNode().saveLocation());
+            receiver.endDocument();
+            receiver.close();
+
+            XdmNode document = destination.getXdmNode();
+            XdmSequenceIterator<XdmNode> iter = document.axisIterator(Axis.CHILD);
+            return iter.next();
+        } catch (XPathException e) {
+            throw new FixupException(e);
         }
+    }
 
+    // Writes the element to the receiver with the xml:base and xml:lang fixups added to its start tag
+    protected void writeFixup(Receiver receiver, XdmNode node, Location location) throws XPathException {
         if (node.getNodeKind() != XdmNodeKind.ELEMENT) {
             // This is an internal error and should never happen
             throw new IllegalArgumentException("XInclude scheme fixup can only be applied to elements");
         }
 
-        try {
-            XdmDestination destination = new XdmDestination();
-            Receiver receiver = ReceiverUtils.makeReceiver(node, destination);
-            receiver.startDocument(0);
-
-            AttributeMap attributes = node.getUnderlyingNode().attributes();
+        // Copying the element this way drops the namespace bindings it doesn't use, the same as
+        // appending it, but always writes it as events that filters downstream can see
+        if (!xinclude.getFixupXmlBase() && !xinclude.getFixupXmlLang()) {
+            node.getUnderlyingNode().copy(receiver, CopyOptions.TYPE_ANNOTATIONS, location);
+            return;
+        }
 
-            if (xinclude.getFixupXmlBase() && node.getBaseURI() != null) {
-                if (contextBaseURI == null || !contextBaseURI.equals(node.getBaseURI().toString())) {
-                    AttributeInfo base = new AttributeInfo(fq_xml_base,
-                            BuiltInAtomicType.UNTYPED_ATOMIC,
-                            node.getBaseURI().toString(),
-                            Loc.NONE, ReceiverOption.NONE);
-                    attributes = attributes.put(base);
-                }
+        String lang = null;
+        if (xinclude.getFixupXmlLang() && node.getAttributeValue(xml_lang) == null) {
+            lang = NodeUtils.getLang(node);
+            if (lang == null && contextLanguage != null) {
+                lang = ""; // Issue #8
             }
+        }
 
-            if (lang != null) {
-                AttributeInfo base = new AttributeInfo(fq_xml_lang,
+        AttributeMap attributes = node.getUnderlyingNode().attributes();
+
+        if (xinclude.getFixupXmlBase() && node.getBaseURI() != null) {
+            if (contextBaseURI == null || !contextBaseURI.equals(node.getBaseURI().toString())) {
+                AttributeInfo base = new AttributeInfo(fq_xml_base,
                         BuiltInAtomicType.UNTYPED_ATOMIC,
-                        lang,
+                        node.getBaseURI().toString(),
                         Loc.NONE, ReceiverOption.NONE);
                 attributes = attributes.put(base);
             }
+        }
 
-            NodeInfo ni = node.getUnderlyingNode();
-            FingerprintedQName name = NamespaceUtils.fqName(ni.getPrefix(), ni.getURI(), ni.getLocalPart());
-            receiver.startElement(name, ni.getSchemaType(), attributes, ni.getAllNamespaces(), ni.saveLocation(), 0);
-            XdmSequenceIterator<XdmNode> citer = node.axisIterator(Axis.CHILD);
-            while (citer.hasNext()) {
-                receiver.append(citer.next().getUnderlyingNode());
-            }
-            receiver.endElement();
+        if (lang != null) {
+            AttributeInfo base = new AttributeInfo(fq_xml_lang,
+                    BuiltInAtomicType.UNTYPED_ATOMIC,
+                    lang,
+                    Loc.NONE, ReceiverOption.NONE);
+            attributes = attributes.put(base);
+        }
 
-            receiver.endDocument();
-            receiver.close();
+        node.getUnderlyingNode().copy(new FixupFilter(receiver, attributes), CopyOptions.TYPE_ANNOTATIONS, location);
+    }
 
-            XdmNode document = destination.getXdmNode();
-            XdmSequenceIterator<XdmNode> iter = document.axisIterator(Axis.CHILD);
-            return iter.next();
-        } catch (XPathException e) {
-            throw new FixupException(e);
+    // Replaces the attributes of the top-level element as it goes by
+    private static class FixupFilter extends ProxyReceiver {
+        private final AttributeMap attributes;
+        private int depth = 0;
+
+        FixupFilter(Receiver next, AttributeMap attributes) {
+            super(next);
+            this.attributes = attributes;
+        }
+
+        @Override
+        public void startElement(NodeName elemName, SchemaType type, AttributeMap attributes, NamespaceMap namespaces, Location location, int properties) throws XPathException {
+            if (depth == 0) {
+                attributes = this.attributes;
+            }
+            depth++;
+            super.startElement(elemName, type, attributes, namespaces, location, properties);
+        }
+
+        @Override
+        public void endElement() throws XPathException {
+            depth--;
+            super.endElement();
         }
     }
 }
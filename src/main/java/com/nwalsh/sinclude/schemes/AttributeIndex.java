@@ -0,0 +1,88 @@
+package com.nwalsh.sinclude.schemes;
+
+import net.sf.saxon.om.AttributeInfo;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.type.AtomicType;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.SimpleType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The elements of a document, by the value of one of their attributes. The elements for an
+// attribute are found the first time that attribute is asked for, in one pass over the document,
+// and the index is kept in the document's user data, so it lasts exactly as long as the document.
+// An attribute whose values have been given a type other than a string (by a schema, say) isn't
+// indexed, because comparing it with a string isn't a string comparison.
+
+class AttributeIndex {
+    private static final String USER_DATA = AttributeIndex.class.getName();
+
+    private final NodeInfo document;
+    private final Map<String, Map<String, List<NodeInfo>>> attributes = new HashMap<>();
+
+    private AttributeIndex(NodeInfo document) {
+        this.document = document;
+    }
+
+    static AttributeIndex getIndex(NodeInfo document) {
+        TreeInfo tree = document.getTreeInfo();
+        synchronized (tree) {
+            AttributeIndex index = (AttributeIndex) tree.getUserData(USER_DATA);
+            if (index == null) {
+                index = new AttributeIndex(tree.getRootNode());
+                tree.setUserData(USER_DATA, index);
+            }
+            return index;
+        }
+    }
+
+    // The elements with the attribute value, in document order, or null if the attribute can't be indexed
+    synchronized List<NodeInfo> lookup(String uri, String local, String value) {
+        String name = "{" + uri + "}" + local;
+        if (!attributes.containsKey(name)) {
+            attributes.put(name, build(uri, local));
+        }
+
+        Map<String, List<NodeInfo>> values = attributes.get(name);
+        if (values == null) {
+            return null;
+        }
+        List<NodeInfo> elements = values.get(value);
+        return elements == null ? Collections.emptyList() : elements;
+    }
+
+    private Map<String, List<NodeInfo>> build(String uri, String local) {
+        Map<String, List<NodeInfo>> values = new HashMap<>();
+        AxisIterator iter = document.iterateAxis(AxisInfo.DESCENDANT, NodeKindTest.ELEMENT);
+        NodeInfo element = iter.next();
+        while (element != null) {
+            for (AttributeInfo attribute : element.attributes()) {
+                // Compared by URI string so that this works with Saxon 10, 11, or 12
+                if (local.equals(attribute.getNodeName().getLocalPart()) && uri.equals(attribute.getNodeName().getURI())) {
+                    if (!isString(attribute.getType())) {
+                        return null;
+                    }
+                    values.computeIfAbsent(attribute.getValue(), key -> new ArrayList<>()).add(element);
+                }
+            }
+            element = iter.next();
+        }
+        return values;
+    }
+
+    private boolean isString(SimpleType type) {
+        if (type == BuiltInAtomicType.UNTYPED_ATOMIC) {
+            return true;
+        }
+        return type.isAtomicType() && ((AtomicType) type).getPrimitiveType() == StandardNames.XS_STRING;
+    }
+}
@@ -5,20 +5,31 @@ import com.nwalsh.sinclude.exceptions.MalformedXPointerSchemeException;
 import com.nwalsh.sinclude.exceptions.XPointerSchemeMatchException;
 import com.nwalsh.sinclude.xpointer.SchemeData;
 import com.nwalsh.sinclude.xpointer.SelectionResult;
+import net.sf.saxon.om.NameChecker;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ElementScheme extends XPathScheme {
+    private static final Pattern dscheme = Pattern.compile("^/(\\d+)(.*)$");
     private String fragid = null;
+    private String identifier = null;
+    private int[] childSequence = new int[0];
 
     @Override
     public ElementScheme newInstance(String fdata, XInclude xinclude, String contextLanguage, String contextBaseURI) {
         ElementScheme scheme = new ElementScheme();
         scheme.xinclude = xinclude;
         scheme.fragid = fdata;
-        scheme.xpath = toXPath(fdata);
+        scheme.parseChildSequence(fdata);
         scheme.contextLanguage = contextLanguage;
         scheme.contextBaseURI = contextBaseURI;
         return scheme;
@@ -29,15 +40,96 @@ public class ElementScheme extends XPathScheme {
         return "element";
     }
 
+    // The identifier is looked up in the document's ID index and the child sequence followed
+    // from there, just as id('identifier')/*[n]/*[m] would be evaluated. Identifiers that
+    // aren't NCNames (and documents that aren't documents) are left to the XPath expression.
     @Override
     public SelectionResult select(SchemeData[] schemeData, XdmNode document) {
         try {
+            if (document.getNodeKind() == XdmNodeKind.DOCUMENT
+                    && (identifier == null || NameChecker.isValidNCName(identifier))) {
+                List<XdmNode> nodes = new ArrayList<>();
+                XdmNode node = identifier == null ? document : find(document, identifier);
+                for (int step = 0; node != null && step < childSequence.length; step++) {
+                    node = child(node, childSequence[step]);
+                }
+                if (node != null) {
+                    nodes.add(node);
+                }
+                return selectionResult(document, nodes);
+            }
+
+            if (xpath == null) {
+                xpath = toXPath(fragid);
+            }
             return super.select(schemeData, document);
         } catch (RuntimeException e) {
             throw new XPointerSchemeMatchException("Element scheme matched non-node item?: " + schemeName() + "(" + fragid + ")");
         }
     }
 
+    private XdmNode find(XdmNode document, String id) {
+        NodeInfo node = document.getUnderlyingNode().getTreeInfo().selectID(id, false);
+        return node == null ? null : new XdmNode(node);
+    }
+
+    // The nth child element (counting from 1), or null
+    private XdmNode child(XdmNode parent, int position) {
+        int count = 0;
+        XdmSequenceIterator<XdmNode> iter = parent.axisIterator(Axis.CHILD);
+        while (iter.hasNext()) {
+            XdmNode node = iter.next();
+            if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
+                count++;
+                if (count == position) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    // The identifier, or null if the pointer begins at the document
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    // The positions of the child elements to step through, starting from the identified element
+    public int[] getChildSequence() {
+        return childSequence;
+    }
+
+    private void parseChildSequence(String schemeData) {
+        String data = schemeData;
+        int pos = data.indexOf("/");
+        if (pos < 0) {
+            identifier = data;
+            return;
+        }
+
+        if (pos > 0) {
+            identifier = data.substring(0, pos);
+            data = data.substring(pos);
+        }
+
+        Vector<Integer> steps = new Vector<>();
+        Matcher dmatcher = dscheme.matcher(data);
+        while (dmatcher.matches()) {
+            steps.add(Integer.parseInt(dmatcher.group(1)));
+            data = dmatcher.group(2);
+            dmatcher = dscheme.matcher(data);
+        }
+
+        if (!"".equals(data)) {
+            throw new MalformedXPointerSchemeException("Invalid element scheme data: " + schemeData);
+        }
+
+        childSequence = new int[steps.size()];
+        for (int step = 0; step < childSequence.length; step++) {
+            childSequence[step] = steps.get(step);
+        }
+    }
 
     private String toXPath(String schemeData) {
         String xpath = "";
@@ -52,7 +144,6 @@ public class ElementScheme extends XPathScheme {
             data = data.substring(pos);
         }
 
-        Pattern dscheme = Pattern.compile("^/(\\d+)(.*)$");
         Matcher dmatcher = dscheme.matcher(data);
         StringBuilder builder = new StringBuilder();
         builder.append(xpath);
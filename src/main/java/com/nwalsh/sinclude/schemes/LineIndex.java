@@ -0,0 +1,102 @@
+package com.nwalsh.sinclude.schemes;
+
+import com.nwalsh.sinclude.utils.TextUtils;
+import net.sf.saxon.om.TreeInfo;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// The text of a text document and the offset at which each of its lines starts. Lines are
+// separated by "\n" and, as String.split() does, trailing empty lines don't count. Indexes are
+// cached for as long as the document they were built from is alive; a changed resource is a new
+// document, so an index can never describe text other than its own.
+
+public class LineIndex {
+    private static final Map<TreeInfo, LineIndex> cache = new WeakHashMap<>();
+
+    private final String text;
+    private final int[] starts;
+    private final int lineCount;
+
+    private LineIndex(String text) {
+        this.text = text;
+        starts = TextUtils.lineStarts(text);
+        int count = starts.length;
+
+        if (text.isEmpty()) {
+            lineCount = 1;
+        } else {
+            int lines = count;
+            while (lines > 0 && lineEnd(lines - 1) == starts[lines - 1]) {
+                lines--;
+            }
+            lineCount = lines;
+        }
+    }
+
+    public static LineIndex getIndex(TreeInfo tree, String text) {
+        synchronized (cache) {
+            LineIndex index = cache.get(tree);
+            if (index == null) {
+                index = new LineIndex(text);
+                cache.put(tree, index);
+            }
+            return index;
+        }
+    }
+
+    // Returns the cached index for tree, or null if there isn't one
+    public static LineIndex getIndex(TreeInfo tree) {
+        synchronized (cache) {
+            return cache.get(tree);
+        }
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public int lineStart(int line) {
+        return starts[line];
+    }
+
+    // The offset of the "\n" that ends the line (or the length of the text)
+    public int lineEnd(int line) {
+        return line + 1 < starts.length ? starts[line + 1] - 1 : text.length();
+    }
+
+    // The line that contains the offset
+    public int lineOf(int offset) {
+        int pos = Arrays.binarySearch(starts, 0, starts.length, offset);
+        return pos >= 0 ? pos : -pos - 2;
+    }
+
+    // The length of the text with every line terminated by "\n"
+    public int terminatedLength() {
+        return lineCount == 0 ? 0 : lineEnd(lineCount - 1) + 1;
+    }
+
+    // Lines first (inclusive) to last (exclusive), each terminated by "\n"
+    public String lines(int first, int last) {
+        if (first >= last) {
+            return "";
+        }
+        return chars(lineStart(first), lineEnd(last - 1) + 1);
+    }
+
+    // Characters start (inclusive) to end (exclusive) of the text with every line terminated by "\n"
+    public String chars(int start, int end) {
+        if (start >= end) {
+            return "";
+        }
+        if (end <= text.length()) {
+            return text.substring(start, end);
+        }
+        return text.substring(start) + "\n";
+    }
+}
@@ -1,5 +1,6 @@
 package com.nwalsh.sinclude.schemes;
 
+import com.nwalsh.sinclude.TextRange;
 import com.nwalsh.sinclude.exceptions.UnparseableXPointerSchemeException;
 import com.nwalsh.sinclude.exceptions.XIncludeIntegrityCheckException;
 import com.nwalsh.sinclude.xpointer.DefaultSelectionResult;
@@ -116,6 +117,14 @@ public class RFC5147Scheme extends AbstractTextScheme implements TextScheme {
         return scheme;
     }
 
+    // The range this scheme selects, or null if it has integrity checks (which need the whole text)
+    public TextRange getTextRange() {
+        if (length >= 0 || md5 != null) {
+            return null;
+        }
+        return new TextRange(lineScheme, rangeStart, rangeEnd);
+    }
+
     @Override
     public String schemeName() {
         return "text";
@@ -128,7 +137,8 @@ public class RFC5147Scheme extends AbstractTextScheme implements TextScheme {
 
     @Override
     public SelectionResult select(SchemeData[] schemeData, XdmNode document) {
-        String text = getText(document);
+        LineIndex index = getLineIndex(document);
+        String text = index.getText();
 
         if (length >= 0 && length != text.length()) {
             throw new XIncludeIntegrityCheckException("Document length is " + text.length() + "; expected " + length);
@@ -147,45 +157,26 @@ public class RFC5147Scheme extends AbstractTextScheme implements TextScheme {
             }
         }
 
-        int pos = 0;
-        String[] lines = text.split("\n");
+        // Positions count every line as terminated by "\n", even the last one
+        int lines = index.getLineCount();
+        int start = Math.max(rangeStart, 0);
         // False unless vacuously true
-        boolean found = ((rangeStart == rangeEnd) && rangeStart < lines.length);
-        StringBuilder data = new StringBuilder();
-        for (int lineno = 0; pos < rangeEnd && lineno < lines.length; lineno++) {
-            String line = lines[lineno];
-
-            found = found || (pos >= rangeStart);
-
-            if (lineScheme) {
-                if (pos >= rangeStart) {
-                    data.append(line).append("\n");
-                }
-                pos += 1;
-            } else {
-                int endcp = pos + line.length() + 1;
-
-                if (pos < rangeStart && endcp > rangeStart) {
-                    found = true;
-                    line = line.substring((int) (rangeStart - pos));
-                    pos = rangeStart;
-                }
-
-                if (pos >= rangeStart && pos < rangeEnd) {
-                    long rest = rangeEnd - pos;
-                    if (rest > line.length()) {
-                        data.append(line).append("\n");
-                    } else {
-                        data.append(line.substring(0,(int) rest));
-                    }
-                }
-
-                pos = endcp;
+        boolean found = ((rangeStart == rangeEnd) && rangeStart < lines);
+        String data;
+        if (lineScheme) {
+            int end = Math.min(rangeEnd, lines);
+            found = found || start < end;
+            data = index.lines(start, end);
+        } else {
+            int end = Math.min(rangeEnd, index.terminatedLength());
+            if (start < index.terminatedLength()) {
+                found = found || index.lineStart(index.lineOf(start)) < rangeEnd;
             }
+            data = index.chars(start, end);
         }
 
         if (found) {
-            return textResults(document, data.toString());
+            return textResults(document, data);
         } else {
             return new DefaultSelectionResult(false, null, null);
         }
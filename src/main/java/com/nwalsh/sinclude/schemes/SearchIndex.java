@@ -0,0 +1,272 @@
+package com.nwalsh.sinclude.schemes;
+
+import com.nwalsh.sinclude.utils.TextUtils;
+import net.sf.saxon.om.TreeInfo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// The lines of a text that contain each of a set of search strings. One or two strings are
+// found with String.indexOf(); more than that with an Aho-Corasick automaton, so any number of
+// them cost a single pass over the text. A string only counts once on each line, as
+// String.contains() would. Like a LineIndex, the table is cached for as long as the document
+// it was built from is alive.
+
+public class SearchIndex {
+    private static final Map<TreeInfo, SearchIndex> cache = new WeakHashMap<>();
+    private static final int[] NONE = new int[0];
+    private static final int FEW_PATTERNS = 2;
+
+    private final LineIndex lines;
+    private final Map<String, int[]> matches = new HashMap<>();
+    private int passes = 0;
+
+    private SearchIndex(LineIndex lines) {
+        this.lines = lines;
+    }
+
+    public static SearchIndex getIndex(TreeInfo tree, LineIndex lines) {
+        synchronized (cache) {
+            SearchIndex index = cache.get(tree);
+            if (index == null) {
+                index = new SearchIndex(lines);
+                cache.put(tree, index);
+            }
+            return index;
+        }
+    }
+
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    // The number of times the text has been searched so far
+    public synchronized int getPasses() {
+        return passes;
+    }
+
+    // The lines that contain the pattern, in order
+    public int[] lines(String pattern) {
+        return find(Collections.singleton(pattern)).get(pattern);
+    }
+
+    // Finds the lines for any of the patterns that haven't been searched for yet, all at once
+    public synchronized Map<String, int[]> find(Collection<String> patterns) {
+        List<String> missing = new ArrayList<>();
+        for (String pattern : new LinkedHashSet<>(patterns)) {
+            if (matches.containsKey(pattern)) {
+                continue;
+            }
+            if (pattern.isEmpty()) {
+                int[] all = new int[lines.getLineCount()];
+                for (int line = 0; line < all.length; line++) {
+                    all[line] = line;
+                }
+                matches.put(pattern, all);
+            } else if (pattern.indexOf('\n') >= 0) {
+                // No line can contain it
+                matches.put(pattern, NONE);
+            } else {
+                missing.add(pattern);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            search(missing);
+        }
+
+        Map<String, int[]> result = new HashMap<>();
+        for (String pattern : patterns) {
+            result.put(pattern, matches.get(pattern));
+        }
+        return result;
+    }
+
+    private void search(List<String> patterns) {
+        passes++;
+        if (patterns.size() <= FEW_PATTERNS) {
+            for (String pattern : patterns) {
+                matches.put(pattern, indexOf(pattern));
+            }
+            return;
+        }
+
+        Automaton automaton = new Automaton(patterns);
+        StringBuilder initial = new StringBuilder("\n");
+        for (String pattern : patterns) {
+            initial.append(pattern.charAt(0));
+        }
+        long[] skipTo = TextUtils.charMask(initial);
+
+        int[][] found = new int[patterns.size()][];
+        int[] count = new int[patterns.size()];
+        int[] lastLine = new int[patterns.size()];
+        Arrays.fill(lastLine, -1);
+
+        String text = lines.getText();
+        int line = 0;
+        int state = 0;
+        for (int pos = 0; pos < text.length(); pos++) {
+            if (state == 0) {
+                // Nothing can match until one of the patterns starts
+                pos = TextUtils.indexOfAny(text, pos, skipTo);
+                if (pos < 0) {
+                    break;
+                }
+            }
+
+            char ch = text.charAt(pos);
+            if (ch == '\n') {
+                line++;
+                state = 0;
+                continue;
+            }
+
+            state = automaton.step(state, ch);
+            int match = automaton.outputs[state] == null ? automaton.link[state] : state;
+            while (match >= 0) {
+                for (int id : automaton.outputs[match]) {
+                    if (lastLine[id] != line) {
+                        lastLine[id] = line;
+                        if (found[id] == null) {
+                            found[id] = new int[4];
+                        } else if (count[id] == found[id].length) {
+                            found[id] = Arrays.copyOf(found[id], count[id] * 2);
+                        }
+                        found[id][count[id]++] = line;
+                    }
+                }
+                match = automaton.link[match];
+            }
+        }
+
+        for (int id = 0; id < patterns.size(); id++) {
+            matches.put(patterns.get(id), found[id] == null ? NONE : Arrays.copyOf(found[id], count[id]));
+        }
+    }
+
+    // The pattern can't span lines, so after each match the search continues on the next line
+    private int[] indexOf(String pattern) {
+        String text = lines.getText();
+        int[] found = new int[4];
+        int count = 0;
+        int pos = text.indexOf(pattern);
+        while (pos >= 0) {
+            int line = lines.lineOf(pos);
+            if (count == found.length) {
+                found = Arrays.copyOf(found, count * 2);
+            }
+            found[count++] = line;
+            pos = line + 1 < lines.getLineCount() ? text.indexOf(pattern, lines.lineStart(line + 1)) : -1;
+        }
+        return count == 0 ? NONE : Arrays.copyOf(found, count);
+    }
+
+    // The trie of the patterns with failure links. The children of each state are kept sorted by
+    // character; outputs holds the patterns that end at a state (null if none) and link the
+    // nearest state along the failure links that has outputs (-1 if none).
+    private static class Automaton {
+        private char[][] keys = new char[16][];
+        private int[][] children = new int[16][];
+        private int[] fail = new int[16];
+        private int[][] outputs = new int[16][];
+        private int[] link;
+        private int size = 0;
+
+        Automaton(List<String> patterns) {
+            newState();
+            for (int id = 0; id < patterns.size(); id++) {
+                String pattern = patterns.get(id);
+                int state = 0;
+                for (int pos = 0; pos < pattern.length(); pos++) {
+                    int next = child(state, pattern.charAt(pos));
+                    if (next < 0) {
+                        next = newState();
+                        addChild(state, pattern.charAt(pos), next);
+                    }
+                    state = next;
+                }
+                outputs[state] = outputs[state] == null ? new int[] {id} : append(outputs[state], id);
+            }
+
+            // Breadth first, so the failure state of a state's parent is always known
+            link = new int[size];
+            link[0] = -1;
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int child : children[0]) {
+                fail[child] = 0;
+                link[child] = -1;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (int pos = 0; pos < keys[state].length; pos++) {
+                    char ch = keys[state][pos];
+                    int child = children[state][pos];
+                    int target = fail[state];
+                    while (target != 0 && child(target, ch) < 0) {
+                        target = fail[target];
+                    }
+                    int next = child(target, ch);
+                    fail[child] = next < 0 ? 0 : next;
+                    link[child] = outputs[fail[child]] != null ? fail[child] : link[fail[child]];
+                    queue.add(child);
+                }
+            }
+        }
+
+        int step(int state, char ch) {
+            int next = child(state, ch);
+            while (next < 0 && state != 0) {
+                state = fail[state];
+                next = child(state, ch);
+            }
+            return next < 0 ? 0 : next;
+        }
+
+        private int child(int state, char ch) {
+            int pos = Arrays.binarySearch(keys[state], ch);
+            return pos < 0 ? -1 : children[state][pos];
+        }
+
+        private void addChild(int state, char ch, int child) {
+            int pos = -Arrays.binarySearch(keys[state], ch) - 1;
+            char[] newKeys = new char[keys[state].length + 1];
+            int[] newChildren = new int[newKeys.length];
+            System.arraycopy(keys[state], 0, newKeys, 0, pos);
+            System.arraycopy(children[state], 0, newChildren, 0, pos);
+            newKeys[pos] = ch;
+            newChildren[pos] = child;
+            System.arraycopy(keys[state], pos, newKeys, pos + 1, keys[state].length - pos);
+            System.arraycopy(children[state], pos, newChildren, pos + 1, keys[state].length - pos);
+            keys[state] = newKeys;
+            children[state] = newChildren;
+        }
+
+        private int newState() {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                children = Arrays.copyOf(children, size * 2);
+                fail = Arrays.copyOf(fail, size * 2);
+                outputs = Arrays.copyOf(outputs, size * 2);
+            }
+            keys[size] = new char[0];
+            children[size] = new int[0];
+            return size++;
+        }
+
+        private static int[] append(int[] array, int value) {
+            int[] result = Arrays.copyOf(array, array.length + 1);
+            result[array.length] = value;
+            return result;
+        }
+    }
+}
@@ -1,17 +1,27 @@
 package com.nwalsh.sinclude.schemes;
 
+import com.nwalsh.sinclude.TextSelector;
 import com.nwalsh.sinclude.exceptions.MalformedXPointerSchemeException;
 import com.nwalsh.sinclude.exceptions.XIncludeIntegrityCheckException;
+import com.nwalsh.sinclude.exceptions.XIncludeNoFragmentException;
 import com.nwalsh.sinclude.xpointer.DefaultSelectionResult;
 import com.nwalsh.sinclude.xpointer.SchemeData;
 import com.nwalsh.sinclude.xpointer.SelectionResult;
 import com.nwalsh.sinclude.xpointer.TextScheme;
 import net.sf.saxon.s9api.XdmNode;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class SearchScheme extends AbstractTextScheme implements TextScheme {
+public class SearchScheme extends AbstractTextScheme implements TextScheme, TextSelector {
     // https://norman.walsh.name/2016/09/29/search
 
     private static final Pattern rangeRE = Pattern.compile("^.*?=(\\d*)?(,(\\d*)?)?$");
@@ -184,91 +194,199 @@ public class SearchScheme extends AbstractTextScheme implements TextScheme {
         return "text";
     }
 
+    // The matches are looked up in the document's SearchIndex, so selecting from the same
+    // text again (or with a scheme that was prepared along with this one) doesn't search it again
     @Override
     public SelectionResult select(SchemeData[] schemeData, XdmNode document) {
-        String text = getText(document);
+        SearchIndex index = getSearchIndex(document);
+        LineIndex lines = index.getLineIndex();
+        Map<String, int[]> matches = index.find(patterns());
 
-        if (checkLen >= 0 && checkLen != text.length()) {
-            throw new XIncludeIntegrityCheckException("Integrity check failed: " + checkLen + " != " + text.length());
+        int startLine = -1;
+        if (startSearch == null) {
+            startLine = 0;
+        } else {
+            int[] found = matches.get(startSearch);
+            if (startCount > 0 && startCount <= found.length) {
+                int match = found[startCount - 1];
+                startLine = startOpt == INCLUDE_MATCH ? match : match + 1;
+            }
         }
 
-        String[] lines = text.split("\n");
-        int startLine = -1;
         int endLine = -1;
+        if (startLine >= 0) {
+            if (endSearch == null) {
+                // One past the last line
+                endLine = lines.getLineCount();
+            } else {
+                int[] found = matches.get(endSearch);
+                // The first match at or after startLine, then endCount-1 more
+                int pos = Arrays.binarySearch(found, startLine);
+                pos = pos < 0 ? -pos - 1 : pos;
+                if (endCount > 0 && endCount <= found.length - pos) {
+                    int match = found[pos + endCount - 1];
+                    endLine = endOpt == INCLUDE_MATCH ? match : match - 1;
+                }
+            }
+        }
+
+        if (checkLen >= 0 && checkLen != lines.getText().length()) {
+            throw new XIncludeIntegrityCheckException("Integrity check failed: " + checkLen + " != " + lines.getText().length());
+        }
+
+        if (startLine < 0 || endLine < 0 || startLine > endLine) {
+            return new DefaultSelectionResult(false, null, null);
+        }
+
+        final int firstLine = startLine;
+        List<String> selected = new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return lines.getText().substring(lines.lineStart(firstLine + index), lines.lineEnd(firstLine + index));
+            }
+
+            @Override
+            public int size() {
+                return lines.getLineCount() - firstLine;
+            }
+        };
+
+        return textResults(document, selection(selected, startLine, endLine));
+    }
+
+    // Finds the matches for all of the schemes in one pass over the document's text
+    public static void prepare(XdmNode document, Collection<SearchScheme> schemes) {
+        if (schemes.isEmpty()) {
+            return;
+        }
+        List<String> patterns = new ArrayList<>();
+        for (SearchScheme scheme : schemes) {
+            patterns.addAll(scheme.patterns());
+        }
+        schemes.iterator().next().getSearchIndex(document).find(patterns);
+    }
+
+    private SearchIndex getSearchIndex(XdmNode document) {
+        return SearchIndex.getIndex(document.getUnderlyingNode().getTreeInfo(), getLineIndex(document));
+    }
+
+    private List<String> patterns() {
+        List<String> patterns = new ArrayList<>();
+        if (startSearch != null) {
+            patterns.add(startSearch);
+        }
+        if (endSearch != null) {
+            patterns.add(endSearch);
+        }
+        return patterns;
+    }
+
+    // The lines are read one at a time, and only as far as the end match (unless there's a
+    // length check, which needs the whole text). Only the lines between the matches are kept.
+    @Override
+    public String select(Reader reader) throws IOException {
+        TextLines lines = new TextLines(reader);
+        int lnum = 0;
+        String line = lines.next();
+
+        int startLine = -1;
         if (startSearch == null) {
             startLine = 0;
         } else {
-            for (int lnum = 0; lnum < lines.length && startCount > 0; lnum++) {
-                if (lines[lnum].contains(startSearch)) {
-                    startCount--;
-                    if (startCount == 0) {
-                        if (startOpt == INCLUDE_MATCH) {
-                            startLine = lnum;
-                        } else {
-                            startLine = lnum + 1;
-                        }
+            int count = startCount;
+            while (line != null && startLine < 0) {
+                if (line.contains(startSearch)) {
+                    count--;
+                    if (count == 0) {
+                        startLine = startOpt == INCLUDE_MATCH ? lnum : lnum + 1;
                     }
                 }
+                if (startLine < 0 || startLine > lnum) {
+                    line = lines.next();
+                    lnum++;
+                }
             }
         }
 
-        if (endSearch == null) {
-            endLine = lines.length;
-        } else {
-            for (int lnum = startLine; lnum < lines.length && endCount > 0; lnum++) {
-                if (lines[lnum].contains(endSearch)) {
-                    endCount--;
-                    if (endCount == 0) {
-                        if (endOpt == INCLUDE_MATCH) {
-                            endLine = lnum;
-                        } else {
-                            endLine = lnum - 1;
-                        }
+        // selected holds the lines from startLine on
+        List<String> selected = new ArrayList<>();
+        int endLine = -1;
+        if (startLine >= 0) {
+            int count = endCount;
+            while (line != null && endLine < 0) {
+                selected.add(line);
+                if (endSearch != null && line.contains(endSearch)) {
+                    count--;
+                    if (count == 0) {
+                        endLine = endOpt == INCLUDE_MATCH ? lnum : lnum - 1;
+                        break;
                     }
                 }
+                line = lines.next();
+                lnum++;
+            }
+            if (endSearch == null) {
+                // One past the last line
+                endLine = lnum;
             }
         }
 
-        if (startLine >= 0 && endLine >= 0 && startLine <= endLine){
-            while (startOpt == TRIM && startLine <= endLine && "".equals(lines[startLine].trim())) {
-                startLine++;
-            }
+        if (checkLen >= 0 && checkLen != lines.length()) {
+            throw new XIncludeIntegrityCheckException("Integrity check failed: " + checkLen + " != " + lines.length());
+        }
 
-            while (endOpt == TRIM && endLine >= startLine && "".equals(lines[endLine].trim())) {
-                endLine--;
-            }
+        if (startLine < 0 || endLine < 0 || startLine > endLine) {
+            return null;
+        }
+
+        return selection(selected, startLine, endLine);
+    }
 
-            if (startLine > endLine) {
-                return textResults(document, "");
+    // The selected lines are the ones from startLine on (at least as far as endLine)
+    private String selection(List<String> selected, int startLine, int endLine) {
+        int first = 0;
+        int last = endLine - startLine;
+        while (startOpt == TRIM && first <= last) {
+            if (first == selected.size()) {
+                throw new XIncludeNoFragmentException("Search trimmed past the end of the text");
+            }
+            if (!"".equals(selected.get(first).trim())) {
+                break;
             }
+            first++;
+        }
+
+        while (endOpt == TRIM && last >= first && "".equals(selected.get(last).trim())) {
+            last--;
+        }
 
-            int stripWS = Integer.MAX_VALUE;
-            if (strip) {
-                for (int pos = startLine; pos <= endLine && pos < lines.length; pos++) {
-                    String line = lines[pos];
-                    Matcher matcher = leadingWhitespaceRE.matcher(line);
-                    if (matcher.matches()) {
-                        int wslen = matcher.group(1).length();
-                        if (wslen < stripWS) {
-                            stripWS = wslen;
-                        }
+        if (first > last) {
+            return "";
+        }
+
+        last = Math.min(last, selected.size() - 1);
+        int stripWS = Integer.MAX_VALUE;
+        if (strip) {
+            for (int pos = first; pos <= last; pos++) {
+                Matcher matcher = leadingWhitespaceRE.matcher(selected.get(pos));
+                if (matcher.matches()) {
+                    int wslen = matcher.group(1).length();
+                    if (wslen < stripWS) {
+                        stripWS = wslen;
                     }
                 }
             }
+        }
 
-            StringBuilder data = new StringBuilder();
-            for (int pos = startLine; pos <= endLine && pos < lines.length; pos++) {
-                String line = lines[pos];
-                if (strip && line.length() >= stripWS) {
-                    line = line.substring(stripWS);
-                }
-                data.append(line).append("\n");
+        StringBuilder data = new StringBuilder();
+        for (int pos = first; pos <= last; pos++) {
+            String text = selected.get(pos);
+            if (strip && text.length() >= stripWS) {
+                text = text.substring(stripWS);
             }
-
-            return textResults(document, data.toString());
-        } else {
-            return new DefaultSelectionResult(false, null, null);
+            data.append(text).append("\n");
         }
+        return data.toString();
     }
 
     private void malformedSearch(String select, String msg) {
@@ -0,0 +1,118 @@
+package com.nwalsh.sinclude.schemes;
+
+import com.nwalsh.sinclude.utils.TextUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// The lines of a text, read one at a time. They're the same lines text.split("\n") would
+// return: trailing empty lines don't count, unless the text is empty, which has one empty line.
+// Empty lines are held back until it's clear that something follows them.
+class TextLines {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufpos = 0;
+    private int buflen = 0;
+    private boolean eof = false;
+    private boolean done = false;
+    private boolean newline = false;
+    private long length = 0;
+    private int emptyLines = 0;
+    private String held = null;
+
+    TextLines(Reader reader) {
+        this.reader = reader;
+    }
+
+    // Returns null when there are no more lines
+    String next() throws IOException {
+        if (held != null) {
+            if (emptyLines > 0) {
+                emptyLines--;
+                return "";
+            }
+            String line = held;
+            held = null;
+            return line;
+        }
+
+        String segment = segment();
+        while (segment != null) {
+            if (!segment.isEmpty()) {
+                if (emptyLines > 0) {
+                    held = segment;
+                    emptyLines--;
+                    return "";
+                }
+                return segment;
+            }
+            if (done && !newline) {
+                // The empty text
+                return "";
+            }
+            emptyLines++;
+            segment = segment();
+        }
+
+        return null;
+    }
+
+    // The number of characters in the text; this reads the rest of it
+    long length() throws IOException {
+        while (fill()) {
+            length += buflen - bufpos;
+            bufpos = buflen;
+        }
+        return length;
+    }
+
+    // The characters up to the next "\n" (or the end), or null if the end has been reached
+    private String segment() throws IOException {
+        if (done) {
+            return null;
+        }
+
+        StringBuilder segment = null;
+        while (fill()) {
+            int start = bufpos;
+            int end = TextUtils.indexOf(buffer, '\n', bufpos, buflen);
+            bufpos = end < 0 ? buflen : end;
+            length += bufpos - start;
+            if (bufpos < buflen) {
+                bufpos++;
+                length++;
+                newline = true;
+                if (segment == null) {
+                    return new String(buffer, start, bufpos - start - 1);
+                }
+                return segment.append(buffer, start, bufpos - start - 1).toString();
+            }
+            if (segment == null) {
+                segment = new StringBuilder();
+            }
+            segment.append(buffer, start, bufpos - start);
+        }
+
+        done = true;
+        return segment == null ? "" : segment.toString();
+    }
+
+    private boolean fill() throws IOException {
+        if (bufpos < buflen) {
+            return true;
+        }
+        if (eof) {
+            return false;
+        }
+        buflen = reader.read(buffer);
+        bufpos = 0;
+        if (buflen <= 0) {
+            buflen = 0;
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+}
@@ -1,23 +1,30 @@
 package com.nwalsh.sinclude.schemes;
 
 import com.nwalsh.sinclude.XInclude;
+import com.nwalsh.sinclude.XPathCache;
 import com.nwalsh.sinclude.data.XmlnsData;
 import com.nwalsh.sinclude.exceptions.MalformedXPointerSchemeException;
 import com.nwalsh.sinclude.exceptions.XPointerSchemeMatchException;
-import com.nwalsh.sinclude.utils.ReceiverUtils;
-import com.nwalsh.sinclude.xpointer.DefaultSelectionResult;
 import com.nwalsh.sinclude.xpointer.SchemeData;
 import com.nwalsh.sinclude.xpointer.SelectionResult;
 import com.nwalsh.sinclude.xpointer.XmlScheme;
-import net.sf.saxon.event.Receiver;
-import net.sf.saxon.expr.parser.Loc;
+import net.sf.saxon.om.NameChecker;
+import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.*;
-import net.sf.saxon.trans.XPathException;
 
-import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class XPathScheme extends AbstractXmlScheme implements XmlScheme {
+    private static final String NS_XML = "http://www.w3.org/XML/1998/namespace";
+    // //name[@name='value'], //*[@name="value"], etc.
+    private static final Pattern attributeEquality = Pattern.compile(
+            "^\\s*//(\\*|[^\\s\\[\\]@=/*'\"]+)\\s*\\[\\s*@\\s*([^\\s\\[\\]@=/*'\"]+)\\s*=\\s*('[^']*'|\"[^\"]*\")\\s*\\]\\s*$");
     protected String xpath = null;
 
     @Override
@@ -42,80 +49,122 @@ public class XPathScheme extends AbstractXmlScheme implements XmlScheme {
 
     @Override
     public SelectionResult select(SchemeData[] schemeData, XdmNode document) {
-        XPathCompiler xcomp = document.getProcessor().newXPathCompiler();
-        for (SchemeData data : schemeData) {
-            if (data instanceof XmlnsData) {
-                XmlnsData xdata = (XmlnsData) data;
-                xcomp.declareNamespace(xdata.getPrefix(), xdata.getUri());
-            }
+        List<XdmNode> indexed = attributeEquality(schemeData, document);
+        if (indexed != null) {
+            return selectionResult(document, indexed);
         }
 
         XPathSelector selector = null;
         try {
-            XPathExecutable xexec = xcomp.compile(xpath);
-            selector = xexec.load();
+            selector = compile(document.getProcessor(), schemeData).load();
         } catch (SaxonApiException sae) {
             throw new MalformedXPointerSchemeException(sae.getMessage());
         }
 
-        // There's an (apparent) bug in the Saxon API where setting the location when appending to the
-        // receiver has no effect if you haven't also set the system ID on the receiver.
-        // See https://saxonica.plan.io/issues/4618
-        //
-        // I evaluate the expression and store there results so that I can work out what base URI
-        // to use on the receiver. I have to do that before I open the receiver...
-
-        URI baseURI = null;
+        Vector<XdmNode> nodes = new Vector<>();
         try {
-            Vector<XdmNode> results = new Vector<>();
-            Vector<XdmNode> nodes = new Vector<>();
-
             selector.setContextItem(document);
             for (XdmItem item : selector.evaluate()) {
                 if (item.isNode()) {
-                    XdmNode node = (XdmNode) item;
-                    URI nodeBaseURI = ReceiverUtils.nodeBaseURI(node);
-                    if (baseURI == null && nodeBaseURI != null) {
-                        baseURI = nodeBaseURI;
-                    }
-
-                    nodes.add(node);
-                    if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
-                        results.add(fixup(node));
-                    } else {
-                        results.add(node);
-                    }
+                    nodes.add((XdmNode) item);
                 } else {
                     throw new XPointerSchemeMatchException("XPath matched non-node item?: " + schemeName() + "(" + xpath + ")");
                 }
             }
+        } catch (SaxonApiException e) {
+            throw new XPointerSchemeMatchException(e);
+        }
+
+        return selectionResult(document, nodes);
+    }
 
-            if (baseURI == null) {
-                baseURI = ReceiverUtils.nodeBaseURI(document);
+    // The fixups are applied as the nodes are written, not to a copy of each element
+    protected SelectionResult selectionResult(XdmNode document, List<XdmNode> nodes) {
+        return new XPathSelectionResult(this, document, nodes);
+    }
+
+    // Expressions of the form //name[@attribute='value'] are answered from the document's
+    // attribute index instead of by scanning the document. Returns null for any other
+    // expression, or anything the index can't answer exactly as XPath would.
+    private List<XdmNode> attributeEquality(SchemeData[] schemeData, XdmNode document) {
+        if (xpath == null || document.getNodeKind() != XdmNodeKind.DOCUMENT) {
+            return null;
+        }
+        Matcher matcher = attributeEquality.matcher(xpath);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        Map<String, String> bindings = new HashMap<>();
+        for (SchemeData data : schemeData) {
+            if (data instanceof XmlnsData) {
+                XmlnsData xdata = (XmlnsData) data;
+                bindings.put(xdata.getPrefix(), xdata.getUri());
             }
+        }
+        if (bindings.containsKey("xml")) {
+            return null;
+        }
+        bindings.put("xml", NS_XML);
 
-            XdmDestination destination = new XdmDestination();
-            Receiver receiver = ReceiverUtils.makeReceiver(document, destination, baseURI);
-            receiver.startDocument(0);
-            for (XdmNode node : results) {
-                Location loc = new Loc(node.getBaseURI().toASCIIString(), -1, -1);
-                if (node.getNodeKind() == XdmNodeKind.ATTRIBUTE) {
-                    ReceiverUtils.handleCharacters(receiver, node.getStringValue());
-                } else {
-                    receiver.append(node.getUnderlyingValue(), loc, 0);
-                }
+        String[] element = null;
+        if (!"*".equals(matcher.group(1))) {
+            element = name(matcher.group(1), bindings, bindings.getOrDefault("", ""));
+            if (element == null) {
+                return null;
             }
+        }
+        String[] attribute = name(matcher.group(2), bindings, "");
+        if (attribute == null) {
+            return null;
+        }
+        String literal = matcher.group(3);
+        String value = literal.substring(1, literal.length() - 1);
 
-            receiver.endDocument();
-            receiver.close();
+        List<NodeInfo> matches = AttributeIndex.getIndex(document.getUnderlyingNode())
+                .lookup(attribute[0], attribute[1], value);
+        if (matches == null) {
+            return null;
+        }
 
-            if (results.isEmpty()) {
-                return new DefaultSelectionResult(false, null, null);
-            } else {
-                return new DefaultSelectionResult(true, destination.getXdmNode(), nodes.toArray(new XdmNode[0]));
+        List<XdmNode> nodes = new ArrayList<>();
+        for (NodeInfo node : matches) {
+            if (element == null
+                    || (element[0].equals(node.getURI()) && element[1].equals(node.getLocalPart()))) {
+                nodes.add(new XdmNode(node));
+            }
+        }
+        return nodes;
+    }
+
+    // The namespace URI and local name of a QName, or null if it isn't one
+    private String[] name(String qname, Map<String, String> bindings, String defaultUri) {
+        int colon = qname.indexOf(':');
+        String prefix = colon < 0 ? "" : qname.substring(0, colon);
+        String local = qname.substring(colon + 1);
+        if (!NameChecker.isValidNCName(local) || (colon >= 0 && !NameChecker.isValidNCName(prefix))) {
+            return null;
+        }
+        if (colon < 0) {
+            return new String[] {defaultUri, local};
+        }
+        String uri = bindings.get(prefix);
+        return uri == null || "".equals(uri) ? null : new String[] {uri, local};
+    }
+
+    private XPathExecutable compile(Processor processor, SchemeData[] schemeData) throws SaxonApiException {
+        XPathCache cache = xinclude == null ? null : xinclude.getXPathCache();
+        if (cache != null) {
+            return cache.compile(processor, xpath, schemeData);
+        }
+
+        XPathCompiler xcomp = processor.newXPathCompiler();
+        for (SchemeData data : schemeData) {
+            if (data instanceof XmlnsData) {
+                XmlnsData xdata = (XmlnsData) data;
+                xcomp.declareNamespace(xdata.getPrefix(), xdata.getUri());
             }
-        } catch (SaxonApiException | XPathException e) {
-            throw new XPointerSchemeMatchException(e);
         }
+        return xcomp.compile(xpath);
     }
 }
@@ -0,0 +1,96 @@
+package com.nwalsh.sinclude.schemes;
+
+import com.nwalsh.sinclude.exceptions.XPointerSchemeMatchException;
+import com.nwalsh.sinclude.utils.ReceiverUtils;
+import com.nwalsh.sinclude.xpointer.SchemeData;
+import com.nwalsh.sinclude.xpointer.SelectionResult;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.expr.parser.Loc;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.trans.XPathException;
+
+import java.net.URI;
+import java.util.List;
+
+// The nodes selected by an xpath() or element() pointer. They're written straight to the receiver
+// the result is sent to, each element with its xml:base and xml:lang fixups added to its start
+// tag as it goes by, so no document is built for any of them. The result document is only built
+// (once, the same way) if it's asked for.
+class XPathSelectionResult implements SelectionResult {
+    private final AbstractXmlScheme scheme;
+    private final XdmNode document;
+    private final XdmNode[] nodes;
+    private XdmNode result = null;
+
+    XPathSelectionResult(AbstractXmlScheme scheme, XdmNode document, List<XdmNode> nodes) {
+        this.scheme = scheme;
+        this.document = document;
+        this.nodes = nodes.toArray(new XdmNode[0]);
+    }
+
+    @Override
+    public SchemeData[] getSchemeData() {
+        return new SchemeData[0];
+    }
+
+    @Override
+    public boolean finished() {
+        return nodes.length > 0;
+    }
+
+    @Override
+    public XdmNode[] getSelectedNodes() {
+        return nodes;
+    }
+
+    @Override
+    public synchronized XdmNode getResult() {
+        if (result != null || nodes.length == 0) {
+            return result;
+        }
+
+        // There's an (apparent) bug in the Saxon API where setting the location when appending to the
+        // receiver has no effect if you haven't also set the system ID on the receiver.
+        // See https://saxonica.plan.io/issues/4618
+        URI baseURI = null;
+        for (XdmNode node : nodes) {
+            baseURI = ReceiverUtils.nodeBaseURI(node);
+            if (baseURI != null) {
+                break;
+            }
+        }
+        if (baseURI == null) {
+            baseURI = ReceiverUtils.nodeBaseURI(document);
+        }
+
+        try {
+            XdmDestination destination = new XdmDestination();
+            Receiver receiver = ReceiverUtils.makeReceiver(document, destination, baseURI);
+            receiver.startDocument(0);
+            send(receiver);
+            receiver.endDocument();
+            receiver.close();
+            result = destination.getXdmNode();
+            return result;
+        } catch (XPathException e) {
+            throw new XPointerSchemeMatchException(e);
+        }
+    }
+
+    @Override
+    public void send(Receiver receiver) throws XPathException {
+        for (XdmNode node : nodes) {
+            Location loc = node.getBaseURI() == null ? Loc.NONE : new Loc(node.getBaseURI().toASCIIString(), -1, -1);
+            if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
+                scheme.writeFixup(receiver, node, loc);
+            } else if (node.getNodeKind() == XdmNodeKind.ATTRIBUTE) {
+                ReceiverUtils.handleCharacters(receiver, node.getStringValue());
+            } else {
+                receiver.append(node.getUnderlyingValue(), loc, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.nwalsh.sinclude.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExecutorUtils {
+    private static Executor ioExecutor = null;
+
+    // An executor for blocking I/O. On Java 21 and later, each task gets a virtual thread;
+    // on older JVMs, the tasks share a pool of daemon threads that grows as needed.
+    public static synchronized Executor ioExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = virtualThreadExecutor();
+            if (ioExecutor == null) {
+                ioExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+            }
+        }
+        return ioExecutor;
+    }
+
+    // We're compiled for Java 8, so virtual threads can only be found by reflection
+    public static ExecutorService virtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            return null;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "sinclude-io-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -62,7 +62,7 @@ public class ReceiverUtils {
     public static void handleCharacters(Receiver receiver, String text) {
         if (saxon10 == null) {
             try {
-                characters = receiver.getClass().getMethod("characters", CharSequence.class, Location.class, int.class);
+                characters = Receiver.class.getMethod("characters", CharSequence.class, Location.class, int.class);
                 saxon10 = true;
             } catch (NoSuchMethodException ex) {
                 saxon10 = false;
@@ -70,7 +70,7 @@ public class ReceiverUtils {
                     Class<?> clazzUnicodeString = Class.forName("net.sf.saxon.str.UnicodeString");
                     Class<?> clazzStringView= Class.forName("net.sf.saxon.str.StringView");
                     of = clazzStringView.getMethod("of", String.class);
-                    characters = receiver.getClass().getMethod("characters", clazzUnicodeString, Location.class, int.class);
+                    characters = Receiver.class.getMethod("characters", clazzUnicodeString, Location.class, int.class);
                 } catch (ClassNotFoundException | NoSuchMethodException ex11) {
                     throw new XIncludeException("Failed to resolve Saxon 11 methods with reflection");
                 }
@@ -0,0 +1,119 @@
+package com.nwalsh.sinclude.utils;
+
+import java.util.Arrays;
+
+// Bulk scanning for the text schemes. Newlines and search strings in a String are found with
+// String.indexOf(). Character buffers and sets of characters, which indexOf() can't search,
+// are scanned by the plain loops here, one character at a time.
+public class TextUtils {
+    // The offset at which each line starts: 0, and the offset after every "\n"
+    public static int[] lineStarts(String text) {
+        int[] starts = new int[16];
+        int count = 0;
+        int pos = 0;
+        while (pos >= 0) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            starts[count++] = pos;
+            pos = text.indexOf('\n', pos);
+            if (pos >= 0) {
+                pos++;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    // The offset of the first ch in buffer[from, to), or -1; a simple loop over the characters
+    public static int indexOf(char[] buffer, char ch, int from, int to) {
+        for (int pos = from; pos < to; pos++) {
+            if (buffer[pos] == ch) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    // A set of characters for indexOfAny()
+    public static long[] charMask(CharSequence chars) {
+        long[] mask = new long[1024];
+        for (int pos = 0; pos < chars.length(); pos++) {
+            char ch = chars.charAt(pos);
+            mask[ch >>> 6] |= 1L << ch;
+        }
+        return mask;
+    }
+
+    // The offset of the first character in text, at or after from, that's in the mask, or -1;
+    // each character is tested against the mask in turn
+    public static int indexOfAny(String text, int from, long[] mask) {
+        for (int pos = from; pos < text.length(); pos++) {
+            char ch = text.charAt(pos);
+            if ((mask[ch >>> 6] & (1L << ch)) != 0) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    // Removes the indentation common to all of the lines that aren't (effectively) blank, and
+    // the spaces at the end of every line. Lines are separated by "\n"; the result has the
+    // same number of lines as the text.
+    public static String trimLines(String text) {
+        int trimleading = -1;
+        int start = 0;
+        while (start >= 0 && trimleading != 0) {
+            int end = lineEnd(text, start);
+            if (!blank(text, start, end)) {
+                int leading = start;
+                while (leading < end && text.charAt(leading) == ' ') {
+                    leading++;
+                }
+                if (trimleading < 0 || leading - start < trimleading) {
+                    trimleading = leading - start;
+                }
+            }
+            start = end < text.length() ? end + 1 : -1;
+        }
+
+        StringBuilder result = new StringBuilder(text.length());
+        start = 0;
+        while (start >= 0) {
+            int end = lineEnd(text, start);
+            int first = start;
+            while (first - start < trimleading && first < end && text.charAt(first) == ' ') {
+                first++;
+            }
+            if (first < end) {
+                int last = end - 1;
+                while (last > first && text.charAt(last) == ' ') {
+                    last--;
+                }
+                result.append(text, first, last + 1);
+            }
+            if (end < text.length()) {
+                // Only newlines between lines, not after the last line
+                result.append('\n');
+                start = end + 1;
+            } else {
+                start = -1;
+            }
+        }
+        return result.toString();
+    }
+
+    private static int lineEnd(String text, int start) {
+        int end = text.indexOf('\n', start);
+        return end < 0 ? text.length() : end;
+    }
+
+    // Is the line empty after String.trim()?
+    private static boolean blank(String text, int start, int end) {
+        for (int pos = start; pos < end; pos++) {
+            if (text.charAt(pos) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,10 +1,23 @@
 package com.nwalsh.sinclude.xpointer;
 
+import net.sf.saxon.event.Receiver;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
 
 public interface SelectionResult {
     SchemeData[] getSchemeData();
     boolean finished();
     XdmNode getResult();
     XdmNode[] getSelectedNodes();
+
+    // Writes the content of the result (but not a document node) to the receiver. A scheme
+    // can produce its selection as events this way instead of building a document for it.
+    default void send(Receiver receiver) throws XPathException {
+        XdmNode result = getResult();
+        if (result != null) {
+            for (XdmNode child : result.children()) {
+                receiver.append(child.getUnderlyingNode());
+            }
+        }
+    }
 }
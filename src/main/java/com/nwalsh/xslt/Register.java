@@ -2,10 +2,18 @@ package com.nwalsh.xslt;
 
 import com.nwalsh.BuildConfig;
 import com.nwalsh.DebuggingLogger;
+import com.nwalsh.sinclude.XIncludeFilterFactory;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.lib.Initializer;
+import net.sf.saxon.s9api.QName;
+
+import java.util.HashMap;
 
 public class Register implements Initializer {
+    // If this property is set to true, or to a list of option=value pairs (for example,
+    // "fixup-xml-base=false trim-text=true"), documents are XIncluded as they're parsed.
+    public static final String PARSE_FILTER_PROPERTY = "com.nwalsh.sinclude.parse-filter";
+
     @Override
     public void initialize(Configuration config) {
         // Unfortunately, Saxon doesn't have a .debug() method on its standard logger
@@ -15,5 +23,37 @@ public class Register implements Initializer {
                 "Registering " + BuildConfig.TITLE + " extension functions (version " + BuildConfig.VERSION + ")");
 
         config.registerExtensionFunction(new XIncludeFunction());
+
+        String filter = System.getProperty(PARSE_FILTER_PROPERTY);
+        if (filter == null || "false".equals(filter) || "no".equals(filter) || "0".equals(filter)) {
+            return;
+        }
+
+        HashMap<QName,String> options = new HashMap<>();
+        if (!("true".equals(filter) || "yes".equals(filter) || "1".equals(filter))) {
+            for (String token : filter.split("[,\\s]+")) {
+                if (!token.isEmpty()) {
+                    int pos = token.indexOf("=");
+                    if (pos < 0) {
+                        throw new IllegalArgumentException(PARSE_FILTER_PROPERTY + " options must be name=value pairs: " + token);
+                    }
+                    QName name = new QName("", token.substring(0, pos));
+                    if (!name.equals(XIncludeFunction._fixup_xml_base)
+                            && !name.equals(XIncludeFunction._fixup_xml_lang)
+                            && !name.equals(XIncludeFunction._trim_text)) {
+                        throw new IllegalArgumentException("Unrecognized " + PARSE_FILTER_PROPERTY + " option: " + name);
+                    }
+                    options.put(name, token.substring(pos + 1));
+                }
+            }
+        }
+
+        XIncludeFilterFactory factory = new XIncludeFilterFactory();
+        factory.setFixupXmlBase(XIncludeFunction.booleanOption(options, XIncludeFunction._fixup_xml_base, true));
+        factory.setFixupXmlLang(XIncludeFunction.booleanOption(options, XIncludeFunction._fixup_xml_lang, true));
+        factory.setTrimText(XIncludeFunction.booleanOption(options, XIncludeFunction._trim_text, false));
+
+        logger.debug(DebuggingLogger.REGISTRATION, "Registering XInclude parse filter");
+        factory.install(config);
     }
 }
@@ -28,9 +28,9 @@ public class XIncludeFunction extends ExtensionFunctionDefinition {
     private static final StructuredQName qName =
             new StructuredQName("", "http://nwalsh.com/xslt", "xinclude");
 
-    private static final QName _fixup_xml_base = new QName("", "fixup-xml-base");
-    private static final QName _fixup_xml_lang = new QName("", "fixup-xml-lang");
-    private static final QName _trim_text = new QName("", "trim-text");
+    static final QName _fixup_xml_base = new QName("", "fixup-xml-base");
+    static final QName _fixup_xml_lang = new QName("", "fixup-xml-lang");
+    static final QName _trim_text = new QName("", "trim-text");
 
     HashMap<QName,String> options = new HashMap<>();
 
@@ -95,6 +95,10 @@ public class XIncludeFunction extends ExtensionFunctionDefinition {
     }
 
     private boolean getBooleanOption(QName name, boolean defvalue) {
+        return booleanOption(options, name, defvalue);
+    }
+
+    static boolean booleanOption(HashMap<QName,String> options, QName name, boolean defvalue) {
         if (options.containsKey(name)) {
             String value = options.get(name);
             if ("true".equals(value) || "false".equals(value)) {
@@ -0,0 +1,105 @@
+package com.nwalsh.drivers;
+
+import com.nwalsh.sinclude.XInclude;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+// Times pulling one section out of a large chapter whose sections are themselves
+// assembled from nested includes, with and without lazy fragment expansion.
+//
+// Usage: LazyFragmentBenchmark [sections] [paragraphs-per-part] [iterations]
+
+public class LazyFragmentBenchmark {
+    public static void main(String[] argv) throws Exception {
+        int sections = argv.length > 0 ? Integer.parseInt(argv[0]) : 500;
+        int paragraphs = argv.length > 1 ? Integer.parseInt(argv[1]) : 50;
+        int iterations = argv.length > 2 ? Integer.parseInt(argv[2]) : 10;
+
+        File dir = File.createTempFile("sinclude", "-bench");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+
+        File main = generate(dir, sections, paragraphs);
+
+        Processor processor = new Processor(false);
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        XdmNode document = builder.build(main);
+
+        XdmNode eagerResult = null;
+        XdmNode lazyResult = null;
+        for (int warmup = 0; warmup < 3; warmup++) {
+            eagerResult = expand(document, false);
+            lazyResult = expand(document, true);
+        }
+
+        if (!eagerResult.toString().equals(lazyResult.toString())) {
+            throw new IllegalStateException("Lazy and eager expansion produced different results");
+        }
+
+        long eager = time(document, false, iterations);
+        long lazy = time(document, true, iterations);
+
+        System.out.printf("%d sections, %d paragraphs per part, %d iterations%n", sections, paragraphs, iterations);
+        System.out.printf("eager: %8.2f ms/op%n", eager / 1e6 / iterations);
+        System.out.printf("lazy:  %8.2f ms/op%n", lazy / 1e6 / iterations);
+        System.out.printf("speedup: %.1fx%n", (double) eager / lazy);
+    }
+
+    private static long time(XdmNode document, boolean lazy, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int count = 0; count < iterations; count++) {
+            expand(document, lazy);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static XdmNode expand(XdmNode document, boolean lazy) throws Exception {
+        XInclude include = new XInclude();
+        include.setLazyFragments(lazy);
+        return include.expandXIncludes(document);
+    }
+
+    private static File generate(File dir, int sections, int paragraphs) throws IOException {
+        write(new File(dir, "note.xml"), "<note><p>A shared note.</p></note>");
+
+        StringBuilder chapter = new StringBuilder();
+        chapter.append("<chapter xmlns:xi='http://www.w3.org/2001/XInclude'>\n");
+        for (int section = 1; section <= sections; section++) {
+            StringBuilder part = new StringBuilder();
+            part.append("<part xmlns:xi='http://www.w3.org/2001/XInclude'>\n");
+            for (int para = 1; para <= paragraphs; para++) {
+                part.append("  <p>Section ").append(section).append(", paragraph ").append(para).append(".</p>\n");
+            }
+            part.append("  <xi:include href='note.xml'/>\n");
+            part.append("</part>\n");
+            write(new File(dir, "part" + section + ".xml"), part.toString());
+
+            chapter.append("  <section xml:id='s").append(section).append("'>\n");
+            chapter.append("    <title>Section ").append(section).append("</title>\n");
+            chapter.append("    <xi:include href='part").append(section).append(".xml'/>\n");
+            chapter.append("  </section>\n");
+        }
+        chapter.append("</chapter>\n");
+        write(new File(dir, "chapter.xml"), chapter.toString());
+
+        File main = new File(dir, "main.xml");
+        write(main, "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>\n"
+                + "  <xi:include href='chapter.xml' xpointer='element(s" + (sections / 2 + 1) + ")'/>\n"
+                + "</doc>\n");
+        return main;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            writer.print(content);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.nwalsh.drivers;
+
+import com.nwalsh.sinclude.schemes.SearchScheme;
+import com.nwalsh.sinclude.utils.ReceiverUtils;
+import com.nwalsh.sinclude.utils.TextUtils;
+import com.nwalsh.sinclude.xpointer.SchemeData;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compares the bulk text scanning in TextUtils and SearchIndex with the line-at-a-time loops
+// they replaced (split() and contains()), on a generated source file with snippet markers:
+// counting lines, finding the markers for a set of search= snippets, and trimming indentation.
+//
+// Usage: TextScanBenchmark [lines] [snippets] [iterations]
+
+public class TextScanBenchmark {
+    public static void main(String[] argv) throws Exception {
+        int lines = argv.length > 0 ? Integer.parseInt(argv[0]) : 200000;
+        int snippets = argv.length > 1 ? Integer.parseInt(argv[1]) : 60;
+        int iterations = argv.length > 2 ? Integer.parseInt(argv[2]) : 20;
+
+        String text = generate(lines, snippets);
+        Processor processor = new Processor(false);
+        XdmNode base = processor.newDocumentBuilder().build(new File("src/test/resources/xproc-root.xml"));
+
+        List<SearchScheme> schemes = new ArrayList<>();
+        for (int snippet = 0; snippet < snippets; snippet++) {
+            schemes.add(new SearchScheme().newInstance("|start-" + snippet + "/|;after,|end-" + snippet + "/|;before"));
+        }
+
+        for (int warmup = 0; warmup < 3; warmup++) {
+            if (splitLineCount(text) != TextUtils.lineStarts(text).length
+                    || !splitSearch(text, snippets).equals(indexSearch(base, text, schemes))
+                    || !splitTrim(text).equals(TextUtils.trimLines(text))) {
+                throw new IllegalStateException("The scans produced different results");
+            }
+        }
+
+        System.out.printf("%d lines, %d snippets, %d iterations%n", lines, snippets, iterations);
+
+        long before = System.nanoTime();
+        for (int count = 0; count < iterations; count++) {
+            splitLineCount(text);
+        }
+        long after = System.nanoTime();
+        for (int count = 0; count < iterations; count++) {
+            TextUtils.lineStarts(text);
+        }
+        report("lines", after - before, System.nanoTime() - after, iterations);
+
+        before = System.nanoTime();
+        for (int count = 0; count < iterations; count++) {
+            splitSearch(text, snippets);
+        }
+        after = System.nanoTime();
+        for (int count = 0; count < iterations; count++) {
+            indexSearch(base, text, schemes);
+        }
+        report("search", after - before, System.nanoTime() - after, iterations);
+
+        before = System.nanoTime();
+        for (int count = 0; count < iterations; count++) {
+            splitTrim(text);
+        }
+        after = System.nanoTime();
+        for (int count = 0; count < iterations; count++) {
+            TextUtils.trimLines(text);
+        }
+        report("trim", after - before, System.nanoTime() - after, iterations);
+    }
+
+    private static void report(String name, long split, long bulk, int iterations) {
+        System.out.printf("%-7s split: %8.2f ms/op  bulk: %8.2f ms/op  speedup: %.1fx%n",
+                name, split / 1e6 / iterations, bulk / 1e6 / iterations, (double) split / bulk);
+    }
+
+    private static int splitLineCount(String text) {
+        return text.split("\n", -1).length;
+    }
+
+    // Each snippet scans the lines from the top, as SearchScheme used to
+    private static List<String> splitSearch(String text, int snippets) {
+        List<String> results = new ArrayList<>();
+        for (int snippet = 0; snippet < snippets; snippet++) {
+            String[] lines = text.split("\n");
+            int start = 0;
+            while (!lines[start].contains("start-" + snippet + "/")) {
+                start++;
+            }
+            int end = start + 1;
+            while (!lines[end].contains("end-" + snippet + "/")) {
+                end++;
+            }
+            StringBuilder result = new StringBuilder();
+            for (int line = start + 1; line < end; line++) {
+                result.append(lines[line]).append("\n");
+            }
+            results.add(result.toString());
+        }
+        return results;
+    }
+
+    // A fresh document each time, so the search index is built again
+    private static List<String> indexSearch(XdmNode base, String text, List<SearchScheme> schemes) {
+        XdmNode document = ReceiverUtils.makeTextDocument(base, text);
+        SearchScheme.prepare(document, schemes);
+        List<String> results = new ArrayList<>();
+        for (SearchScheme scheme : schemes) {
+            results.add(scheme.select(new SchemeData[0], document).getResult().getStringValue());
+        }
+        return results;
+    }
+
+    private static String splitTrim(String text) {
+        String[] lines = text.split("\n", -1);
+        int trimleading = -1;
+        for (String line : lines) {
+            if (!line.trim().isEmpty()) {
+                int leading = 0;
+                while (leading < line.length() && line.charAt(leading) == ' ') {
+                    leading++;
+                }
+                if (trimleading < 0 || leading < trimleading) {
+                    trimleading = leading;
+                }
+                if (trimleading == 0) {
+                    break;
+                }
+            }
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (int pos = 0; pos < lines.length; pos++) {
+            if (!lines[pos].isEmpty()) {
+                int first = 0;
+                while (first < trimleading && first < lines[pos].length() && lines[pos].charAt(first) == ' ') {
+                    first++;
+                }
+                if (first < lines[pos].length()) {
+                    int last = lines[pos].length() - 1;
+                    while (last > first && lines[pos].charAt(last) == ' ') {
+                        last--;
+                    }
+                    result.append(lines[pos], first, last + 1);
+                }
+            }
+            if (pos + 1 < lines.length) {
+                result.append("\n");
+            }
+        }
+        return result.toString();
+    }
+
+    // Indented source lines with a marked snippet every so often
+    private static String generate(int lines, int snippets) {
+        StringBuilder text = new StringBuilder();
+        int spacing = lines / (snippets + 1);
+        int snippet = 0;
+        for (int line = 0; line < lines; line++) {
+            if (snippet < snippets && line == spacing * (snippet + 1)) {
+                text.append("    // start-").append(snippet).append("/\n");
+                text.append("    int value").append(snippet).append(" = compute(").append(line).append(");  \n");
+                text.append("    // end-").append(snippet).append("/\n");
+                snippet++;
+            } else {
+                text.append("        statement(").append(line).append(", \"some text on the line\");\n");
+            }
+        }
+        return text.toString();
+    }
+}
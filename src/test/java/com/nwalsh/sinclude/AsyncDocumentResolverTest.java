@@ -0,0 +1,117 @@
+package com.nwalsh.sinclude;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.streams.Steps;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.sax.SAXSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncDocumentResolverTest extends TestCase {
+    private static final String[] documents = {
+            "src/test/resources/includedoc.xml",
+            "src/test/resources/includexmlfrag.xml",
+            "src/test/resources/includetextfrag.xml",
+            "src/test/resources/langfixup.xml",
+            "src/test/resources/notaloop-doc.xml",
+            "src/test/resources/xproc-root.xml"
+    };
+
+    private final Processor processor = new Processor(false);
+
+    public void testAdapter() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        Executor executor = task -> {
+            count.incrementAndGet();
+            new Thread(task).start();
+        };
+
+        XdmNode doc = parse("<doc/>");
+        AsyncDocumentResolverAdapter resolver = new AsyncDocumentResolverAdapter(new FakeDocumentResolver(), executor);
+        XdmNode expected = resolver.resolveXml(doc, "one.xml", null, null);
+        XdmNode actual = resolver.resolveXmlAsync(doc, "one.xml", null, null).join();
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals("This is line one.\n", resolver.resolveTextAsync(doc, "one.txt", "UTF-8", null, null).join().getStringValue());
+        assertEquals(2, count.get());
+    }
+
+    public void testAdapterFailure() throws Exception {
+        XdmNode doc = parse("<doc/>");
+        AsyncDocumentResolverAdapter resolver = new AsyncDocumentResolverAdapter(new FakeDocumentResolver());
+        try {
+            resolver.resolveXmlAsync(doc, "nosuchfile.xml", null, null).join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof RuntimeException);
+        }
+    }
+
+    public void testDefaultResolver() throws Exception {
+        XdmNode doc = processor.newDocumentBuilder().build(new File("src/test/resources/includedoc.xml"));
+        DefaultDocumentResolver resolver = new DefaultDocumentResolver();
+        XdmNode expected = resolver.resolveXml(doc, "document.xml", null, null);
+        XdmNode actual = resolver.resolveXmlAsync(doc, "document.xml", null, null).join();
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(expected.getBaseURI(), actual.getBaseURI());
+    }
+
+    public void testSameAsBlocking() throws Exception {
+        XInclude blocking = new XInclude();
+        XInclude async = new XInclude();
+        async.setAsyncResolution(true);
+        for (String document : documents) {
+            XdmNode doc = processor.newDocumentBuilder().build(new File(document));
+            assertEquals(describe(blocking.expandXIncludes(doc)), describe(async.expandXIncludes(doc)));
+        }
+    }
+
+    public void testLoadsInBackground() throws Exception {
+        Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+        DocumentResolver recording = new FakeDocumentResolver() {
+            @Override
+            public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+                threads.add(Thread.currentThread());
+                return super.resolveXml(base, uri, accept, acceptLanguage);
+            }
+        };
+
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='one.xml'/><xi:include href='two.xml'/>"
+                + "<xi:include href='nosuchfile.xml'><xi:fallback><p>fallback</p></xi:fallback></xi:include>"
+                + "<xi:include href='one.txt' parse='text'/></doc>");
+
+        XInclude async = new XInclude(recording);
+        async.setAsyncResolution(true);
+        XdmNode result = async.expandXIncludes(doc);
+        assertFalse(threads.isEmpty());
+        assertFalse(threads.contains(Thread.currentThread()));
+        assertEquals(describe(new XInclude(new FakeDocumentResolver()).expandXIncludes(doc)), describe(result));
+    }
+
+    private String describe(XdmNode node) {
+        StringBuilder sb = new StringBuilder(node.toString());
+        for (XdmNode element : node.select(Steps.descendant()).asList()) {
+            sb.append("\n").append(element.getBaseURI());
+        }
+        return sb.toString();
+    }
+
+    private XdmNode parse(String xml) throws SaxonApiException {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        InputSource source = new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        source.setSystemId("http://example.com/docs/async.xml");
+        return builder.build(new SAXSource(source));
+    }
+}
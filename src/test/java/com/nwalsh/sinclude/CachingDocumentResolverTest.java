@@ -0,0 +1,208 @@
+package com.nwalsh.sinclude;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.*;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyTree;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.sax.SAXSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingDocumentResolverTest extends TestCase {
+    private FakeDocumentResolver fakeResolver = new FakeDocumentResolver();
+    private CountingResolver counter = null;
+    private Processor processor = new Processor(false);
+    private XdmNode emptyDoc = null;
+
+    public void setUp() {
+        counter = new CountingResolver(fakeResolver);
+        try {
+            DocumentBuilder builder = processor.newDocumentBuilder();
+            ByteArrayInputStream bais = new ByteArrayInputStream("<doc/>".getBytes(StandardCharsets.UTF_8));
+            InputSource source = new InputSource(bais);
+            source.setSystemId("http://example.com/docs/empty.xml");
+            emptyDoc = builder.build(new SAXSource(source));
+        } catch (SaxonApiException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testHitsAndMisses() {
+        CachingDocumentResolver resolver = new CachingDocumentResolver(counter);
+        XdmNode first = resolver.resolveXml(emptyDoc, "one.xml", null, null);
+        XdmNode second = resolver.resolveXml(emptyDoc, "one.xml", null, null);
+        assertSame(first.getUnderlyingNode(), second.getUnderlyingNode());
+        assertEquals(1, counter.xmlCount.get());
+        assertEquals(1, resolver.getMissCount());
+        assertEquals(1, resolver.getHitCount());
+        assertEquals(1, resolver.size());
+        assertTrue(resolver.getWeight() > 0);
+    }
+
+    public void testAcceptIsPartOfTheKey() {
+        CachingDocumentResolver resolver = new CachingDocumentResolver(counter);
+        resolver.resolveXml(emptyDoc, "one.xml", null, null);
+        resolver.resolveXml(emptyDoc, "one.xml", "application/xml", null);
+        resolver.resolveXml(emptyDoc, "one.xml", "application/xml", "en");
+        assertEquals(3, counter.xmlCount.get());
+        assertEquals(3, resolver.size());
+    }
+
+    public void testTextAndXmlAreDistinct() {
+        CachingDocumentResolver resolver = new CachingDocumentResolver(counter);
+        XdmNode xml = resolver.resolveXml(emptyDoc, "three.xml", null, null);
+        XdmNode text = resolver.resolveText(emptyDoc, "three.xml", "UTF-8", null, null);
+        resolver.resolveText(emptyDoc, "three.xml", "UTF-8", null, null);
+        assertEquals(1, counter.xmlCount.get());
+        assertEquals(1, counter.textCount.get());
+        assertFalse(xml.getStringValue().equals(text.getStringValue()));
+    }
+
+    public void testEviction() {
+        CachingDocumentResolver resolver = new CachingDocumentResolver(counter, 1);
+        resolver.resolveXml(emptyDoc, "one.xml", null, null);
+        resolver.resolveXml(emptyDoc, "one.xml", null, null);
+        // Nothing fits in a budget of one byte
+        assertEquals(0, resolver.size());
+        assertEquals(2, counter.xmlCount.get());
+
+        // Both documents fit, but not at the same time
+        XdmNode doc = fakeResolver.resolveXml(emptyDoc, "one.xml", null, null);
+        long weight = new CachingDocumentResolver(fakeResolver).estimateWeight(doc);
+        resolver = new CachingDocumentResolver(counter, weight);
+        resolver.resolveXml(emptyDoc, "three.xml", null, null);
+        resolver.resolveXml(emptyDoc, "one.xml", null, null);
+        assertEquals(1, resolver.getEvictionCount());
+        assertEquals(1, resolver.size());
+        assertTrue(resolver.getWeight() <= weight);
+    }
+
+    public void testExpansion() {
+        XInclude include = new XInclude(new CachingDocumentResolver(counter));
+        XdmNode doc = fakeResolver.resolveXml(emptyDoc, "loop3.xml", null, null);
+        try {
+            XdmNode resolved = include.expandXIncludes(doc);
+            assertTrue(fakeResolver.theSame(fakeResolver.expected(emptyDoc, "loop3.xml"), resolved));
+        } catch (XPathException e) {
+            throw new RuntimeException(e);
+        }
+        // loop3.xml includes three.xml twice
+        assertEquals(1, counter.xmlCount.get());
+    }
+
+    public void testConcurrentReaders() throws InterruptedException {
+        final CachingDocumentResolver resolver = new CachingDocumentResolver(counter);
+        final String[] uris = {"one.xml", "two.xml", "three.xml", "onefr.xml"};
+        final Vector<Throwable> errors = new Vector<>();
+        Thread[] threads = new Thread[8];
+        for (int pos = 0; pos < threads.length; pos++) {
+            threads[pos] = new Thread(() -> {
+                try {
+                    for (int count = 0; count < 200; count++) {
+                        XdmNode doc = resolver.resolveXml(emptyDoc, uris[count % uris.length], null, null);
+                        assertNotNull(doc);
+                    }
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            });
+            threads[pos].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.isEmpty());
+        assertEquals(8 * 200, resolver.getHitCount() + resolver.getMissCount());
+        assertEquals(uris.length, resolver.size());
+    }
+
+    public void testCheckFileSystem() throws Exception {
+        File file = File.createTempFile("sinclude", ".txt");
+        try {
+            Files.write(file.toPath(), "one\n".getBytes(StandardCharsets.UTF_8));
+            CachingDocumentResolver resolver = new CachingDocumentResolver(new DefaultDocumentResolver());
+            resolver.setCheckFileSystem(true);
+            String uri = file.toURI().toString();
+            XdmNode first = resolver.resolveText(emptyDoc, uri, "UTF-8", null, null);
+            assertSame(first, resolver.resolveText(emptyDoc, uri, "UTF-8", null, null));
+
+            Files.write(file.toPath(), "one\ntwo\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("one\ntwo\n", resolver.resolveText(emptyDoc, uri, "UTF-8", null, null).getStringValue());
+            assertEquals(2, resolver.getMissCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testWeight() throws SaxonApiException {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        XdmNode doc = builder.build(new SAXSource(new InputSource(new ByteArrayInputStream(
+                "<doc a='1'><p>Some text</p><p>More <b>text</b></p></doc>".getBytes(StandardCharsets.UTF_8)))));
+        TinyTree tree = (TinyTree) doc.getUnderlyingNode().getTreeInfo();
+        long expected = (tree.getNumberOfNodes() + tree.getNumberOfAttributes()) * 32L + doc.getStringValue().length() * 2L;
+        assertEquals(expected, new CachingDocumentResolver(counter).estimateWeight(doc));
+    }
+
+    public void testForwarding() throws Exception {
+        File file = File.createTempFile("sinclude", ".xml");
+        try {
+            Files.write(file.toPath(), "<doc><p xml:id='one'>one</p><p xml:id='two'>two</p></doc>\n".getBytes(StandardCharsets.UTF_8));
+            String uri = file.toURI().toString();
+            CachingDocumentResolver resolver = new CachingDocumentResolver(new DefaultDocumentResolver());
+
+            // The other resolver reads the range or stops at the ID; nothing is cached
+            assertEquals("<doc>", resolver.resolveTextRange(emptyDoc, uri, "UTF-8", null, null, new TextRange(false, 0, 5)).getStringValue());
+            assertNotNull(resolver.resolveXmlId(emptyDoc, uri, null, null, "one"));
+            assertEquals(0, resolver.size());
+
+            // Once the whole document is cached, it's used instead
+            XdmNode doc = resolver.resolveXmlAsync(emptyDoc, uri, null, null).join();
+            assertSame(doc, resolver.resolveXmlAsync(emptyDoc, uri, null, null).join());
+            assertNull(resolver.resolveXmlId(emptyDoc, uri, null, null, "one"));
+            resolver.resolveText(emptyDoc, uri, "UTF-8", null, null);
+            assertEquals("<doc>", resolver.resolveTextRange(emptyDoc, uri, "UTF-8", null, null, new TextRange(false, 0, 5)).getStringValue());
+            assertEquals(2, resolver.size());
+            assertEquals(2, resolver.getMissCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testWithoutOptionalInterfaces() {
+        CachingDocumentResolver resolver = new CachingDocumentResolver(counter);
+        assertNull(resolver.resolveXmlId(emptyDoc, "one.xml", null, null, "one"));
+        assertEquals("Th", resolver.resolveTextRange(emptyDoc, "one.txt", "UTF-8", null, null, new TextRange(false, 0, 2)).getStringValue());
+        resolver.resolveTextRange(emptyDoc, "one.txt", "UTF-8", null, null, new TextRange(false, 1, 2));
+        resolver.resolveTextAsync(emptyDoc, "one.txt", "UTF-8", null, null).join();
+        assertEquals(1, counter.textCount.get());
+        assertEquals(0, counter.xmlCount.get());
+    }
+
+    private static class CountingResolver implements DocumentResolver {
+        private final DocumentResolver resolver;
+        private final AtomicInteger xmlCount = new AtomicInteger(0);
+        private final AtomicInteger textCount = new AtomicInteger(0);
+
+        CountingResolver(DocumentResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        @Override
+        public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+            xmlCount.incrementAndGet();
+            return resolver.resolveXml(base, uri, accept, acceptLanguage);
+        }
+
+        @Override
+        public XdmNode resolveText(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+            textCount.incrementAndGet();
+            return resolver.resolveText(base, uri, encoding, accept, acceptLanguage);
+        }
+    }
+}
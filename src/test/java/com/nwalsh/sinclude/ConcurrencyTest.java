@@ -0,0 +1,106 @@
+package com.nwalsh.sinclude;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.streams.Steps;
+import net.sf.saxon.trans.XPathException;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ConcurrencyTest extends TestCase {
+    private static final String[] documents = {
+            "src/test/resources/includedoc.xml",
+            "src/test/resources/includexmlfrag.xml",
+            "src/test/resources/includetextfrag.xml",
+            "src/test/resources/langfixup.xml",
+            "src/test/resources/notaloop-doc.xml",
+            "src/test/resources/xproc-root.xml"
+    };
+    // Includes the same document three times, so the memo table is used
+    private static final String REPEATS = "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+            + "<xi:include href='document.xml'/><xi:include href='document.xml'/><xi:include href='document.xml'/>"
+            + "</doc>";
+    private static final int THREADS = 8;
+    private static final int TASKS = 400;
+
+    private final Processor processor = new Processor(false);
+
+    public void testSharedInstance() throws Exception {
+        XInclude include = new XInclude(new CachingDocumentResolver(new DefaultDocumentResolver()));
+        stress(include);
+
+        // Each expansion reports its own statistics
+        ExpansionStatistics statistics = new ExpansionStatistics();
+        include.expandXIncludes(repeats(), statistics);
+        assertEquals(2, statistics.getMemoizedIncludeCount());
+    }
+
+    public void testSharedLazyInstance() throws Exception {
+        XInclude include = new XInclude();
+        include.setLazyFragments(true);
+        include.setMemoizeIncludes(false);
+        stress(include);
+    }
+
+    private void stress(XInclude include) throws Exception {
+        XdmNode[] inputs = new XdmNode[documents.length + 1];
+        String[] expected = new String[inputs.length];
+        for (int pos = 0; pos < documents.length; pos++) {
+            inputs[pos] = build(documents[pos]);
+        }
+        inputs[documents.length] = repeats();
+        for (int pos = 0; pos < inputs.length; pos++) {
+            expected[pos] = expand(include, inputs[pos]);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int task = 0; task < TASKS; task++) {
+                final XdmNode input = inputs[task % inputs.length];
+                results.add(executor.submit(() -> expand(include, input)));
+            }
+            for (int task = 0; task < TASKS; task++) {
+                assertEquals(expected[task % expected.length], results.get(task).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private String expand(XInclude include, XdmNode input) throws XPathException {
+        ExpansionStatistics statistics = new ExpansionStatistics();
+        XdmNode result = include.expandXIncludes(input, statistics);
+        return describe(result) + "\nmemoized: " + statistics.getMemoizedIncludeCount();
+    }
+
+    private String describe(XdmNode node) {
+        StringBuilder sb = new StringBuilder(node.toString());
+        for (XdmNode element : node.select(Steps.descendant()).asList()) {
+            sb.append("\n").append(element.getBaseURI());
+        }
+        return sb.toString();
+    }
+
+    private XdmNode build(String document) throws SaxonApiException {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        return builder.build(new File(document));
+    }
+
+    private XdmNode repeats() throws SaxonApiException {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        StreamSource source = new StreamSource(new StringReader(REPEATS));
+        source.setSystemId(new File("src/test/resources/repeats.xml").toURI().toString());
+        return builder.build(source);
+    }
+}
@@ -1,5 +1,6 @@
 package com.nwalsh.sinclude;
 
+import com.nwalsh.sinclude.exceptions.XIncludeIOException;
 import com.nwalsh.sinclude.utils.ReceiverUtils;
 import net.sf.saxon.event.Receiver;
 import net.sf.saxon.expr.parser.Loc;
@@ -35,6 +36,9 @@ public class FakeDocumentResolver implements DocumentResolver {
                 + "  <xi:include href='three.xml'/>"
                 + "</doc>");
         xmlMap.put("three.xml", "<doc>Document three.</doc>");
+        xmlMap.put("xmlnsdata.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'><p>One.</p>"
+                + "<xi:include xpointer='xmlns(ex=http://example.com/)element(/1/1)'/>"
+                + "<xi:include href='three.xml'/></doc>");
         xmlMap.put("four.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
                 + "  <xi:include href='one.xml' fragid='one'/>"
                 + "</doc>");
@@ -327,6 +331,10 @@ public class FakeDocumentResolver implements DocumentResolver {
     public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
         Logger logger = base.getProcessor().getUnderlyingConfiguration().getLogger();
         logger.info("Resolving XML XInclude: " + uri + " (" + base.getBaseURI().resolve(uri).toASCIIString() + ")");
+        if (uri.startsWith("http://example.com/docs/")) {
+            // Same document references from a streamed document use the absolute URI
+            uri = uri.substring("http://example.com/docs/".length());
+        }
         if (xmlMap.containsKey(uri)) {
             try {
                 String text = xmlMap.get(uri);
@@ -342,7 +350,7 @@ public class FakeDocumentResolver implements DocumentResolver {
                 throw new RuntimeException(e);
             }
         } else {
-            throw new RuntimeException("File not found: " + uri);
+            throw new XIncludeIOException(uri, "File not found: " + uri);
         }
     }
 
@@ -382,10 +390,14 @@ public class FakeDocumentResolver implements DocumentResolver {
                 throw new UnsupportedOperationException(e);
             }
         } else {
-            throw new RuntimeException("File not found: " + uri);
+            throw new XIncludeIOException(uri, "File not found: " + uri);
         }
     }
 
+    public String source(String key) {
+        return xmlMap.get(key);
+    }
+
     public XdmNode expected(XdmNode base, String key) {
         return xmlTree(base, expandedMap.get(key));
     }
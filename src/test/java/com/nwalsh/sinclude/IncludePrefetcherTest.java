@@ -0,0 +1,203 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.xpointer.ParseType;
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.sax.SAXSource;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+public class IncludePrefetcherTest extends TestCase {
+    private final Processor processor = new Processor(false);
+
+    public void testIncludeGraph() throws Exception {
+        RecordingResolver resolver = new RecordingResolver(0);
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='nest1.xml'/><xi:include href='two.xml'/></doc>");
+
+        XInclude include = new XInclude(resolver);
+        include.setAsyncResolution(true);
+        XdmNode result = include.expandXIncludes(doc);
+        assertEquals(new XInclude(new FakeDocumentResolver()).expandXIncludes(doc).toString(), result.toString());
+
+        // The documents included by the included documents were loaded in the background too
+        assertTrue(resolver.background.contains("nest2.xml"));
+        assertTrue(resolver.background.contains("nest3.xml"));
+        assertTrue(resolver.background.contains("three.xml"));
+        assertFalse(resolver.foreground.contains("nest3.xml"));
+    }
+
+    public void testSharedLoads() throws Exception {
+        RecordingResolver resolver = new RecordingResolver(0);
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='one.xml'/><div><xi:include href='one.xml' fragid='one'/></div>"
+                + "<xi:include href='one.xml'/></doc>");
+
+        XInclude include = new XInclude(resolver);
+        include.setAsyncResolution(true);
+        include.setMemoizeIncludes(false);
+        include.expandXIncludes(doc);
+        assertEquals(Collections.singletonList("one.xml"), resolver.background);
+
+        // Once the walker has taken the document, the prefetcher forgets it
+        assertEquals(Arrays.asList("one.xml", "one.xml"), resolver.foreground);
+    }
+
+    public void testPointerIncludesNotScanned() throws Exception {
+        RecordingResolver resolver = new RecordingResolver(0);
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='two.xml' xpointer='element(/1)'/><xi:include href='nest1.xml'/></doc>");
+
+        IncludePrefetcher prefetcher = new IncludePrefetcher(new AsyncDocumentResolverAdapter(resolver), 4, null, false, false);
+        prefetcher.scan(doc);
+        XdmNode two = prefetcher.lookup(ParseType.XMLPARSE, doc, "two.xml", null, null, null).join();
+        XdmNode nest1 = prefetcher.lookup(ParseType.XMLPARSE, doc, "nest1.xml", null, null, null).join();
+
+        // The document included whole is scanned, the one a pointer selects from isn't
+        waitFor(() -> prefetcher.isRequested(ParseType.XMLPARSE, nest1, "nest2.xml", null, null, null));
+        Thread.sleep(100);
+        assertFalse(prefetcher.isRequested(ParseType.XMLPARSE, two, "three.xml", null, null, null));
+
+        // Taking a document forgets it, and it isn't requested again
+        assertFalse(prefetcher.isRequested(ParseType.XMLPARSE, doc, "two.xml", null, null, null));
+        prefetcher.scan(parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='two.xml'/></doc>"));
+        assertFalse(prefetcher.isRequested(ParseType.XMLPARSE, doc, "two.xml", null, null, null));
+        prefetcher.cancel();
+    }
+
+    public void testLoadedDocumentsBounded() throws Exception {
+        RecordingResolver resolver = new RecordingResolver(0);
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='one.xml'/><xi:include href='three.xml'/><xi:include href='onefr.xml'/>"
+                + "<xi:include href='nest3.xml'/><xi:include href='one.txt' parse='text'/></doc>");
+
+        IncludePrefetcher prefetcher = new IncludePrefetcher(new AsyncDocumentResolverAdapter(resolver), 2, null, false, false);
+        prefetcher.scan(doc);
+
+        // Loaded documents hold their places until the walker takes them
+        waitFor(() -> resolver.background.size() == 2);
+        Thread.sleep(100);
+        assertEquals(2, resolver.background.size());
+
+        prefetcher.lookup(ParseType.XMLPARSE, doc, "one.xml", null, null, null).join();
+        waitFor(() -> resolver.background.size() == 3);
+        Thread.sleep(100);
+        assertEquals(3, resolver.background.size());
+        prefetcher.cancel();
+    }
+
+    public void testCancel() throws Exception {
+        RecordingResolver resolver = new RecordingResolver(100);
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='one.xml'/><xi:include href='three.xml'/><xi:include href='nest1.xml'/></doc>");
+
+        IncludePrefetcher prefetcher = new IncludePrefetcher(new AsyncDocumentResolverAdapter(resolver), 1, null, false, false);
+        prefetcher.scan(doc);
+        prefetcher.cancel();
+
+        // Nothing is outstanding, and the loads that hadn't started never do
+        assertNull(prefetcher.lookup(ParseType.XMLPARSE, doc, "one.xml", null, null, null));
+        assertFalse(prefetcher.isRequested(ParseType.XMLPARSE, doc, "three.xml", null, null, null));
+        Thread.sleep(300);
+        assertTrue(resolver.background.size() <= 1);
+        assertFalse(resolver.background.contains("three.xml"));
+        assertFalse(resolver.background.contains("nest2.xml"));
+    }
+
+    public void testLimit() throws Exception {
+        RecordingResolver resolver = new RecordingResolver(50);
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='one.xml'/><xi:include href='three.xml'/><xi:include href='onefr.xml'/>"
+                + "<xi:include href='nest3.xml'/><xi:include href='one.txt' parse='text'/>"
+                + "<xi:include href='two.txt' parse='text'/></doc>");
+
+        XInclude include = new XInclude(resolver);
+        include.setAsyncResolution(true);
+        include.setPrefetchLimit(2);
+        XdmNode result = include.expandXIncludes(doc);
+        assertEquals(new XInclude(new FakeDocumentResolver()).expandXIncludes(doc).toString(), result.toString());
+
+        // The walker may start one more when it needs a document that's still waiting
+        assertTrue(resolver.maximum.get() <= 3);
+    }
+
+    public void testBadLimit() {
+        try {
+            new XInclude().setPrefetchLimit(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // pass
+        }
+    }
+
+    private void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+    }
+
+    private XdmNode parse(String xml) throws SaxonApiException {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        InputSource source = new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        source.setSystemId("http://example.com/docs/prefetch.xml");
+        return builder.build(new SAXSource(source));
+    }
+
+    private static class RecordingResolver extends FakeDocumentResolver {
+        private final Thread main = Thread.currentThread();
+        private final long delay;
+        private final List<String> background = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> foreground = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maximum = new AtomicInteger();
+
+        RecordingResolver(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+            record(uri);
+            try {
+                return super.resolveXml(base, uri, accept, acceptLanguage);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public XdmNode resolveText(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+            record(uri);
+            try {
+                return super.resolveText(base, uri, encoding, accept, acceptLanguage);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        private void record(String uri) {
+            (Thread.currentThread() == main ? foreground : background).add(uri);
+            maximum.accumulateAndGet(running.incrementAndGet(), Math::max);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.nwalsh.sinclude;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.*;
+import net.sf.saxon.s9api.streams.Predicates;
+import net.sf.saxon.s9api.streams.Steps;
+import net.sf.saxon.trans.XPathException;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.sax.SAXSource;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LazyFragmentTest extends TestCase {
+    private static final Map<String, String> xmlMap = new HashMap<>();
+    static {
+        xmlMap.put("chapter.xml", "<chapter xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<section xml:id='s1'><xi:include href='big.xml'/></section>"
+                + "<section xml:id='s2'><title>Two</title><xi:include href='small.xml'/></section>"
+                + "<section xml:id='s3'><xi:include href='ids.xml'/></section>"
+                + "</chapter>");
+        xmlMap.put("big.xml", "<big xmlns:xi='http://www.w3.org/2001/XInclude' xmlns:ex='http://example.com/'>"
+                + "<p>Lots of content.</p><ex:p/></big>");
+        xmlMap.put("small.xml", "<small xml:lang='de'><p>Wenig.</p></small>");
+        xmlMap.put("ids.xml", "<p xml:id='deep'>Found in an included document.</p>");
+        xmlMap.put("element.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='chapter.xml' xpointer='element(s2)'/></doc>");
+        xmlMap.put("shorthand.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='chapter.xml' xpointer='s2'/></doc>");
+        xmlMap.put("deep.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='chapter.xml' xpointer='deep'/></doc>");
+        xmlMap.put("sequence.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='chapter.xml' xpointer='element(s2/2)'/></doc>");
+        xmlMap.put("counted.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='chapter.xml' xpointer='element(s1/1)'/></doc>");
+        xmlMap.put("fallthrough.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='chapter.xml' xpointer='element(deep) element(s2)'/></doc>");
+        xmlMap.put("xpath.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='chapter.xml' xpointer='xpath(//p[1])'/></doc>");
+        xmlMap.put("nested.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='chapter.xml' xpointer='element(s1)'/></doc>");
+        xmlMap.put("setid.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='chapter.xml' set-xml-id='s2' xpointer='element(s2/1)'/></doc>");
+    }
+
+    private Processor processor = new Processor(false);
+    private MapResolver resolver = new MapResolver();
+
+    public void testLazySkipsUnselectedIncludes() {
+        compare("element.xml", 2);
+        compare("shorthand.xml", 2);
+    }
+
+    public void testTargetInsideIncludedDocument() {
+        // The ID only exists after expansion, so the whole chapter is expanded
+        compare("deep.xml", 4);
+    }
+
+    public void testChildSequenceThroughInclude() {
+        // The second child of s2 is the xi:include, so it must be expanded first
+        compare("sequence.xml", 4);
+        compare("counted.xml", 4);
+    }
+
+    public void testEarlierPointerMightMatchAfterExpansion() {
+        compare("fallthrough.xml", 4);
+    }
+
+    public void testXPathPointer() {
+        compare("xpath.xml", 4);
+    }
+
+    public void testNamespacesFromNestedIncludes() {
+        compare("nested.xml", 2);
+    }
+
+    public void testSetXmlId() {
+        // set-xml-id moves s2 to the chapter, so s2/1 is the first section
+        compare("setid.xml", 2);
+    }
+
+    private void compare(String key, int lazyCount) {
+        for (boolean fixupBase : new boolean[] {true, false}) {
+            XdmNode eager = expand(key, false, fixupBase);
+            int eagerCount = resolver.count;
+            XdmNode lazy = expand(key, true, fixupBase);
+            assertEquals(describe(eager), describe(lazy));
+            assertEquals(lazyCount, resolver.count);
+            assertTrue(resolver.count <= eagerCount);
+        }
+    }
+
+    private String describe(XdmNode node) {
+        StringBuilder sb = new StringBuilder(node.toString());
+        for (XdmNode element : node.select(Steps.descendant(Predicates.isElement())).asList()) {
+            sb.append("\n").append(element.getNodeName()).append(": ").append(element.getBaseURI());
+            sb.append(" ").append(element.getUnderlyingNode().getAllNamespaces());
+        }
+        return sb.toString();
+    }
+
+    private XdmNode expand(String key, boolean lazyFragments, boolean fixupBase) {
+        XInclude include = new XInclude(resolver);
+        include.setLazyFragments(lazyFragments);
+        include.setFixupXmlBase(fixupBase);
+        try {
+            XdmNode doc = resolver.parse(key);
+            resolver.count = 0;
+            return include.expandXIncludes(doc);
+        } catch (XPathException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private class MapResolver implements DocumentResolver {
+        private int count = 0;
+
+        private XdmNode parse(String uri) {
+            if (!xmlMap.containsKey(uri)) {
+                throw new RuntimeException("File not found: " + uri);
+            }
+            try {
+                String baseURI = "http://example.com/lazy/" + uri;
+                DocumentBuilder builder = processor.newDocumentBuilder();
+                builder.setBaseURI(URI.create(baseURI));
+                InputSource source = new InputSource(new ByteArrayInputStream(xmlMap.get(uri).getBytes(StandardCharsets.UTF_8)));
+                source.setSystemId(baseURI);
+                return builder.build(new SAXSource(source));
+            } catch (SaxonApiException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+            count++;
+            return parse(uri);
+        }
+
+        @Override
+        public XdmNode resolveText(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+            throw new RuntimeException("Unexpected text include: " + uri);
+        }
+    }
+}
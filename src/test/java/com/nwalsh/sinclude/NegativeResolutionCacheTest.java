@@ -0,0 +1,184 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.xpointer.ParseType;
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.sax.SAXSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NegativeResolutionCacheTest extends TestCase {
+    private static final String fallbacks = "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+            + "<xi:include href='nosuchfile.xml'><xi:fallback><p>one</p></xi:fallback></xi:include>"
+            + "<xi:include href='nosuchfile.xml'><xi:fallback><p>two</p></xi:fallback></xi:include>"
+            + "<xi:include href='one.xml' fragid='one'/>"
+            + "<xi:include href='nosuchfile.xml'><xi:fallback><xi:include href='three.xml'/></xi:fallback></xi:include>"
+            + "</doc>";
+
+    private final Processor processor = new Processor(false);
+
+    public void testFallbacks() throws Exception {
+        CountingResolver resolver = new CountingResolver();
+        NegativeResolutionCache cache = new NegativeResolutionCache();
+        XInclude include = new XInclude(resolver);
+        include.setNegativeCache(cache);
+
+        XdmNode doc = parse(fallbacks);
+        XdmNode expected = new XInclude(new FakeDocumentResolver()).expandXIncludes(doc);
+        assertEquals(expected.toString(), include.expandXIncludes(doc).toString());
+        assertEquals(1, resolver.misses.get());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.size());
+
+        // The cache outlives the expansion
+        assertEquals(expected.toString(), include.expandXIncludes(doc).toString());
+        assertEquals(1, resolver.misses.get());
+    }
+
+    public void testPrefetch() throws Exception {
+        CountingResolver resolver = new CountingResolver();
+        NegativeResolutionCache cache = new NegativeResolutionCache();
+        XInclude include = new XInclude(resolver);
+        include.setNegativeCache(cache);
+        include.setAsyncResolution(true);
+
+        XdmNode doc = parse(fallbacks);
+        String expected = new XInclude(new FakeDocumentResolver()).expandXIncludes(doc).toString();
+        assertEquals(expected, include.expandXIncludes(doc).toString());
+        assertEquals(expected, include.expandXIncludes(doc).toString());
+        assertEquals(1, resolver.misses.get());
+    }
+
+    public void testWithoutFallback() throws Exception {
+        NegativeResolutionCache cache = new NegativeResolutionCache();
+        XInclude include = new XInclude(new FakeDocumentResolver());
+        include.setNegativeCache(cache);
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='nosuchfile.xml'/></doc>");
+        for (int count = 0; count < 2; count++) {
+            try {
+                include.expandXIncludes(doc);
+                fail();
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage().contains("nosuchfile.xml"));
+            }
+        }
+    }
+
+    public void testParseType() {
+        NegativeResolutionCache cache = new NegativeResolutionCache();
+        URI uri = URI.create("http://example.com/docs/nosuchfile.xml");
+        cache.recordFailure(uri, ParseType.XMLPARSE, null, null, null);
+        assertTrue(cache.isKnownFailure(uri, ParseType.XMLPARSE, null, null, null));
+        assertFalse(cache.isKnownFailure(uri, ParseType.TEXTPARSE, null, null, null));
+        cache.invalidate(uri);
+        assertFalse(cache.isKnownFailure(uri, ParseType.XMLPARSE, null, null, null));
+    }
+
+    public void testEncodingAndAccept() {
+        NegativeResolutionCache cache = new NegativeResolutionCache();
+        URI uri = URI.create("http://example.com/docs/nosuchfile.txt");
+        cache.recordFailure(uri, ParseType.TEXTPARSE, null, "text/plain", null);
+        assertTrue(cache.isKnownFailure(uri, ParseType.TEXTPARSE, "UTF-8", "text/plain", null));
+        assertFalse(cache.isKnownFailure(uri, ParseType.TEXTPARSE, "ISO-8859-1", "text/plain", null));
+        assertFalse(cache.isKnownFailure(uri, ParseType.TEXTPARSE, null, null, null));
+        assertFalse(cache.isKnownFailure(uri, ParseType.TEXTPARSE, null, "text/plain", "fr"));
+
+        // The encoding doesn't matter to an XML parse
+        cache.recordFailure(uri, ParseType.XMLPARSE, "UTF-8", null, null);
+        assertTrue(cache.isKnownFailure(uri, ParseType.XMLPARSE, "ISO-8859-1", null, null));
+
+        cache.invalidate(uri);
+        assertEquals(0, cache.size());
+    }
+
+    public void testOnlyResolutionFailures() throws Exception {
+        File dir = Files.createTempDirectory("sinclude").toFile();
+        File bad = new File(dir, "bad.xml");
+        try {
+            Files.write(bad.toPath(), "<doc>".getBytes(StandardCharsets.UTF_8));
+            NegativeResolutionCache cache = new NegativeResolutionCache();
+            XInclude include = new XInclude();
+            include.setNegativeCache(cache);
+            XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                    + "<xi:include href='" + bad.toURI() + "'><xi:fallback>bad</xi:fallback></xi:include>"
+                    + "<xi:include href='" + new File(dir, "missing.xml").toURI() + "'><xi:fallback>missing</xi:fallback></xi:include>"
+                    + "<xi:include href='" + dir.toURI() + "one.xml' xpointer='nosuchid'><xi:fallback>none</xi:fallback></xi:include>"
+                    + "</doc>");
+            Files.write(new File(dir, "one.xml").toPath(), "<doc/>".getBytes(StandardCharsets.UTF_8));
+            assertEquals("badmissingnone", include.expandXIncludes(doc).getStringValue());
+
+            // Only the file that isn't there is remembered
+            assertEquals(1, cache.size());
+            assertTrue(cache.isKnownFailure(new File(dir, "missing.xml").toURI(), ParseType.XMLPARSE, null, null, null));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public void testTimeToLive() throws Exception {
+        NegativeResolutionCache cache = new NegativeResolutionCache(50);
+        URI uri = URI.create("http://example.com/docs/nosuchfile.xml");
+        cache.recordFailure(uri, ParseType.XMLPARSE, null, null, null);
+        assertTrue(cache.isKnownFailure(uri, ParseType.XMLPARSE, null, null, null));
+        Thread.sleep(100);
+        assertFalse(cache.isKnownFailure(uri, ParseType.XMLPARSE, null, null, null));
+        assertEquals(0, cache.size());
+    }
+
+    public void testMaximumSize() {
+        NegativeResolutionCache cache = new NegativeResolutionCache(60000, 4);
+        for (int count = 0; count < 10; count++) {
+            cache.recordFailure(URI.create("http://example.com/docs/missing" + count + ".xml"), ParseType.XMLPARSE, null, null, null);
+            assertTrue(cache.size() <= 4);
+        }
+    }
+
+    public void testFileSystem() throws Exception {
+        File dir = Files.createTempDirectory("sinclude").toFile();
+        File missing = new File(dir, "missing.xml");
+        try {
+            NegativeResolutionCache cache = new NegativeResolutionCache();
+            cache.setCheckFileSystem(true);
+            URI uri = missing.toURI();
+            cache.recordFailure(uri, ParseType.XMLPARSE, null, null, null);
+            assertTrue(cache.isKnownFailure(uri, ParseType.XMLPARSE, null, null, null));
+
+            Files.write(missing.toPath(), "<doc/>".getBytes(StandardCharsets.UTF_8));
+            assertFalse(cache.isKnownFailure(uri, ParseType.XMLPARSE, null, null, null));
+        } finally {
+            missing.delete();
+            dir.delete();
+        }
+    }
+
+    private XdmNode parse(String xml) throws SaxonApiException {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        InputSource source = new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        source.setSystemId("http://example.com/docs/negative.xml");
+        return builder.build(new SAXSource(source));
+    }
+
+    private static class CountingResolver extends FakeDocumentResolver {
+        private final AtomicInteger misses = new AtomicInteger();
+
+        @Override
+        public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+            if (uri.startsWith("nosuchfile")) {
+                misses.incrementAndGet();
+            }
+            return super.resolveXml(base, uri, accept, acceptLanguage);
+        }
+    }
+}
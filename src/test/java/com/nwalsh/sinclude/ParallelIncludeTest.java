@@ -0,0 +1,119 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.exceptions.XIncludeLoopException;
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.streams.Steps;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.sax.SAXSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelIncludeTest extends TestCase {
+    private static final String[] documents = {
+            "src/test/resources/includedoc.xml",
+            "src/test/resources/includexmlfrag.xml",
+            "src/test/resources/includetextfrag.xml",
+            "src/test/resources/langfixup.xml",
+            "src/test/resources/notaloop-doc.xml",
+            "src/test/resources/xproc-root.xml"
+    };
+
+    private final Processor processor = new Processor(false);
+
+    public void testSameAsSequential() throws Exception {
+        XInclude sequential = new XInclude();
+        XInclude parallel = new XInclude();
+        parallel.setParallelIncludes(true);
+        for (String document : documents) {
+            XdmNode doc = processor.newDocumentBuilder().build(new File(document));
+            assertEquals(describe(sequential.expandXIncludes(doc)), describe(parallel.expandXIncludes(doc)));
+        }
+    }
+
+    public void testExecutor() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            XInclude parallel = new XInclude(new FakeDocumentResolver());
+            parallel.setParallelIncludes(true);
+            parallel.setExecutor(task -> {
+                count.incrementAndGet();
+                pool.execute(task);
+            });
+
+            XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                    + "<xi:include href='one.xml'/><div><xi:include href='two.xml'/></div>"
+                    + "<xi:include href='one.xml' fragid='one'/>"
+                    + "<xi:include href='seven.xml'/></doc>");
+            XInclude sequential = new XInclude(new FakeDocumentResolver());
+            assertEquals(describe(sequential.expandXIncludes(doc)), describe(parallel.expandXIncludes(doc)));
+            assertEquals(4, count.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testSchemeDataFromEarlierIncludes() throws Exception {
+        // The second include uses the namespace binding established by the first
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='one.xml' fragid='xmlns(e=http://example.com/) xpath(/doc/e:p)'/>"
+                + "<xi:include href='one.xml' fragid='xpath(/doc/e:p)'/>"
+                + "</doc>");
+        XInclude sequential = new XInclude(new FakeDocumentResolver());
+        XInclude parallel = new XInclude(new FakeDocumentResolver());
+        parallel.setParallelIncludes(true);
+        XdmNode result = parallel.expandXIncludes(doc);
+        assertEquals(2, result.select(Steps.descendant("http://example.com/", "p")).asList().size());
+        assertEquals(describe(sequential.expandXIncludes(doc)), describe(result));
+    }
+
+    public void testFallbacks() throws Exception {
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='nosuchfile.xml'><xi:fallback><p>fallback</p></xi:fallback></xi:include>"
+                + "<xi:include href='three.xml'/>"
+                + "</doc>");
+        XInclude sequential = new XInclude(new FakeDocumentResolver());
+        XInclude parallel = new XInclude(new FakeDocumentResolver());
+        parallel.setParallelIncludes(true);
+        assertEquals(describe(sequential.expandXIncludes(doc)), describe(parallel.expandXIncludes(doc)));
+    }
+
+    public void testLoop() throws Exception {
+        XdmNode doc = parse("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='three.xml'/>"
+                + "<xi:include href='loop1.xml'/>"
+                + "</doc>");
+        XInclude parallel = new XInclude(new FakeDocumentResolver());
+        parallel.setParallelIncludes(true);
+        try {
+            parallel.expandXIncludes(doc);
+            fail();
+        } catch (XIncludeLoopException e) {
+            // pass
+        }
+    }
+
+    private String describe(XdmNode node) {
+        StringBuilder sb = new StringBuilder(node.toString());
+        for (XdmNode element : node.select(Steps.descendant()).asList()) {
+            sb.append("\n").append(element.getBaseURI());
+        }
+        return sb.toString();
+    }
+
+    private XdmNode parse(String xml) throws SaxonApiException {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        InputSource source = new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        source.setSystemId("http://example.com/docs/parallel.xml");
+        return builder.build(new SAXSource(source));
+    }
+}
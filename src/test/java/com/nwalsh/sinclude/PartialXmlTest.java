@@ -0,0 +1,154 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.exceptions.XIncludeIOException;
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.streams.Predicates;
+import net.sf.saxon.s9api.streams.Steps;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class PartialXmlTest extends TestCase {
+    private static final String GLOSSARY = "<!DOCTYPE glossary [<!ATTLIST entry key ID #IMPLIED>]>"
+            + "<glossary xmlns:ex='http://example.com/' xml:lang='en' xml:base='sub/'>"
+            + "<div xml:base='div/'><entry xml:id='one'><term>One</term><def>The first.</def></entry></div>"
+            + "<entry xml:id='two' ex:a='b'><term>Two</term><?pi x?><!-- c --><def xml:lang='fr'>Deux</def></entry>"
+            + "<entry xml:id='three'><term>Three</term><xi:include xmlns:xi='http://www.w3.org/2001/XInclude' href='extra.xml'/></entry>"
+            + "<div xml:base='div/'><entry key='four'><term>Four</term></entry></div>"
+            + "</glossary>";
+
+    private final Processor processor = new Processor(false);
+    private File dir = null;
+
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("sinclude").toFile();
+        write("glossary.xml", GLOSSARY);
+        new File(dir, "sub").mkdir();
+        write("sub/extra.xml", "<extra/>");
+        write("truncated.xml", "<glossary><entry xml:id='a'>A</entry><entry xml:id='b'>B</entry><entry");
+    }
+
+    public void tearDown() {
+        deleteAll(dir);
+    }
+
+    public void testSameAsWholeDocument() throws Exception {
+        write("doc.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='glossary.xml' xpointer='element(one)'/>"
+                + "<xi:include href='glossary.xml' xpointer='two'/>"
+                + "<xi:include href='glossary.xml' xpointer='element(two/2)'/>"
+                + "<xi:include href='glossary.xml' xpointer='three'/>"
+                + "<xi:include href='glossary.xml' set-xml-id='new' xpointer='element(one/1)'/>"
+                + "</doc>");
+        CountingResolver resolver = new CountingResolver();
+        assertEquals(describe(expand("doc.xml", new WholeDocumentResolver())), describe(expand("doc.xml", resolver)));
+        // Only extra.xml, included by three, is parsed in full
+        assertEquals(1, resolver.count);
+    }
+
+    public void testOnlyAncestorsAndElement() throws Exception {
+        DefaultDocumentResolver resolver = new DefaultDocumentResolver();
+        XdmNode base = processor.newDocumentBuilder().build(new File(dir, "glossary.xml"));
+        XdmNode partial = resolver.resolveXmlId(base, "glossary.xml", null, null, "four");
+        // glossary, div, entry, term
+        assertEquals(4, partial.select(Steps.descendant(Predicates.isElement())).asList().size());
+        XdmNode entry = partial.select(Steps.descendant("entry")).asNode();
+        assertEquals("four", entry.getAttributeValue(new QName("key")));
+        assertTrue(entry.getBaseURI().toString().endsWith("/sub/div/"));
+        assertEquals(entry, new XdmNode(partial.getUnderlyingNode().getTreeInfo().selectID("four", false)));
+
+        assertNull(resolver.resolveXmlId(base, "glossary.xml", null, null, "missing"));
+    }
+
+    // Parsing stops at the end of the element, so the rest of the document isn't read
+    public void testStopsAtElement() throws Exception {
+        write("doc.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='truncated.xml' xpointer='a'/></doc>");
+        XdmNode result = expand("doc.xml", true);
+        assertEquals("A", result.select(Steps.descendant("entry")).asNode().getStringValue());
+
+        try {
+            expand("doc.xml", false);
+            fail();
+        } catch (XIncludeIOException e) {
+            // expected
+        }
+    }
+
+    // If the ID isn't found, the whole document is parsed and the error reported as usual
+    public void testMissingId() throws Exception {
+        write("doc.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='truncated.xml' xpointer='c'/></doc>");
+        try {
+            expand("doc.xml", true);
+            fail();
+        } catch (XIncludeIOException e) {
+            // expected
+        }
+    }
+
+    private XdmNode expand(String name, boolean lazyFragments) throws Exception {
+        XInclude include = new XInclude();
+        include.setLazyFragments(lazyFragments);
+        return include.expandXIncludes(processor.newDocumentBuilder().build(new File(dir, name)));
+    }
+
+    private XdmNode expand(String name, DocumentResolver resolver) throws Exception {
+        XInclude include = new XInclude(resolver);
+        include.setLazyFragments(true);
+        return include.expandXIncludes(processor.newDocumentBuilder().build(new File(dir, name)));
+    }
+
+    private String describe(XdmNode node) {
+        StringBuilder sb = new StringBuilder(node.toString());
+        for (XdmNode element : node.select(Steps.descendant(Predicates.isElement())).asList()) {
+            sb.append("\n").append(element.getNodeName()).append(": ").append(element.getBaseURI());
+            sb.append(" ").append(element.getUnderlyingNode().getAllNamespaces());
+            sb.append(" ").append(element.getLineNumber());
+        }
+        return sb.toString();
+    }
+
+    private static class CountingResolver extends DefaultDocumentResolver {
+        private int count = 0;
+
+        @Override
+        public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+            count++;
+            return super.resolveXml(base, uri, accept, acceptLanguage);
+        }
+    }
+
+    // Always parses the whole document
+    private static class WholeDocumentResolver implements DocumentResolver {
+        private final DefaultDocumentResolver resolver = new DefaultDocumentResolver();
+
+        @Override
+        public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+            return resolver.resolveXml(base, uri, accept, acceptLanguage);
+        }
+
+        @Override
+        public XdmNode resolveText(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+            return resolver.resolveText(base, uri, encoding, accept, acceptLanguage);
+        }
+    }
+
+    private void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void write(String name, String xml) throws Exception {
+        Files.write(new File(dir, name).toPath(), xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,233 @@
+package com.nwalsh.sinclude;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.sax.SAXSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class SchedulingDocumentResolverTest extends TestCase {
+    private final Processor processor = new Processor(false);
+
+    public void testCoalescing() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SlowResolver slow = new SlowResolver(release);
+        SchedulingDocumentResolver resolver = new SchedulingDocumentResolver(slow);
+        XdmNode doc = parse("<doc/>");
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<XdmNode>> results = new ArrayList<>();
+            for (int count = 0; count < 4; count++) {
+                results.add(pool.submit(() -> resolver.resolveXml(doc, "one.xml", null, null)));
+            }
+            while (resolver.getCoalescedCount() < 3) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            XdmNode first = results.get(0).get();
+            for (Future<XdmNode> result : results) {
+                assertSame(first, result.get());
+            }
+            assertEquals(1, slow.calls.get());
+            assertEquals(1, resolver.getLoadCount());
+        } finally {
+            pool.shutdown();
+        }
+
+        // Once the load is finished, the next request starts another one
+        resolver.resolveXml(doc, "one.xml", null, null);
+        assertEquals(2, slow.calls.get());
+    }
+
+    public void testAsyncCoalescing() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SlowResolver slow = new SlowResolver(release);
+        SchedulingDocumentResolver resolver = new SchedulingDocumentResolver(slow);
+        XdmNode doc = parse("<doc/>");
+
+        XdmNode text = resolver.resolveTextAsync(doc, "one.txt", "UTF-8", null, null).get(5, TimeUnit.SECONDS);
+        assertEquals("This is line one.\n", text.getStringValue());
+
+        Future<XdmNode> first = resolver.resolveXmlAsync(doc, "one.xml", null, null);
+        Future<XdmNode> second = resolver.resolveXmlAsync(doc, "one.xml", null, null);
+        release.countDown();
+        assertSame(first.get(), second.get());
+        assertEquals(1, slow.calls.get());
+        assertEquals(1, resolver.getCoalescedCount());
+    }
+
+    public void testFailuresAreShared() throws Exception {
+        SchedulingDocumentResolver resolver = new SchedulingDocumentResolver(new FakeDocumentResolver());
+        XdmNode doc = parse("<doc/>");
+        try {
+            resolver.resolveXml(doc, "nosuchfile.xml", null, null);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("nosuchfile.xml"));
+        }
+        assertTrue(resolver.resolveXmlAsync(doc, "nosuchfile.xml", null, null).handle((node, ex) -> ex != null).get());
+    }
+
+    public void testHostLimit() throws Exception {
+        SlowResolver slow = new SlowResolver(null);
+        SchedulingDocumentResolver resolver = new SchedulingDocumentResolver(slow);
+        resolver.setHostLimit("EXAMPLE.com", 2);
+        assertEquals(2, resolver.getHostLimit("example.com"));
+        assertEquals(0, resolver.getHostLimit("example.org"));
+        concurrently(resolver);
+        assertTrue(slow.maximum.get() <= 2);
+        assertTrue(resolver.getMaximumQueueDepth() > 0);
+        assertTrue(resolver.getWaitCount() > 0);
+        assertTrue(resolver.getTotalWaitNanos() > 0);
+        assertTrue(resolver.getMaximumWaitNanos() <= resolver.getTotalWaitNanos());
+        assertEquals(0, resolver.getQueueDepth());
+    }
+
+    public void testSchemeLimit() throws Exception {
+        SlowResolver slow = new SlowResolver(null);
+        SchedulingDocumentResolver resolver = new SchedulingDocumentResolver(slow);
+        resolver.setSchemeLimit("http", 1);
+        resolver.setDefaultHostLimit(3);
+        concurrently(resolver);
+        assertEquals(1, slow.maximum.get());
+        assertEquals(6, resolver.getLoadCount());
+    }
+
+    public void testExpansion() throws Exception {
+        SchedulingDocumentResolver resolver = new SchedulingDocumentResolver();
+        resolver.setSchemeLimit("file", 2);
+        XInclude include = new XInclude(resolver);
+        include.setAsyncResolution(true);
+        XdmNode doc = processor.newDocumentBuilder().build(new File("src/test/resources/xproc-root.xml"));
+        assertEquals(new XInclude().expandXIncludes(doc).toString(), include.expandXIncludes(doc).toString());
+    }
+
+    // Range reads and partial parses go to the other resolver, shared and limited like loads
+    public void testForwarding() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SlowResolver slow = new SlowResolver(release);
+        SchedulingDocumentResolver resolver = new SchedulingDocumentResolver(slow);
+        resolver.setSchemeLimit("http", 1);
+        XdmNode doc = parse("<doc/>");
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<XdmNode>> ranges = new ArrayList<>();
+            for (int count = 0; count < 3; count++) {
+                ranges.add(pool.submit(() -> resolver.resolveTextRange(doc, "one.txt", "UTF-8", null, null, new TextRange(false, 0, 4))));
+            }
+            Future<XdmNode> partial = pool.submit(() -> resolver.resolveXmlId(doc, "one.xml", null, null, "one"));
+            while (resolver.getCoalescedCount() < 2 || resolver.getQueueDepth() < 1) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            for (Future<XdmNode> range : ranges) {
+                assertEquals("This", range.get().getStringValue());
+            }
+            assertNotNull(partial.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(2, slow.calls.get());
+        assertEquals(1, slow.maximum.get());
+        assertEquals(2, resolver.getLoadCount());
+
+        // A different range is a different request
+        assertEquals("is", resolver.resolveTextRange(doc, "one.txt", "UTF-8", null, null, new TextRange(false, 5, 7)).getStringValue());
+        assertEquals(3, slow.calls.get());
+    }
+
+    public void testWithoutOptionalInterfaces() throws Exception {
+        SchedulingDocumentResolver resolver = new SchedulingDocumentResolver(new FakeDocumentResolver());
+        XdmNode doc = parse("<doc/>");
+        assertNull(resolver.resolveXmlId(doc, "one.xml", null, null, "one"));
+        assertEquals("Th", resolver.resolveTextRange(doc, "one.txt", "UTF-8", null, null, new TextRange(false, 0, 2)).getStringValue());
+        assertEquals(1, resolver.getLoadCount());
+    }
+
+    private void concurrently(SchedulingDocumentResolver resolver) throws Exception {
+        String[] uris = {"one.xml", "two.xml", "three.xml", "four.xml", "five.xml", "six.xml"};
+        XdmNode doc = parse("<doc/>");
+        ExecutorService pool = Executors.newFixedThreadPool(uris.length);
+        try {
+            List<Future<XdmNode>> results = new ArrayList<>();
+            for (String uri : uris) {
+                results.add(pool.submit(() -> resolver.resolveXml(doc, uri, null, null)));
+            }
+            for (Future<XdmNode> result : results) {
+                assertNotNull(result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private XdmNode parse(String xml) throws SaxonApiException {
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        InputSource source = new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        source.setSystemId("http://example.com/docs/schedule.xml");
+        return builder.build(new SAXSource(source));
+    }
+
+    private static class SlowResolver extends FakeDocumentResolver implements TextRangeResolver, PartialXmlResolver {
+        private final CountDownLatch release;
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maximum = new AtomicInteger();
+
+        SlowResolver(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+            return slowly(() -> super.resolveXml(base, uri, accept, acceptLanguage));
+        }
+
+        @Override
+        public XdmNode resolveTextRange(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextRange range) {
+            return slowly(() -> TextRangeResolver.super.resolveTextSelection(base, uri, encoding, accept, acceptLanguage, range));
+        }
+
+        // Good enough for scheduling; the whole document stands in for the partial one
+        @Override
+        public XdmNode resolveXmlId(XdmNode base, String uri, String accept, String acceptLanguage, String id) {
+            return slowly(() -> super.resolveXml(base, uri, accept, acceptLanguage));
+        }
+
+        private XdmNode slowly(Supplier<XdmNode> loader) {
+            calls.incrementAndGet();
+            maximum.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                if (release != null) {
+                    release.await(5, TimeUnit.SECONDS);
+                } else {
+                    Thread.sleep(30);
+                }
+                return loader.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.nwalsh.sinclude;
 
+import com.nwalsh.sinclude.schemes.SearchIndex;
+import com.nwalsh.sinclude.schemes.SearchScheme;
 import com.nwalsh.sinclude.utils.ReceiverUtils;
 import com.nwalsh.sinclude.xpointer.*;
 import junit.framework.TestCase;
@@ -12,7 +14,13 @@ import net.sf.saxon.s9api.XdmDestination;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 public class SchemeSearchTest extends TestCase {
     private static final String NS_XML = "http://www.w3.org/XML/1998/namespace";
@@ -215,4 +223,113 @@ public class SchemeSearchTest extends TestCase {
         assertEquals(answer, fragment);
     }
 
+    // The selection is complete at the end match; nothing after it is read
+    public void testSearchStopsAtEnd() throws IOException {
+        Scheme[] schemes = fragidParser.parseFragmentIdentifier(ParseType.TEXTPARSE, "search=/four/,/six/");
+        String text = document.getStringValue() + "This line is never read.\n";
+        Reader reader = new StringReader(text) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 16));
+            }
+
+            @Override
+            public int read(char[] buffer) throws IOException {
+                return read(buffer, 0, buffer.length);
+            }
+        };
+
+        String answer = "This is line four four four.\n"
+                + "\n"
+                + "This is line six.\n";
+        assertEquals(answer, ((SearchScheme) schemes[0]).select(reader));
+
+        StringBuilder rest = new StringBuilder();
+        char[] buffer = new char[1024];
+        int count = reader.read(buffer);
+        while (count > 0) {
+            rest.append(buffer, 0, count);
+            count = reader.read(buffer);
+        }
+        assertTrue(rest.toString().endsWith("This line is never read.\n"));
+        assertTrue(rest.length() > text.length() - text.indexOf("six") - 32);
+    }
+
+    // Search includes read from files select the same text as the scheme does from the whole text
+    public void testSearchExpansion() throws Exception {
+        File dir = Files.createTempDirectory("sinclude").toFile();
+        try {
+            Files.write(new File(dir, "text.txt").toPath(), document.getStringValue().getBytes(StandardCharsets.UTF_8));
+            File xml = new File(dir, "doc.xml");
+            Files.write(xml.toPath(), ("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                    + "<xi:include href='text.txt' parse='text' fragid='search=/one/,/six/'/>"
+                    + "<xi:include href='text.txt' parse='text' fragid='search=2/four/,/six/'/>"
+                    + "<xi:include href='text.txt' parse='text' fragid='search=/six/;trim,/twelve/;trim;strip'/>"
+                    + "<xi:include href='text.txt' parse='text' fragid='search=/fourteen/'/>"
+                    + "<xi:include href='text.txt' parse='text' fragid='search=,/four/;before'/>"
+                    + "<xi:include href='text.txt' parse='text' fragid='search=/nothing/'><xi:fallback>none</xi:fallback></xi:include>"
+                    + "</doc>").getBytes(StandardCharsets.UTF_8));
+            XdmNode doc = processor.newDocumentBuilder().build(xml);
+
+            // A CachingDocumentResolver can't select as it reads, so it selects from the whole text
+            XInclude whole = new XInclude(new CachingDocumentResolver(new DefaultDocumentResolver()));
+            String expected = whole.expandXIncludes(doc).toString();
+            assertTrue(expected.contains("none"));
+            assertEquals(expected, new XInclude().expandXIncludes(doc).toString());
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    // Several searches of the same text load it once and find all of their strings in one pass
+    public void testSearchGroup() throws Exception {
+        File dir = Files.createTempDirectory("sinclude").toFile();
+        try {
+            Files.write(new File(dir, "text.txt").toPath(), document.getStringValue().getBytes(StandardCharsets.UTF_8));
+            File xml = new File(dir, "doc.xml");
+            Files.write(xml.toPath(), ("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                    + "<xi:include href='text.txt' parse='text' fragid='search=/one/,/six/'/>"
+                    + "<xi:include href='text.txt' parse='text' fragid='search=2/four/,/six/'/>"
+                    + "<sect><xi:include href='text.txt' parse='text' fragid='search=/six/;trim,/twelve/;trim;strip'/></sect>"
+                    + "<xi:include href='text.txt' parse='text' xpointer='search(/fourteen/,/line/)'/>"
+                    + "<xi:include href='text.txt' parse='text' fragid='search=/nothing/'><xi:fallback>none</xi:fallback></xi:include>"
+                    + "<xi:include href='text.txt' parse='text' fragid='line=2,3'/>"
+                    + "</doc>").getBytes(StandardCharsets.UTF_8));
+            XdmNode doc = processor.newDocumentBuilder().build(xml);
+
+            final XdmNode[] loaded = new XdmNode[1];
+            final int[] loads = new int[2];
+            DefaultDocumentResolver resolver = new DefaultDocumentResolver() {
+                @Override
+                public XdmNode resolveText(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+                    loads[0]++;
+                    loaded[0] = super.resolveText(base, uri, encoding, accept, acceptLanguage);
+                    return loaded[0];
+                }
+
+                @Override
+                public XdmNode resolveTextRange(XdmNode base, String uri, String encoding, String accept, String acceptLanguage, TextRange range) {
+                    loads[1]++;
+                    return super.resolveTextRange(base, uri, encoding, accept, acceptLanguage, range);
+                }
+            };
+
+            XInclude whole = new XInclude(new CachingDocumentResolver(new DefaultDocumentResolver()));
+            String expected = whole.expandXIncludes(doc).toString();
+            assertEquals(expected, new XInclude(resolver).expandXIncludes(doc).toString());
+
+            // The line= range is still read on its own
+            assertEquals(1, loads[0]);
+            assertEquals(1, loads[1]);
+            assertEquals(1, SearchIndex.getIndex(loaded[0].getUnderlyingNode().getTreeInfo(), null).getPasses());
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
 }
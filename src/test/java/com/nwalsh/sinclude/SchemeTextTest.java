@@ -1,5 +1,6 @@
 package com.nwalsh.sinclude;
 
+import com.nwalsh.sinclude.schemes.LineIndex;
 import com.nwalsh.sinclude.utils.ReceiverUtils;
 import com.nwalsh.sinclude.xpointer.*;
 import junit.framework.TestCase;
@@ -162,4 +163,21 @@ public class SchemeTextTest extends TestCase {
         String fragment = result.getResult().getStringValue();
         assertEquals("", fragment);
     }
-}
\ No newline at end of file
+
+    public void testLineIndexIsReused() {
+        LineIndex index = LineIndex.getIndex(document.getUnderlyingNode().getTreeInfo(), document.getStringValue());
+        String[] fragids = {"L8-L10", "line=7,10", "char=0,18", "L20"};
+        String[] expected = {"     This is line eight.\n     This is line nine.\n       This is line ten.\n",
+                "     This is line eight.\n     This is line nine.\n       This is line ten.\n",
+                "This is line one.\n", "This is line twenty.\n"};
+        for (int pos = 0; pos < fragids.length; pos++) {
+            Scheme[] schemes = fragidParser.parseFragmentIdentifier(ParseType.TEXTPARSE, fragids[pos]);
+            SelectionResult result = schemes[0].select(new SchemeData[]{}, document);
+            assertTrue(result.finished());
+            assertEquals(expected[pos], result.getResult().getStringValue());
+        }
+        assertSame(index, LineIndex.getIndex(document.getUnderlyingNode().getTreeInfo()));
+        assertEquals(20, index.getLineCount());
+        assertEquals(7, index.lineOf(index.lineStart(7) + 3));
+    }
+}
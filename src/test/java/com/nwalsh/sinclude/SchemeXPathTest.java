@@ -1,16 +1,20 @@
 package com.nwalsh.sinclude;
 
+import com.nwalsh.sinclude.exceptions.MalformedXPointerSchemeException;
+import com.nwalsh.sinclude.utils.ReceiverUtils;
 import com.nwalsh.sinclude.xpointer.FragmentIdParser;
 import com.nwalsh.sinclude.xpointer.ParseType;
 import com.nwalsh.sinclude.xpointer.Scheme;
 import com.nwalsh.sinclude.xpointer.SchemeData;
 import com.nwalsh.sinclude.xpointer.SelectionResult;
 import junit.framework.TestCase;
+import net.sf.saxon.event.Receiver;
 import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmDestination;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
 import net.sf.saxon.s9api.XdmSequenceIterator;
@@ -123,4 +127,87 @@ public class SchemeXPathTest extends TestCase {
         }
         assertEquals(1, count);
     }
+
+    // Repeated pointers reuse the compiled expression; different bindings compile it again
+    public void testCompiledExpressionCache() {
+        XPathCache cache = new XPathCache(2);
+        xinclude.setXPathCache(cache);
+
+        Scheme[] schemes = fragidParser.parseFragmentIdentifier(ParseType.XMLPARSE, "xmlns(p=http://example.com/p)xpath(//p:b)");
+        for (int count = 0; count < 3; count++) {
+            SchemeData[] data = schemes[0].select(new SchemeData[]{}, document).getSchemeData();
+            SelectionResult result = schemes[1].select(data, document);
+            assertTrue(result.finished());
+            assertEquals(3, result.getSelectedNodes().length);
+        }
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getHitCount());
+
+        schemes = fragidParser.parseFragmentIdentifier(ParseType.XMLPARSE, "xmlns(p=http://example.com/q)xpath(//p:b)");
+        SchemeData[] data = schemes[0].select(new SchemeData[]{}, document).getSchemeData();
+        assertFalse(schemes[1].select(data, document).finished());
+        assertEquals(2, cache.size());
+
+        // The least recently used expression is dropped
+        schemes = fragidParser.parseFragmentIdentifier(ParseType.XMLPARSE, "xpath(//doc)");
+        assertTrue(schemes[0].select(new SchemeData[]{}, document).finished());
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    // Attribute equality tests are answered from the attribute index, with the same results as XPath
+    public void testAttributeEquality() {
+        Scheme[] schemes = fragidParser.parseFragmentIdentifier(ParseType.XMLPARSE, "xpath(//*[@xml:id='b2'])");
+        SelectionResult result = schemes[0].select(new SchemeData[]{}, document);
+        assertTrue(result.finished());
+        assertEquals(1, result.getSelectedNodes().length);
+        assertEquals("b", result.getSelectedNodes()[0].getNodeName().getLocalName());
+
+        // The second p is in a namespace
+        schemes = fragidParser.parseFragmentIdentifier(ParseType.XMLPARSE, "xpath(//p[@xml:id=\"two\"])");
+        assertFalse(schemes[0].select(new SchemeData[]{}, document).finished());
+
+        schemes = fragidParser.parseFragmentIdentifier(ParseType.XMLPARSE, "xmlns(p=http://example.com/p)xpath(//p:p [ @xml:id = 'two' ])");
+        SchemeData[] data = schemes[0].select(new SchemeData[]{}, document).getSchemeData();
+        result = schemes[1].select(data, document);
+        assertTrue(result.finished());
+        assertEquals(1, result.getSelectedNodes().length);
+        assertEquals("two", result.getSelectedNodes()[0].getAttributeValue(xml_id));
+
+        // An unbound prefix is still an error
+        schemes = fragidParser.parseFragmentIdentifier(ParseType.XMLPARSE, "xpath(//q:p[@xml:id='two'])");
+        try {
+            schemes[0].select(new SchemeData[]{}, document);
+            fail();
+        } catch (MalformedXPointerSchemeException e) {
+            // expected
+        }
+    }
+
+    public void testSendSelection() throws Exception {
+        Scheme[] schemes = fragidParser.parseFragmentIdentifier(ParseType.XMLPARSE, "xpath(//*:b)");
+        SelectionResult result = schemes[0].select(new SchemeData[]{}, document);
+        assertTrue(result.finished());
+        assertEquals(3, result.getSelectedNodes().length);
+
+        XdmDestination destination = new XdmDestination();
+        Receiver receiver = ReceiverUtils.makeReceiver(document, destination);
+        receiver.startDocument(0);
+        result.send(receiver);
+        receiver.endDocument();
+        receiver.close();
+
+        // Sending the selection writes the same nodes as the result document has
+        XdmSequenceIterator<XdmNode> sent = destination.getXdmNode().axisIterator(Axis.CHILD);
+        XdmSequenceIterator<XdmNode> iter = result.getResult().axisIterator(Axis.CHILD);
+        String[] ids = new String[] {"b1", "b2", "b3"};
+        for (String id : ids) {
+            assertTrue(sent.hasNext());
+            XdmNode node = sent.next();
+            assertEquals(id, node.getAttributeValue(xml_id));
+            assertEquals(iter.next().toString(), node.toString());
+        }
+        assertFalse(sent.hasNext());
+        assertFalse(iter.hasNext());
+    }
 }
@@ -33,6 +33,12 @@ public class SchemeXmlnsTest extends TestCase {
         assertEquals("http://docbook.org/ns/docbook", data.getUri());
     }
 
+    public void testXmlnsDataEquality() {
+        assertEquals(new XmlnsData("db", "http://docbook.org/ns/docbook"), new XmlnsData("db", "http://docbook.org/ns/docbook"));
+        assertEquals(new XmlnsData("db", "http://docbook.org/ns/docbook").hashCode(), new XmlnsData("db", "http://docbook.org/ns/docbook").hashCode());
+        assertFalse(new XmlnsData("db", "http://docbook.org/ns/docbook").equals(new XmlnsData("d", "http://docbook.org/ns/docbook")));
+    }
+
     public void testXmlnsSchemeError() {
         try {
             fragidParser.parseFragmentIdentifier(ParseType.XMLPARSE, "xmlns(db http://docbook.org/ns/docbook)");
@@ -0,0 +1,60 @@
+package com.nwalsh.sinclude;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class TextLoadingTest extends TestCase {
+    private final Processor processor = new Processor(false);
+
+    public void testExactContent() throws Exception {
+        assertEquals("one\r\ntwo", load("one\r\ntwo".getBytes(StandardCharsets.UTF_8), null));
+    }
+
+    public void testByteOrderMark() throws Exception {
+        byte[] text = "caf\u00e9\n".getBytes(StandardCharsets.UTF_16LE);
+        byte[] bytes = new byte[text.length + 2];
+        bytes[0] = (byte) 0xFF;
+        bytes[1] = (byte) 0xFE;
+        System.arraycopy(text, 0, bytes, 2, text.length);
+        // The byte order mark wins over the encoding attribute
+        assertEquals("caf\u00e9\n", load(bytes, "ISO-8859-1"));
+    }
+
+    public void testEncoding() throws Exception {
+        assertEquals("caf\u00e9\n", load("caf\u00e9\n".getBytes(StandardCharsets.ISO_8859_1), "ISO-8859-1"));
+    }
+
+    public void testMalformed() throws Exception {
+        try {
+            load("caf\u00e9\n".getBytes(StandardCharsets.ISO_8859_1), "UTF-8");
+            fail();
+        } catch (RuntimeException e) {
+            // pass
+        }
+    }
+
+    public void testLargeFile() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 2 * 1024 * 1024) {
+            sb.append("This is line ").append(sb.length()).append(".\n");
+        }
+        assertEquals(sb.toString(), load(sb.toString().getBytes(StandardCharsets.UTF_8), null));
+    }
+
+    private String load(byte[] bytes, String encoding) throws Exception {
+        File file = File.createTempFile("sinclude", ".txt");
+        try {
+            Files.write(file.toPath(), bytes);
+            XdmNode base = processor.newDocumentBuilder().build(new File("src/test/resources/xproc-root.xml"));
+            XdmNode doc = new DefaultDocumentResolver().resolveText(base, file.toURI().toString(), encoding, null, null);
+            return doc.getStringValue();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.schemes.RFC5147Scheme;
+import com.nwalsh.sinclude.xpointer.SchemeData;
+import com.nwalsh.sinclude.xpointer.SelectionResult;
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+
+public class TextRangeTest extends TestCase {
+    private final Processor processor = new Processor(false);
+    private File dir = null;
+    private XdmNode base = null;
+
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("sinclude").toFile();
+        base = processor.newDocumentBuilder().build(new File("src/test/resources/xproc-root.xml"));
+    }
+
+    public void tearDown() {
+        deleteAll(dir);
+    }
+
+    // Ranges must select exactly what the text scheme selects from the whole text
+    public void testSameAsScheme() throws Exception {
+        Random random = new Random(5147);
+        DefaultDocumentResolver resolver = new DefaultDocumentResolver();
+        File file = new File(dir, "random.txt");
+        for (int count = 0; count < 200; count++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int pos = 0; pos < length; pos++) {
+                text.append("ab\n".charAt(random.nextInt(3)));
+            }
+            Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+            XdmNode whole = resolver.resolveText(base, file.toURI().toString(), "UTF-8", null, null);
+
+            for (int test = 0; test < 20; test++) {
+                String fragid = (random.nextBoolean() ? "line=" : "char=") + random.nextInt(14) + "," + random.nextInt(14);
+                if (random.nextInt(4) == 0) {
+                    fragid = fragid.substring(0, fragid.indexOf(","));
+                }
+                assertSame(text + " " + fragid, file, whole, fragid, resolver);
+            }
+        }
+    }
+
+    public void testOpenRanges() throws Exception {
+        DefaultDocumentResolver resolver = new DefaultDocumentResolver();
+        File file = new File(dir, "open.txt");
+        Files.write(file.toPath(), "one\ntwo\n\nfour\n\n\n".getBytes(StandardCharsets.UTF_8));
+        XdmNode whole = resolver.resolveText(base, file.toURI().toString(), "UTF-8", null, null);
+        for (String fragid : new String[] {"line=,2", "line=2,", "line=4,", "char=,5", "char=5,", "char=14,", "char=15,"}) {
+            assertSame(fragid, file, whole, fragid, resolver);
+        }
+    }
+
+    public void testCheckpoints() throws Exception {
+        File file = new File(dir, "large.txt");
+        StringBuilder text = new StringBuilder();
+        int lines = 0;
+        while (text.length() < 3 * LineCheckpoints.INTERVAL) {
+            text.append("Line ").append(lines++).append(": caf\u00e9 \ud83d\ude00\n");
+        }
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+
+        File index = new File(dir, "index");
+        DefaultDocumentResolver resolver = new DefaultDocumentResolver();
+        resolver.setIndexDirectory(index);
+        XdmNode whole = resolver.resolveText(base, file.toURI().toString(), "UTF-8", null, null);
+
+        // The first read passes the checkpoints, the second starts from one
+        String fragid = "line=" + (lines - 10) + "," + (lines - 5);
+        assertSame(fragid, file, whole, fragid, resolver);
+        assertEquals(1, index.listFiles().length);
+        assertTrue(LineCheckpoints.forFile(file, StandardCharsets.UTF_8, 0, index).size() > 2);
+        assertSame(fragid, file, whole, fragid, resolver);
+
+        fragid = "char=" + (text.length() / 2) + "," + (text.length() / 2 + 100);
+        assertSame(fragid, file, whole, fragid, resolver);
+        assertSame("L2-L3", file, whole, "line=1,3", resolver);
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(index.toPath())));
+        }
+    }
+
+    public void testIndexInMemoryByDefault() {
+        assertNull(new DefaultDocumentResolver().getIndexDirectory());
+    }
+
+    public void testChangedContentIgnoresIndex() throws Exception {
+        File file = new File(dir, "changed.txt");
+        StringBuilder text = new StringBuilder();
+        int lines = 0;
+        while (text.length() < 3 * LineCheckpoints.INTERVAL) {
+            text.append("Line ").append(lines++).append(": caf\u00e9\n");
+        }
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+
+        File index = new File(dir, "index");
+        DefaultDocumentResolver resolver = new DefaultDocumentResolver();
+        resolver.setIndexDirectory(index);
+        resolver.resolveTextRange(base, file.toURI().toString(), "UTF-8", null, null, new TextRange(true, lines - 2, lines));
+        assertEquals(1, index.listFiles().length);
+
+        // Same length and modification time, but every line start has moved
+        long modified = file.lastModified();
+        text.insert(0, "x").setLength(text.length() - 1);
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(modified));
+
+        File copy = new File(dir, "copy");
+        assertTrue(copy.mkdir());
+        Files.copy(index.listFiles()[0].toPath(), new File(copy, index.listFiles()[0].getName()).toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+        assertEquals(1, LineCheckpoints.forFile(file, StandardCharsets.UTF_8, 0, copy).size());
+    }
+
+    public void testExpansion() throws Exception {
+        Files.write(new File(dir, "text.txt").toPath(), "one\ntwo\nthree\nfour\n\n".getBytes(StandardCharsets.UTF_8));
+        File xml = new File(dir, "doc.xml");
+        Files.write(xml.toPath(), ("<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='text.txt' parse='text' fragid='L2-L3'/>"
+                + "<xi:include href='text.txt' parse='text' fragid='char=5,'/>"
+                + "<xi:include href='text.txt' parse='text' fragid='line=3,4;length=20'/>"
+                + "<xi:include href='text.txt' parse='text' fragid='line=5,'><xi:fallback>none</xi:fallback></xi:include>"
+                + "</doc>").getBytes(StandardCharsets.UTF_8));
+        XdmNode doc = processor.newDocumentBuilder().build(xml);
+
+        // An AsyncDocumentResolverAdapter can't read ranges, so it selects from the whole text
+        XInclude whole = new XInclude(new AsyncDocumentResolverAdapter(new DefaultDocumentResolver()));
+        assertEquals(whole.expandXIncludes(doc).toString(), new XInclude().expandXIncludes(doc).toString());
+    }
+
+    private void assertSame(String message, File file, XdmNode whole, String fragid, DefaultDocumentResolver resolver) {
+        RFC5147Scheme scheme = new RFC5147Scheme().newInstance(fragid);
+        SelectionResult expected = scheme.select(new SchemeData[0], whole);
+        XdmNode range = resolver.resolveTextRange(base, file.toURI().toString(), "UTF-8", null, null, scheme.getTextRange());
+        if (expected.finished()) {
+            assertNotNull(message, range);
+            assertEquals(message, expected.getResult().getStringValue(), range.getStringValue());
+        } else {
+            assertNull(message, range);
+        }
+    }
+
+    private void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,36 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.utils.TextUtils;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class TextUtilsTest extends TestCase {
+    public void testLineStarts() {
+        assertTrue(Arrays.equals(new int[] {0}, TextUtils.lineStarts("")));
+        assertTrue(Arrays.equals(new int[] {0, 4, 5}, TextUtils.lineStarts("one\n\ntwo")));
+        assertTrue(Arrays.equals(new int[] {0, 4}, TextUtils.lineStarts("one\n")));
+    }
+
+    public void testIndexOf() {
+        char[] buffer = "one\ntwo\n".toCharArray();
+        assertEquals(3, TextUtils.indexOf(buffer, '\n', 0, buffer.length));
+        assertEquals(7, TextUtils.indexOf(buffer, '\n', 4, buffer.length));
+        assertEquals(-1, TextUtils.indexOf(buffer, '\n', 4, 7));
+    }
+
+    public void testIndexOfAny() {
+        long[] mask = TextUtils.charMask("x\n\u00e9\u4e00");
+        assertEquals(3, TextUtils.indexOfAny("abc\ndef", 0, mask));
+        assertEquals(5, TextUtils.indexOfAny("abc\nd\u00e9f", 4, mask));
+        assertEquals(1, TextUtils.indexOfAny("a\u4e00", 0, mask));
+        assertEquals(-1, TextUtils.indexOfAny("abc\u00e8", 0, mask));
+    }
+
+    public void testTrimLines() {
+        assertEquals("one\n  two\n\nthree", TextUtils.trimLines("    one  \n      two\n  \n    three"));
+        assertEquals("one\ntwo\n", TextUtils.trimLines("one\ntwo\n"));
+        assertEquals("a\n\tb", TextUtils.trimLines(" a\n \tb"));
+        assertEquals("", TextUtils.trimLines(""));
+    }
+}
@@ -0,0 +1,210 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.exceptions.XIncludeLoopException;
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.*;
+import net.sf.saxon.s9api.streams.Predicates;
+import net.sf.saxon.s9api.streams.Steps;
+import net.sf.saxon.trans.XPathException;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class XIncludeFilterFactoryTest extends TestCase {
+    private static final String[] documents = {
+            "src/test/resources/includedoc.xml",
+            "src/test/resources/langfixup.xml",
+            "src/test/resources/notaloop-doc.xml",
+            "src/test/resources/xproc-root.xml"
+    };
+
+    public void testAugmentedSource() {
+        Processor processor = new Processor(false);
+        XIncludeFilterFactory factory = new XIncludeFilterFactory();
+        for (String document : documents) {
+            XdmNode filtered = build(processor, factory.augment(new StreamSource(new File(document))));
+            assertSame(expand(processor, document, new XInclude()), filtered);
+        }
+    }
+
+    public void testInstalledOnConfiguration() {
+        Processor processor = new Processor(false);
+        new XIncludeFilterFactory().install(processor.getUnderlyingConfiguration());
+        for (String document : documents) {
+            XdmNode filtered = build(processor, new StreamSource(new File(document)));
+            assertSame(expand(new Processor(false), document, new XInclude()), filtered);
+        }
+    }
+
+    public void testDocFunction() throws SaxonApiException {
+        Processor processor = new Processor(false);
+        new XIncludeFilterFactory().install(processor.getUnderlyingConfiguration());
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.declareNamespace("xi", "http://www.w3.org/2001/XInclude");
+        XPathSelector selector = compiler.compile("doc('src/test/resources/includedoc.xml')").load();
+        XdmNode doc = (XdmNode) selector.evaluateSingle();
+        assertTrue(doc.select(Steps.descendant("http://www.w3.org/2001/XInclude", "include")).asList().isEmpty());
+        assertEquals("This is a document.", doc.select(Steps.descendant("p")).asString());
+    }
+
+    // The include expands what its resolver loads; the filter doesn't expand it again as it's parsed
+    public void testCustomResolver() throws Exception {
+        File dir = Files.createTempDirectory("sinclude").toFile();
+        try {
+            File a = write(dir, "a.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='b.xml'/></doc>");
+            write(dir, "b.xml", "<b xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='c.xml'/></b>");
+            write(dir, "c.xml", "<c>Document c.</c>");
+
+            Processor processor = new Processor(false);
+            new XIncludeFilterFactory(new FileResolver()).install(processor.getUnderlyingConfiguration());
+            XdmNode doc = processor.newDocumentBuilder().build(a);
+            assertTrue(doc.select(Steps.descendant("http://www.w3.org/2001/XInclude", "include")).asList().isEmpty());
+            assertEquals("Document c.", doc.select(Steps.descendant("c")).asString());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    public void testCustomResolverLoop() throws Exception {
+        File dir = Files.createTempDirectory("sinclude").toFile();
+        try {
+            File a = write(dir, "a.xml", "<a xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='b.xml'/></a>");
+            write(dir, "b.xml", "<b xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='a.xml'/></b>");
+
+            Processor processor = new Processor(false);
+            new XIncludeFilterFactory(new FileResolver()).install(processor.getUnderlyingConfiguration());
+            try {
+                build(processor, new StreamSource(a));
+                fail();
+            } catch (XIncludeLoopException e) {
+                // pass
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // Documents loaded in the background for an expansion aren't expanded by the filter either
+    public void testAsyncResolution() throws Exception {
+        File dir = Files.createTempDirectory("sinclude").toFile();
+        try {
+            File a = write(dir, "a.xml", "<doc xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='b.xml'/></doc>");
+            write(dir, "b.xml", "<b xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='c.xml'/></b>");
+            write(dir, "c.xml", "<c>Document c.</c>");
+
+            Processor processor = new Processor(false);
+            XdmNode doc = processor.newDocumentBuilder().build(a);
+            FileResolver filterResolver = new FileResolver();
+            new XIncludeFilterFactory(filterResolver).install(processor.getUnderlyingConfiguration());
+            XInclude include = new XInclude();
+            include.setAsyncResolution(true);
+            XdmNode expanded = include.expandXIncludes(doc);
+            assertEquals("Document c.", expanded.select(Steps.descendant("c")).asString());
+            assertEquals(0, filterResolver.count.get());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    public void testOptions() {
+        Processor processor = new Processor(false);
+        XIncludeFilterFactory factory = new XIncludeFilterFactory();
+        factory.setFixupXmlBase(false);
+        factory.setFixupXmlLang(false);
+        XInclude include = new XInclude();
+        include.setFixupXmlBase(false);
+        include.setFixupXmlLang(false);
+        for (String document : documents) {
+            XdmNode filtered = build(processor, factory.augment(new StreamSource(new File(document))));
+            assertSame(expand(processor, document, include), filtered);
+        }
+    }
+
+    public void testLoop() {
+        Processor processor = new Processor(false);
+        XIncludeFilterFactory factory = new XIncludeFilterFactory(new FakeDocumentResolver());
+        factory.install(processor.getUnderlyingConfiguration());
+        InputSource source = new InputSource(new ByteArrayInputStream(new FakeDocumentResolver().source("loop1.xml").getBytes(StandardCharsets.UTF_8)));
+        source.setSystemId("http://example.com/docs/loop1.xml");
+        try {
+            build(processor, new SAXSource(source));
+            fail();
+        } catch (XIncludeLoopException e) {
+            // pass
+        }
+    }
+
+    private void assertSame(XdmNode expected, XdmNode actual) {
+        assertTrue(new FakeDocumentResolver().theSame(expected, actual));
+        assertEquals(baseURIs(expected), baseURIs(actual));
+    }
+
+    private String baseURIs(XdmNode node) {
+        StringBuilder sb = new StringBuilder();
+        for (XdmNode element : node.select(Steps.descendant(Predicates.isElement())).asList()) {
+            sb.append(element.getNodeName()).append(": ").append(element.getBaseURI()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private XdmNode expand(Processor processor, String document, XInclude include) {
+        try {
+            XdmNode doc = processor.newDocumentBuilder().build(new File(document));
+            return include.expandXIncludes(doc);
+        } catch (SaxonApiException | XPathException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File write(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private void delete(File dir) {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private XdmNode build(Processor processor, Source source) {
+        try {
+            return processor.newDocumentBuilder().build(source);
+        } catch (SaxonApiException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    // An ordinary resolver that knows nothing about the filter
+    private static class FileResolver implements DocumentResolver {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public XdmNode resolveXml(XdmNode base, String uri, String accept, String acceptLanguage) {
+            count.incrementAndGet();
+            try {
+                return base.getProcessor().newDocumentBuilder().build(new File(base.getBaseURI().resolve(uri)));
+            } catch (SaxonApiException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public XdmNode resolveText(XdmNode base, String uri, String encoding, String accept, String acceptLanguage) {
+            throw new RuntimeException("Unexpected text include: " + uri);
+        }
+    }
+}
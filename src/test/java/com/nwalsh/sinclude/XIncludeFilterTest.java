@@ -0,0 +1,137 @@
+package com.nwalsh.sinclude;
+
+import com.nwalsh.sinclude.exceptions.XIncludeLoopException;
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.*;
+import net.sf.saxon.s9api.streams.Predicates;
+import net.sf.saxon.s9api.streams.Steps;
+import net.sf.saxon.trans.XPathException;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.sax.SAXSource;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+public class XIncludeFilterTest extends TestCase {
+    private FakeDocumentResolver resolver = new FakeDocumentResolver();
+    private Processor processor = new Processor(false);
+
+    public void testXmlIncludes() {
+        compare("two.xml");
+        compare("nest1.xml");
+        compare("loop3.xml");
+        compare("eleven.xml");
+        compare("fifteen.xml");
+    }
+
+    public void testFragids() {
+        compare("four.xml");
+        compare("five.xml");
+        compare("six.xml");
+        compare("nine.xml");
+        compare("ten.xml");
+        compare("thirteen.xml");
+    }
+
+    public void testTextIncludes() {
+        compare("seven.xml");
+        compare("ghline.xml");
+        compare("ghlinerange.xml");
+        compare("icheck1.xml");
+    }
+
+    public void testFallback() {
+        compare("eight.xml");
+        compare("icheck3.xml");
+    }
+
+    public void testSameDocument() {
+        compare("textselfref.xml");
+        compare("mixedselfref.xml");
+        compare("xmlselfref.xml");
+    }
+
+    public void testOptions() {
+        XInclude include = new XInclude(resolver);
+        include.setTrimText(true);
+        compare("trimtext.xml", include);
+
+        include = new XInclude(resolver);
+        include.setFixupXmlBase(false);
+        compare("twelve.xml", include);
+
+        include = new XInclude(resolver);
+        include.setFixupXmlLang(false);
+        compare("fourteen.xml", include);
+    }
+
+    public void testLoop() {
+        try {
+            stream("loop1.xml", new XInclude(resolver));
+            fail();
+        } catch (XIncludeLoopException e) {
+            // pass
+        }
+    }
+
+    private void compare(String key) {
+        compare(key, new XInclude(resolver));
+    }
+
+    private void compare(String key, XInclude include) {
+        XdmNode streamed = stream(key, include);
+        XdmNode expanded;
+        try {
+            expanded = include.expandXIncludes(parse(key));
+        } catch (XPathException e) {
+            throw new RuntimeException(e);
+        }
+        assertTrue(resolver.theSame(expanded, streamed));
+        assertEquals(baseURIs(expanded), baseURIs(streamed));
+    }
+
+    private String baseURIs(XdmNode node) {
+        StringBuilder sb = new StringBuilder();
+        for (XdmNode element : node.select(Steps.descendant(Predicates.isElement())).asList()) {
+            sb.append(element.getNodeName()).append(": ").append(element.getBaseURI()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private XdmNode parse(String key) {
+        try {
+            DocumentBuilder builder = processor.newDocumentBuilder();
+            return builder.build(new SAXSource(source(key)));
+        } catch (SaxonApiException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private XdmNode stream(String key, XInclude include) {
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            XMLReader reader = factory.newSAXParser().getXMLReader();
+            XIncludeFilter filter = new XIncludeFilter(reader, processor, include);
+            DocumentBuilder builder = processor.newDocumentBuilder();
+            return builder.build(new SAXSource(filter, source(key)));
+        } catch (SaxonApiException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private InputSource source(String key) {
+        InputSource source = new InputSource(new ByteArrayInputStream(resolver.source(key).getBytes(StandardCharsets.UTF_8)));
+        source.setSystemId("http://example.com/docs/" + key);
+        return source;
+    }
+}
@@ -3,14 +3,25 @@ package com.nwalsh.sinclude;
 import com.nwalsh.sinclude.exceptions.XIncludeIntegrityCheckException;
 import com.nwalsh.sinclude.exceptions.XIncludeLoopException;
 import com.nwalsh.sinclude.exceptions.XIncludeNoFragmentException;
+import com.nwalsh.sinclude.xpointer.DefaultFragmentIdParser;
+import com.nwalsh.sinclude.xpointer.FragmentIdParser;
+import com.nwalsh.sinclude.xpointer.ParseType;
+import com.nwalsh.sinclude.xpointer.Scheme;
+import com.nwalsh.sinclude.xpointer.SchemeData;
+import com.nwalsh.sinclude.xpointer.SelectionResult;
 import junit.framework.TestCase;
+import net.sf.saxon.event.Receiver;
 import net.sf.saxon.s9api.*;
 import net.sf.saxon.trans.XPathException;
 import org.xml.sax.InputSource;
 
 import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 
 public class XIncludeTest extends TestCase {
@@ -446,4 +457,250 @@ public class XIncludeTest extends TestCase {
             }
         }
     }
+
+    public void testMemoizedIncludes() {
+        XdmNode doc = resolver.resolveXml(emptyDoc, "loop3.xml", null, null);
+        XdmNode expected = resolver.expected(emptyDoc, "loop3.xml");
+        try {
+            XInclude include = new XInclude(resolver);
+            ExpansionStatistics statistics = new ExpansionStatistics();
+            assertTrue(resolver.theSame(expected, include.expandXIncludes(doc, statistics)));
+            assertEquals(1, statistics.getMemoizedIncludeCount());
+
+            include.setMemoizeIncludes(false);
+            assertTrue(resolver.theSame(expected, include.expandXIncludes(doc, statistics)));
+            assertEquals(0, statistics.getMemoizedIncludeCount());
+        } catch (XPathException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testMemoAdmission() {
+        // two.xml includes other documents, so its result is built by expanding it
+        String xml = "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='two.xml'/><xi:include href='two.xml'/><xi:include href='two.xml'/>"
+                + "<xi:include href='two.xml'/></doc>";
+        try {
+            XdmNode doc = parse(xml);
+            XInclude include = new XInclude(resolver);
+            ExpansionStatistics statistics = new ExpansionStatistics();
+            XdmNode memoized = include.expandXIncludes(doc, statistics);
+            // The first is expanded, the second is expanded (reusing its three.xml) and saved,
+            // and the rest are reused
+            assertEquals(3, statistics.getMemoizedIncludeCount());
+
+            include.setMemoizeIncludes(false);
+            XdmNode expanded = include.expandXIncludes(doc, statistics);
+            assertEquals(0, statistics.getMemoizedIncludeCount());
+            assertTrue(resolver.theSame(expanded, memoized));
+        } catch (XPathException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testMemoSchemeData() {
+        // Each expansion of xmlnsdata.xml makes its own xmlns() scheme data, which is part of the
+        // memo key for its include of three.xml
+        String xml = "<doc xmlns:xi='http://www.w3.org/2001/XInclude' xmlns:ex='http://example.com/'>"
+                + "<xi:include href='xmlnsdata.xml' ex:role='a'/><xi:include href='xmlnsdata.xml' ex:role='b'/></doc>";
+        try {
+            XdmNode doc = parse(xml);
+            XInclude include = new XInclude(resolver);
+            ExpansionStatistics statistics = new ExpansionStatistics();
+            XdmNode memoized = include.expandXIncludes(doc, statistics);
+            assertEquals(1, statistics.getMemoizedIncludeCount());
+
+            include.setMemoizeIncludes(false);
+            assertTrue(resolver.theSame(include.expandXIncludes(doc), memoized));
+        } catch (XPathException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testExpandToDestination() {
+        XInclude include = new XInclude();
+
+        try {
+            DocumentBuilder builder = processor.newDocumentBuilder();
+            XdmNode doc = builder.build(new File("src/test/resources/langfixup.xml"));
+            XdmNode expected = include.expandXIncludes(doc);
+
+            XdmDestination destination = new XdmDestination();
+            include.expandXIncludes(doc, destination);
+            assertTrue(resolver.theSame(expected, destination.getXdmNode()));
+            assertEquals(expected.getBaseURI(), destination.getXdmNode().getBaseURI());
+
+            StringWriter writer = new StringWriter();
+            Serializer serializer = processor.newSerializer(writer);
+            serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+            include.expandXIncludes(doc, serializer);
+            XdmNode serialized = builder.build(new StreamSource(new StringReader(writer.toString())));
+            assertTrue(resolver.theSame(expected, serialized));
+
+            XsltTransformer transformer = processor.newXsltCompiler()
+                    .compile(new StreamSource(new File("src/test/resources/identity.xsl"))).load();
+            destination = new XdmDestination();
+            transformer.setDestination(destination);
+            include.expandXIncludes(doc, transformer);
+            assertTrue(resolver.theSame(expected, destination.getXdmNode()));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    public void testExpandToFilesAndStreams() {
+        XInclude include = new XInclude();
+        File input = new File("src/test/resources/xproc-root.xml");
+
+        try {
+            DocumentBuilder builder = processor.newDocumentBuilder();
+            XdmNode expected = include.expandXIncludes(builder.build(input));
+
+            File output = File.createTempFile("sinclude", ".xml");
+            output.deleteOnExit();
+            include.expandXIncludes(processor, input, output);
+            assertTrue(resolver.theSame(expected, builder.build(output)));
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            include.expandXIncludes(processor, new StreamSource(input), stream);
+            XdmNode streamed = builder.build(new StreamSource(new ByteArrayInputStream(stream.toByteArray())));
+            assertTrue(resolver.theSame(expected, streamed));
+
+            StringWriter writer = new StringWriter();
+            include.expandXIncludes(processor, new StreamSource(input), writer);
+            XdmNode written = builder.build(new StreamSource(new StringReader(writer.toString())));
+            assertTrue(resolver.theSame(expected, written));
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    public void testMemoRespectsContext() {
+        String xml = "<doc xmlns:xi='http://www.w3.org/2001/XInclude' xmlns:ex='http://example.com/'>"
+                + "<div xml:lang='en'><xi:include href='one.xml' fragid='one'/></div>"
+                + "<div xml:lang='de'><xi:include href='one.xml' fragid='one'/></div>"
+                + "<div xml:lang='de'><xi:include href='one.xml' fragid='one' ex:role='x'/></div>"
+                + "<div xml:lang='de'><xi:include href='one.xml' fragid='one' set-xml-id='two'/></div>"
+                + "<div xml:lang='de'><xi:include href='one.xml' fragid='one'/></div>"
+                + "</doc>";
+        try {
+            XdmNode doc = parse(xml);
+            XInclude include = new XInclude(resolver);
+            ExpansionStatistics statistics = new ExpansionStatistics();
+            XdmNode memoized = include.expandXIncludes(doc, statistics);
+            assertEquals(1, statistics.getMemoizedIncludeCount());
+
+            include.setMemoizeIncludes(false);
+            XdmNode expanded = include.expandXIncludes(doc);
+            assertTrue(resolver.theSame(expanded, memoized));
+        } catch (XPathException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testXPathSelectionIsStreamed() {
+        String xml = "<doc xmlns:xi='http://www.w3.org/2001/XInclude'>"
+                + "<xi:include href='one.xml' xpointer='xpath(/doc/*)'/>"
+                + "<xi:include href='one.xml' xpointer='xpath(/doc/*[1]/@xml:id|/doc/*[3])'/>"
+                + "</doc>";
+        try {
+            XdmNode doc = parse(xml);
+            XdmNode expected = new XInclude(resolver).expandXIncludes(doc);
+
+            CountingParser parser = new CountingParser();
+            XInclude include = new XInclude(resolver, parser);
+            parser.parser = new DefaultFragmentIdParser(include);
+            XdmNode streamed = include.expandXIncludes(doc);
+
+            assertTrue(resolver.theSame(expected, streamed));
+            assertEquals(2, parser.sent);
+            // The selections went straight to the output; no result document was built for them
+            assertEquals(0, parser.built);
+        } catch (XPathException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private XdmNode parse(String xml) {
+        try {
+            DocumentBuilder builder = processor.newDocumentBuilder();
+            InputSource source = new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+            source.setSystemId("http://example.com/docs/memo.xml");
+            return builder.build(new SAXSource(source));
+        } catch (SaxonApiException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Counts the selections that are sent and the ones whose result document is built
+    private static class CountingParser implements FragmentIdParser {
+        private FragmentIdParser parser = null;
+        private int sent = 0;
+        private int built = 0;
+
+        @Override
+        public void setProperty(QName property, String value) {
+            parser.setProperty(property, value);
+        }
+
+        @Override
+        public String getProperty(QName property) {
+            return parser.getProperty(property);
+        }
+
+        @Override
+        public Scheme[] parseFragmentIdentifier(ParseType parseType, String fragid) {
+            Scheme[] schemes = parser.parseFragmentIdentifier(parseType, fragid);
+            for (int pos = 0; pos < schemes.length; pos++) {
+                Scheme scheme = schemes[pos];
+                schemes[pos] = new Scheme() {
+                    @Override
+                    public String schemeName() {
+                        return scheme.schemeName();
+                    }
+
+                    @Override
+                    public String parseType() {
+                        return scheme.parseType();
+                    }
+
+                    @Override
+                    public SelectionResult select(SchemeData[] schemeData, XdmNode document) {
+                        SelectionResult result = scheme.select(schemeData, document);
+                        return new SelectionResult() {
+                            @Override
+                            public SchemeData[] getSchemeData() {
+                                return result.getSchemeData();
+                            }
+
+                            @Override
+                            public boolean finished() {
+                                return result.finished();
+                            }
+
+                            @Override
+                            public XdmNode getResult() {
+                                built++;
+                                return result.getResult();
+                            }
+
+                            @Override
+                            public XdmNode[] getSelectedNodes() {
+                                return result.getSelectedNodes();
+                            }
+
+                            @Override
+                            public void send(Receiver receiver) throws XPathException {
+                                sent++;
+                                result.send(receiver);
+                            }
+                        };
+                    }
+                };
+            }
+            return schemes;
+        }
+    }
 }
@@ -97,6 +97,29 @@ public class ExtFunctionTest extends TestCase {
         }
     }
 
+    public void testParseFilterProperty() {
+        String property = System.getProperty(Register.PARSE_FILTER_PROPERTY);
+        try {
+            System.setProperty(Register.PARSE_FILTER_PROPERTY, "fixup-xml-base=false");
+            new Register().initialize(processor.getUnderlyingConfiguration());
+            XdmNode node = processor.newDocumentBuilder().build(new File("src/test/resources/includedoc.xml"));
+
+            assertEquals(1, count(node, "/*/*"));
+            assertEquals(new QName("", "doc"), nodeName(node, "/*/*"));
+            assertEquals(0, count(node, "/*/*/@xml:base"));
+            assertEquals("This is a document.", stringValue(node, "/*/*/*"));
+        } catch (SaxonApiException sae) {
+            sae.printStackTrace();
+            TestCase.fail();
+        } finally {
+            if (property == null) {
+                System.clearProperty(Register.PARSE_FILTER_PROPERTY);
+            } else {
+                System.setProperty(Register.PARSE_FILTER_PROPERTY, property);
+            }
+        }
+    }
+
     private int count(XdmNode context, String expression) {
         XdmNode[] nodes = xpathSelection(context, expression);
         return nodes.length;